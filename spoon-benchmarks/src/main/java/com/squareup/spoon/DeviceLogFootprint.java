@@ -0,0 +1,50 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Prints how much heap a test's log keeps when it is loaded as ddmlib messages and when it is
+ * loaded into a {@link DeviceLogStore}. Takes the number of messages as its only argument.
+ */
+public final class DeviceLogFootprint {
+  /** Keeps whatever was loaded reachable while the heap is measured. */
+  static Object loaded;
+
+  public static void main(String... args) throws IOException {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    File log = File.createTempFile("spoon-footprint", DeviceLogFile.EXTENSION);
+    try {
+      DeviceLogStoreBenchmark.writeLog(log, messages);
+
+      long before = usedHeap();
+      loaded = DeviceLogStoreBenchmark.readMessages(log);
+      long ddmlib = usedHeap() - before;
+      loaded = null;
+
+      before = usedHeap();
+      loaded = DeviceLogStoreBenchmark.readStore(log);
+      long store = usedHeap() - before;
+      loaded = null;
+
+      System.out.printf("%d messages: ddmlib %d bytes, store %d bytes (%.1fx smaller)%n",
+          messages, ddmlib, store, (double) ddmlib / store);
+    } finally {
+      log.delete();
+    }
+  }
+
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private DeviceLogFootprint() {
+    // No instances.
+  }
+}
@@ -0,0 +1,117 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads one test's log as a list of ddmlib messages, as the report used to hold it, and into a
+ * {@link DeviceLogStore}. {@link DeviceLogFootprint} compares how much heap each one keeps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeviceLogStoreBenchmark {
+  private static final String[] TAGS = {
+      "ActivityManager", "TestRunner", "OkHttp", "Choreographer", "MyApplication", "dalvikvm"
+  };
+
+  @Param({ "100000" })
+  public int messages;
+
+  private File log;
+
+  @Setup public void writeLog() throws IOException {
+    log = File.createTempFile("spoon-benchmark", DeviceLogFile.EXTENSION);
+    writeLog(log, messages);
+  }
+
+  @TearDown public void deleteLog() {
+    log.delete();
+  }
+
+  @Benchmark public List<LogCatMessage> messages() throws IOException {
+    return readMessages(log);
+  }
+
+  @Benchmark public DeviceLogStore store() throws IOException {
+    return readStore(log);
+  }
+
+  /** Write a log of {@code messages} random messages, much like a chatty app's. */
+  static void writeLog(File log, int messages) throws IOException {
+    Random random = new Random(0);
+    LogCatTimestamp timestamp = LogCatTimestamp.fromString("10-18 12:34:56.789");
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(log), DeviceLogFile.UTF_8));
+    try {
+      for (int i = 0; i < messages; i++) {
+        LogLevel level = LogLevel.values()[random.nextInt(LogLevel.values().length)];
+        StringBuilder text = new StringBuilder("Message ").append(i).append(':');
+        for (int words = 4 + random.nextInt(12); words > 0; words--) {
+          text.append(' ').append(Long.toString(random.nextLong() & 0xffffff, 36));
+        }
+        LogCatHeader header = new LogCatHeader(level, 1234, 1234 + random.nextInt(8),
+            "com.example.app", TAGS[random.nextInt(TAGS.length)], timestamp);
+        writer.write(DeviceLogFile.toLine(new LogCatMessage(header, text.toString())));
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  static List<LogCatMessage> readMessages(File log) throws IOException {
+    List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(log), DeviceLogFile.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t", -1);
+        LogCatHeader header = new LogCatHeader(LogLevel.getByLetter(parts[0].charAt(0)),
+            Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parts[4], parts[5],
+            LogCatTimestamp.fromString(parts[3]));
+        messages.add(new LogCatMessage(header, parts[6]));
+      }
+    } finally {
+      reader.close();
+    }
+    return messages;
+  }
+
+  static DeviceLogStore readStore(File log) throws IOException {
+    DeviceLogStore store = new DeviceLogStore();
+    DeviceLogFile.read(log, store);
+    return store;
+  }
+}
@@ -0,0 +1,79 @@
+package com.squareup.spoon;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a device thread pays for each log line, both with the logger which formatted and printed
+ * on the caller's thread and with {@link SpoonLogger}. Both print to a stream which discards
+ * everything, so this is the cost of the logger itself rather than of the console.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+public class SpoonLoggerBenchmark {
+  private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+    @Override protected DateFormat initialValue() {
+      return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    }
+  };
+
+  private final PrintStream discard = new PrintStream(new OutputStream() {
+    @Override public void write(int b) {
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+    }
+  });
+
+  @Setup public void discardLog() {
+    SpoonLogger.setStream(discard);
+  }
+
+  @TearDown public void restoreConsole() {
+    SpoonLogger.setStream(null);
+  }
+
+  @Benchmark public void synchronous() {
+    logDebug(true, "[%s] Pulled %s in %d ms", "emulator-5554", "screenshot.png", 42);
+  }
+
+  @Benchmark public void asynchronous() {
+    SpoonLogger.logDebug(true, "[%s] Pulled %s in %d ms", "emulator-5554", "screenshot.png", 42);
+  }
+
+  /** The logger as it was, printing on the caller's thread. */
+  private void logDebug(boolean debug, String message, Object... args) {
+    if (debug) discard.println(getPrefix() + String.format(message, args));
+  }
+
+  private static String getPrefix() {
+    StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+    if (stackTrace == null || stackTrace.length < 4) return "[BOGUS]";
+    String className = stackTrace[3].getClassName();
+    String methodName = stackTrace[3].getMethodName();
+    className = className.replaceAll("[a-z\\.]", "");
+    String timestamp = DATE_FORMAT.get().format(new Date());
+    return String.format("%s [%s.%s] ", timestamp, className, methodName);
+  }
+}
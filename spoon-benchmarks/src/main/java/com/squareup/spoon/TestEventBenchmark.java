@@ -0,0 +1,181 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.InstrumentationResultParser;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replays the instrumentation output of a run of Cucumber scenarios, in which every tenth one
+ * fails, into a {@link SpoonTestRunListener}. {@link #listener} replays the listener calls which
+ * ddmlib made for it, and {@link #instrumentationOutput} has ddmlib parse it again as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TestEventBenchmark {
+  private static final String RUNNER = "cucumber.api.android.CucumberInstrumentation";
+
+  @Param({ "20000" })
+  public int tests;
+
+  private String[] output;
+  private List<Event> events;
+
+  @Setup public void record() {
+    output = instrumentationOutput(tests);
+    final List<Event> events = new ArrayList<Event>();
+    InstrumentationResultParser parser = new InstrumentationResultParser("run",
+        Collections.<ITestRunListener>singletonList(new ITestRunListener() {
+          @Override public void testRunStarted(String runName, int testCount) {
+            events.add(new Event(Event.RUN_STARTED, null, null));
+          }
+
+          @Override public void testStarted(TestIdentifier test) {
+            events.add(new Event(Event.STARTED, test, null));
+          }
+
+          @Override public void testFailed(TestIdentifier test, String trace) {
+            events.add(new Event(Event.FAILED, test, trace));
+          }
+
+          @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+          }
+
+          @Override public void testIgnored(TestIdentifier test) {
+          }
+
+          @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            events.add(new Event(Event.ENDED, test, null));
+          }
+
+          @Override public void testRunFailed(String errorMessage) {
+          }
+
+          @Override public void testRunStopped(long elapsedTime) {
+          }
+
+          @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            events.add(new Event(Event.RUN_ENDED, null, null));
+          }
+        }));
+    parser.processNewLines(output);
+    parser.done();
+    this.events = events;
+  }
+
+  @Benchmark public DeviceResult.Builder listener() {
+    DeviceResult.Builder result = new DeviceResult.Builder();
+    ITestRunListener listener = newListener(result);
+    Map<String, String> metrics = Collections.emptyMap();
+    for (Event event : events) {
+      switch (event.type) {
+        case Event.RUN_STARTED:
+          listener.testRunStarted("run", tests);
+          break;
+        case Event.STARTED:
+          listener.testStarted(event.test);
+          break;
+        case Event.FAILED:
+          listener.testFailed(event.test, event.trace);
+          break;
+        case Event.ENDED:
+          listener.testEnded(event.test, metrics);
+          break;
+        default:
+          listener.testRunEnded(0, metrics);
+      }
+    }
+    return result;
+  }
+
+  @Benchmark public DeviceResult.Builder instrumentationOutput() {
+    DeviceResult.Builder result = new DeviceResult.Builder();
+    InstrumentationResultParser parser = new InstrumentationResultParser("run",
+        Collections.singletonList(newListener(result)));
+    parser.processNewLines(output);
+    parser.done();
+    return result;
+  }
+
+  private static ITestRunListener newListener(DeviceResult.Builder result) {
+    return new SpoonTestRunListener(result, false, TestIdentifierAdapter.fromTestRunner(RUNNER));
+  }
+
+  /** What {@code am instrument -r} prints for {@code tests} scenarios. */
+  static String[] instrumentationOutput(int tests) {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 1; i <= tests; i++) {
+      String feature = "Feature " + (i / 100) + ": checking out a basket";
+      String scenario = "Scenario " + i + ": paying with a card (example #" + (i % 7) + ")";
+      status(lines, feature, scenario, i, tests);
+      lines.add("INSTRUMENTATION_STATUS_CODE: 1");
+      status(lines, feature, scenario, i, tests);
+      if (i % 10 == 0) {
+        lines.add("INSTRUMENTATION_STATUS: stack="
+            + "java.lang.AssertionError: expected:<1> but was:<2>");
+        for (int frame = 0; frame < 30; frame++) {
+          lines.add("\tat com.example.steps.CheckoutSteps.step" + frame
+              + "(CheckoutSteps.java:" + (40 + frame) + ")");
+        }
+        lines.add("");
+        lines.add("INSTRUMENTATION_STATUS_CODE: -2");
+      } else {
+        lines.add("INSTRUMENTATION_STATUS_CODE: 0");
+      }
+    }
+    lines.add("INSTRUMENTATION_RESULT: stream=");
+    lines.add("Time: 1234.5");
+    lines.add("");
+    lines.add("OK (" + tests + " tests)");
+    lines.add("INSTRUMENTATION_CODE: -1");
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  private static void status(List<String> lines, String feature, String scenario, int current,
+      int tests) {
+    lines.add("INSTRUMENTATION_STATUS: class=" + feature);
+    lines.add("INSTRUMENTATION_STATUS: current=" + current);
+    lines.add("INSTRUMENTATION_STATUS: id=CucumberInstrumentation");
+    lines.add("INSTRUMENTATION_STATUS: numtests=" + tests);
+    lines.add("INSTRUMENTATION_STATUS: stream=");
+    lines.add("INSTRUMENTATION_STATUS: test=" + scenario);
+  }
+
+  private static final class Event {
+    static final int RUN_STARTED = 0;
+    static final int STARTED = 1;
+    static final int FAILED = 2;
+    static final int ENDED = 3;
+    static final int RUN_ENDED = 4;
+
+    final int type;
+    final TestIdentifier test;
+    final String trace;
+
+    Event(int type, TestIdentifier test, String trace) {
+      this.type = type;
+      this.test = test;
+      this.trace = trace;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Bitmaps which screenshots are drawn into, kept for the next screenshot of the same size rather
+ * than left for the app's garbage collector, which would otherwise pause the app under test after
+ * every screenshot. No more than {@code maxBytes} of pixels are kept, with the least recently
+ * returned bitmaps recycled first.
+ */
+final class BitmapPool {
+  private final long maxBytes;
+  // Guarded by this. Least recently returned first.
+  private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+  private long bytes;
+
+  BitmapPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** A cleared bitmap from the pool, or a new one if there is none of this size and config. */
+  Bitmap get(int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = take(width, height, config);
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, config);
+    }
+    bitmap.eraseColor(Color.TRANSPARENT);
+    return bitmap;
+  }
+
+  private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+    for (Iterator<Bitmap> i = bitmaps.descendingIterator(); i.hasNext();) {
+      Bitmap bitmap = i.next();
+      if (bitmap.getWidth() == width && bitmap.getHeight() == height
+          && bitmap.getConfig() == config) {
+        i.remove();
+        bytes -= byteCount(bitmap);
+        return bitmap;
+      }
+    }
+    return null;
+  }
+
+  /** Return {@code bitmap}, which must no longer be used, for a later {@link #get}. */
+  synchronized void put(Bitmap bitmap) {
+    if (bitmap.isRecycled() || !bitmap.isMutable()) {
+      return;
+    }
+    long size = byteCount(bitmap);
+    if (size > maxBytes) {
+      bitmap.recycle();
+      return;
+    }
+    while (bytes + size > maxBytes) {
+      Bitmap evicted = bitmaps.removeFirst();
+      bytes -= byteCount(evicted);
+      evicted.recycle();
+    }
+    bitmaps.addLast(bitmap);
+    bytes += size;
+  }
+
+  private static long byteCount(Bitmap bitmap) {
+    return (long) bitmap.getRowBytes() * bitmap.getHeight();
+  }
+}
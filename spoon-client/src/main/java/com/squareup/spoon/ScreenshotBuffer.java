@@ -0,0 +1,44 @@
+package com.squareup.spoon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Screenshots which have been drawn but not written, most recent last. Holding them here until a
+ * test fails lets the screenshots of passing tests be dropped without ever being compressed,
+ * written or pulled.
+ */
+final class ScreenshotBuffer {
+  interface Screenshot {
+    /** Write the screenshot where Spoon pulls it from. */
+    void write() throws Exception;
+
+    /** Drop the screenshot without writing it. */
+    void discard();
+  }
+
+  // Guarded by this.
+  private final ArrayDeque<Screenshot> screenshots = new ArrayDeque<Screenshot>();
+
+  /** Add {@code screenshot}, discarding the oldest ones to keep no more than {@code capacity}. */
+  void add(Screenshot screenshot, int capacity) {
+    List<Screenshot> evicted = new ArrayList<Screenshot>();
+    synchronized (this) {
+      screenshots.addLast(screenshot);
+      while (screenshots.size() > capacity) {
+        evicted.add(screenshots.removeFirst());
+      }
+    }
+    for (Screenshot oldest : evicted) {
+      oldest.discard();
+    }
+  }
+
+  /** Remove and return every screenshot, oldest first. */
+  synchronized List<Screenshot> drain() {
+    List<Screenshot> drained = new ArrayList<Screenshot>(screenshots);
+    screenshots.clear();
+    return drained;
+  }
+}
@@ -0,0 +1,80 @@
+package com.squareup.spoon;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs screenshot writes on a background thread. No more than {@code capacity} writes are pending
+ * at once, and each holds a whole bitmap, so {@link #submit} waits for room rather than letting a
+ * fast test run the device out of memory.
+ */
+final class ScreenshotWriter {
+  private final Semaphore permits;
+  private final Executor executor;
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private int pending;
+  private Exception failure;
+
+  ScreenshotWriter(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+    permits = new Semaphore(capacity);
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "spoon-screenshot-writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /** Run {@code write} in the background, once fewer than {@code capacity} writes are pending. */
+  void submit(final Callable<?> write) throws InterruptedException {
+    permits.acquire();
+    synchronized (lock) {
+      pending++;
+    }
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          write.call();
+        } catch (Exception e) {
+          synchronized (lock) {
+            if (failure == null) {
+              failure = e;
+            }
+          }
+        } finally {
+          synchronized (lock) {
+            pending--;
+            lock.notifyAll();
+          }
+          permits.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for every pending write to finish. Throws the first failure of a write since the last
+   * flush, if there was one.
+   */
+  void flush() throws Exception {
+    Exception failure;
+    synchronized (lock) {
+      while (pending > 0) {
+        lock.wait();
+      }
+      failure = this.failure;
+      this.failure = null;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
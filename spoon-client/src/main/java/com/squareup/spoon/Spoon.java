@@ -4,25 +4,32 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import static android.content.Context.MODE_WORLD_READABLE;
-import static android.graphics.Bitmap.CompressFormat.PNG;
-import static android.graphics.Bitmap.Config.ARGB_8888;
 import static android.os.Environment.getExternalStorageDirectory;
 import static com.squareup.spoon.Chmod.chmodPlusR;
 import static com.squareup.spoon.Chmod.chmodPlusRWX;
@@ -32,18 +39,38 @@ public final class Spoon {
   static final String SPOON_SCREENSHOTS = "spoon-screenshots";
   static final String SPOON_FILES = "spoon-files";
   static final String NAME_SEPARATOR = "_";
+  /**
+   * Suffix of the small PNG written next to each screenshot in a format which the host can't
+   * decode, which its animated GIF is made from instead.
+   */
+  static final String GIF_FRAME_SUFFIX = ".frame.png";
+  /** Longest side of a GIF frame, which is big enough to follow what the test did. */
+  static final int GIF_FRAME_MAX_SIZE = 480;
+  /**
+   * Instrumentation argument naming the run which an instrumentation belongs to. Output from an
+   * earlier instrumentation of the same run is kept rather than cleared.
+   */
+  static final String ARG_RUN_ID = "spoonRunId";
+  private static final String RUN_ID_SUFFIX = ".run";
   static final String TEST_CASE_CLASS_JUNIT_3 = "android.test.InstrumentationTestCase";
   static final String TEST_CASE_METHOD_JUNIT_3 = "runMethod";
   static final String TEST_CASE_CLASS_JUNIT_4 = "org.junit.runners.model.FrameworkMethod$1";
   static final String TEST_CASE_METHOD_JUNIT_4 = "runReflectiveCall";
   static final String TEST_CASE_CLASS_CUCUMBER_JVM = "cucumber.runtime.model.CucumberFeature";
   static final String TEST_CASE_METHOD_CUCUMBER_JVM = "run";
-  private static final String EXTENSION = ".png";
   private static final String TAG = "Spoon";
   private static final Object LOCK = new Object();
   private static final Pattern TAG_VALIDATION = Pattern.compile("[a-zA-Z0-9_-]+");
   private static final int LOLLIPOP_API_LEVEL = 21;
   private static final int MARSHMALLOW_API_LEVEL = 23;
+  /** Screenshots being written in the background at once, each of which holds a bitmap. */
+  private static final int ASYNC_SCREENSHOTS = 2;
+  private static final ScreenshotWriter WRITER = new ScreenshotWriter(ASYNC_SCREENSHOTS);
+  /** Enough for the bitmaps of a few screenshots, without taking much from the app under test. */
+  private static final BitmapPool BITMAPS = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+  static final ScreenshotBuffer BUFFER = new ScreenshotBuffer();
+  private static volatile boolean asyncScreenshots;
+  private static volatile SpoonConfig config;
 
   /** Holds a set of directories that have been cleared for this test */
   private static Set<String> clearedOutputDirectories = new HashSet<String>();
@@ -69,46 +96,285 @@ public final class Spoon {
    *
    * @param activity Activity with which to capture a screenshot.
    * @param tag Unique tag to further identify the screenshot. Must match [a-zA-Z0-9_-]+.
-   * @return the image file that was created
+   * @return the image file that was created, or which will be once {@link #flush() flushed}
    */
   public static File screenshot(Activity activity, String tag, String testClassName,
       String testMethodName) {
+    checkTag(tag);
+    String hint = activity.getClass().getSimpleName() + " is the currently displayed activity";
+    return screenshot(activity.getWindow().getDecorView(), null, tag, testClassName,
+        testMethodName, hint);
+  }
+
+  /**
+   * Take a screenshot of only {@code view}, which is quicker and smaller than one of the whole
+   * screen.
+   *
+   * @param view View to capture, which must be laid out.
+   * @param tag Unique tag to further identify the screenshot. Must match [a-zA-Z0-9_-]+.
+   * @return the image file that was created, or which will be once {@link #flush() flushed}
+   */
+  public static File screenshot(View view, String tag) {
+    return screenshot(view, null, tag);
+  }
+
+  /**
+   * Take a screenshot of only the {@code region} of {@code view}.
+   *
+   * @param view View to capture, which must be laid out.
+   * @param region Part of the view to capture, in the view's own coordinates, or {@code null} for
+   * all of it.
+   * @param tag Unique tag to further identify the screenshot. Must match [a-zA-Z0-9_-]+.
+   * @return the image file that was created, or which will be once {@link #flush() flushed}
+   */
+  public static File screenshot(View view, Rect region, String tag) {
+    StackTraceElement testClass = findTestClassTraceElement(Thread.currentThread().getStackTrace());
+    String className = testClass.getClassName().replaceAll("[^A-Za-z0-9._-]", "_");
+    String methodName = testClass.getMethodName();
+    return screenshot(view, region, tag, className, methodName);
+  }
+
+  /**
+   * Take a screenshot of only the {@code region} of {@code view}. This version allows the caller
+   * to manually specify the test class name and method name.
+   *
+   * @param view View to capture, which must be laid out.
+   * @param region Part of the view to capture, in the view's own coordinates, or {@code null} for
+   * all of it.
+   * @param tag Unique tag to further identify the screenshot. Must match [a-zA-Z0-9_-]+.
+   * @return the image file that was created, or which will be once {@link #flush() flushed}
+   */
+  public static File screenshot(View view, Rect region, String tag, String testClassName,
+      String testMethodName) {
+    return screenshot(view, region, tag, testClassName, testMethodName,
+        view.getClass().getSimpleName() + " is laid out");
+  }
+
+  /** @param hint What must be true for {@code view} to have a size, for the error if it has not. */
+  private static File screenshot(View view, Rect region, final String tag,
+      final String testClassName, final String testMethodName, String hint) {
+    checkTag(tag);
+    try {
+      final Context context = view.getContext().getApplicationContext();
+      final SpoonConfig config = config();
+      String screenshotName = System.currentTimeMillis() + NAME_SEPARATOR + tag
+          + config.getFormat().extension;
+      if (config.getBufferSize() > 0) {
+        // Nothing is written, or even created, unless the test fails.
+        File methodDirectory = new File(
+            new File(outputDirectory(context, SPOON_SCREENSHOTS), testClassName), testMethodName);
+        final File screenshotFile = new File(methodDirectory, screenshotName);
+        final Bitmap bitmap = drawScreenshot(screenshotFile, view, region, hint, config);
+        BUFFER.add(new ScreenshotBuffer.Screenshot() {
+          @Override public void write() throws Exception {
+            File screenshotDirectory =
+                obtainScreenshotDirectory(context, testClassName, testMethodName);
+            writeScreenshot(screenshotDirectory, testClassName, testMethodName, tag,
+                screenshotFile, bitmap, config.getFormat());
+          }
+
+          @Override public void discard() {
+            BITMAPS.put(bitmap);
+          }
+        }, config.getBufferSize());
+        return screenshotFile;
+      }
+      final File screenshotDirectory =
+          obtainScreenshotDirectory(context, testClassName, testMethodName);
+      final File screenshotFile = new File(screenshotDirectory, screenshotName);
+      final Bitmap bitmap = drawScreenshot(screenshotFile, view, region, hint, config);
+      if (asyncScreenshots) {
+        try {
+          WRITER.submit(new Callable<Void>() {
+            @Override public Void call() throws IOException {
+              writeScreenshot(screenshotDirectory, testClassName, testMethodName, tag,
+                  screenshotFile, bitmap, config.getFormat());
+              return null;
+            }
+          });
+        } catch (InterruptedException e) {
+          BITMAPS.put(bitmap);
+          throw e;
+        }
+      } else {
+        writeScreenshot(screenshotDirectory, testClassName, testMethodName, tag, screenshotFile,
+            bitmap, config.getFormat());
+      }
+      return screenshotFile;
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to capture screenshot.", e);
+    }
+  }
+
+  private static void checkTag(String tag) {
     if (!TAG_VALIDATION.matcher(tag).matches()) {
       throw new IllegalArgumentException("Tag must match " + TAG_VALIDATION.pattern() + ".");
     }
+  }
+
+  /**
+   * Encode and write screenshots on a background thread, which lets the test carry on while they
+   * are compressed. The screenshot is still drawn before {@code screenshot} returns. Tests must
+   * call {@link #flush()} before they end, which {@link SpoonRule} does, so that every screenshot
+   * is written before Spoon pulls them.
+   */
+  public static void setAsyncScreenshots(boolean async) {
+    if (!async) {
+      flush();
+    }
+    asyncScreenshots = async;
+  }
+
+  /** Capture screenshots as {@code config} says from now on. */
+  public static void setConfig(SpoonConfig config) {
+    if (config == null) {
+      throw new NullPointerException("config == null");
+    }
+    Spoon.config = config;
+  }
+
+  static SpoonConfig config() {
+    SpoonConfig config = Spoon.config;
+    if (config == null) {
+      config = configFromArguments();
+      Spoon.config = config;
+    }
+    return config;
+  }
+
+  /** The config in the instrumentation arguments, if the testing support library has them. */
+  private static SpoonConfig configFromArguments() {
+    Bundle arguments = instrumentationArguments();
+    return arguments != null ? SpoonConfig.fromArguments(arguments) : SpoonConfig.DEFAULT;
+  }
+
+  private static String instrumentationArgument(String name) {
+    Bundle arguments = instrumentationArguments();
+    return arguments != null ? arguments.getString(name) : null;
+  }
+
+  /** The instrumentation arguments, or {@code null} without the testing support library. */
+  private static Bundle instrumentationArguments() {
     try {
-      File screenshotDirectory =
-          obtainScreenshotDirectory(activity.getApplicationContext(), testClassName,
-              testMethodName);
-      String screenshotName = System.currentTimeMillis() + NAME_SEPARATOR + tag + EXTENSION;
-      File screenshotFile = new File(screenshotDirectory, screenshotName);
-      takeScreenshot(screenshotFile, activity);
-      Log.d(TAG, "Captured screenshot '" + tag + "'.");
-      return screenshotFile;
+      Class<?> registry = Class.forName("android.support.test.InstrumentationRegistry");
+      return (Bundle) registry.getMethod("getArguments").invoke(null);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (Exception e) {
+      Log.w(TAG, "Unable to read instrumentation arguments.", e);
+      return null;
+    }
+  }
+
+  /** Wait for screenshots which are being written in the background to be written. */
+  public static void flush() {
+    try {
+      WRITER.flush();
+    } catch (RuntimeException e) {
+      throw e;
     } catch (Exception e) {
       throw new RuntimeException("Unable to capture screenshot.", e);
     }
   }
 
-  private static void takeScreenshot(File file, final Activity activity) throws IOException {
-    View view = activity.getWindow().getDecorView();
+  /**
+   * Write the screenshots which have been {@linkplain SpoonConfig.Builder#setBufferSize buffered}
+   * since they were last written or discarded. {@link SpoonRule} calls this when a test fails.
+   */
+  public static void writeBufferedScreenshots() {
+    Exception failure = null;
+    for (ScreenshotBuffer.Screenshot screenshot : BUFFER.drain()) {
+      try {
+        screenshot.write();
+      } catch (Exception e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw new RuntimeException("Unable to capture screenshot.", failure);
+    }
+  }
+
+  /**
+   * Drop the screenshots which have been {@linkplain SpoonConfig.Builder#setBufferSize buffered}
+   * since they were last written or discarded. {@link SpoonRule} calls this when a test passes.
+   */
+  public static void discardBufferedScreenshots() {
+    for (ScreenshotBuffer.Screenshot screenshot : BUFFER.drain()) {
+      screenshot.discard();
+    }
+  }
+
+  /** Write {@code bitmap} to {@code file}, record it in the manifests, and pool the bitmap. */
+  private static void writeScreenshot(File screenshotDirectory, String testClassName,
+      String testMethodName, String tag, File file, Bitmap bitmap, SpoonConfig.Format format)
+      throws IOException {
+    if (format != SpoonConfig.Format.PNG) {
+      File frame = new File(file.getPath() + GIF_FRAME_SUFFIX);
+      long frameChecksum;
+      try {
+        frameChecksum = writeGifFrame(frame, bitmap);
+      } catch (IOException e) {
+        BITMAPS.put(bitmap);
+        throw e;
+      }
+      addToManifest(screenshotDirectory, testClassName, testMethodName, tag, frame,
+          frameChecksum);
+    }
+    long checksum = compress(file, bitmap, format);
+    addToManifest(screenshotDirectory, testClassName, testMethodName, tag, file, checksum);
+    Log.d(TAG, "Captured screenshot '" + tag + "'.");
+  }
+
+  /** Write {@code bitmap} to {@code file} as a PNG of at most {@link #GIF_FRAME_MAX_SIZE}. */
+  private static long writeGifFrame(File file, Bitmap bitmap) throws IOException {
+    float scale = Math.min(1f,
+        (float) GIF_FRAME_MAX_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+    Bitmap frame = bitmap;
+    if (scale < 1f) {
+      int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+      int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+      frame = Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+    try {
+      return write(file, frame, Bitmap.CompressFormat.PNG);
+    } finally {
+      if (frame != bitmap) {
+        frame.recycle();
+      }
+    }
+  }
+
+  /**
+   * Draw the {@code region} of {@code view}, or all of it if {@code null}, into a bitmap which only
+   * has room for that region. The screenshot is to be written to {@code file}.
+   */
+  private static Bitmap drawScreenshot(File file, final View view, Rect region, String hint,
+      SpoonConfig config) throws IOException {
     if (view.getWidth() == 0 || view.getHeight() == 0) {
-      throw new IOException("Your view has no height or width. Are you sure "
-              + activity.getClass().getSimpleName()
-              + " is the currently displayed activity?");
+      throw new IOException("Your view has no height or width. Are you sure " + hint + "?");
     }
-    final Bitmap bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), ARGB_8888);
+    final Rect clip = new Rect(0, 0, view.getWidth(), view.getHeight());
+    if (region != null && !clip.intersect(region)) {
+      throw new IOException("Region " + region + " is outside of the view.");
+    }
+    final float scale = config.scaleFor(clip.width(), clip.height());
+    int width = Math.max(1, Math.round(clip.width() * scale));
+    int height = Math.max(1, Math.round(clip.height() * scale));
+    final Bitmap bitmap = BITMAPS.get(width, height, config.getBitmapConfig());
 
     if (Looper.myLooper() == Looper.getMainLooper()) {
       // On main thread already, Just Do It™.
-      drawDecorViewToBitmap(activity, bitmap);
+      drawViewToBitmap(view, clip, bitmap, scale);
     } else {
       // On a background thread, post to main.
       final CountDownLatch latch = new CountDownLatch(1);
-      activity.runOnUiThread(new Runnable() {
+      new Handler(Looper.getMainLooper()).post(new Runnable() {
         @Override public void run() {
           try {
-            drawDecorViewToBitmap(activity, bitmap);
+            drawViewToBitmap(view, clip, bitmap, scale);
           } finally {
             latch.countDown();
           }
@@ -122,24 +388,48 @@ public final class Spoon {
         throw new RuntimeException(msg, e);
       }
     }
+    return bitmap;
+  }
 
+  /**
+   * Write {@code bitmap} to {@code file} in {@code format}, return it to the pool, and return the
+   * file's CRC-32.
+   */
+  private static long compress(File file, Bitmap bitmap, SpoonConfig.Format format)
+      throws IOException {
+    try {
+      return write(file, bitmap, format.compressFormat());
+    } finally {
+      BITMAPS.put(bitmap);
+    }
+  }
+
+  /** Write {@code bitmap} to {@code file} in {@code format} and return the file's CRC-32. */
+  private static long write(File file, Bitmap bitmap, Bitmap.CompressFormat format)
+      throws IOException {
+    CRC32 crc = new CRC32();
     OutputStream fos = null;
     try {
-      fos = new BufferedOutputStream(new FileOutputStream(file));
-      bitmap.compress(PNG, 100 /* quality */, fos);
+      fos = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(file)), crc);
+      bitmap.compress(format, 100 /* quality */, fos);
 
       chmodPlusR(file);
     } finally {
-      bitmap.recycle();
       if (fos != null) {
         fos.close();
       }
     }
+    return crc.getValue();
   }
 
-  private static void drawDecorViewToBitmap(Activity activity, Bitmap bitmap) {
+  private static void drawViewToBitmap(View view, Rect clip, Bitmap bitmap, float scale) {
     Canvas canvas = new Canvas(bitmap);
-    activity.getWindow().getDecorView().draw(canvas);
+    if (scale != 1f) {
+      // Drawing at the smaller size is quicker than scaling a full size bitmap down.
+      canvas.scale(scale, scale);
+    }
+    canvas.translate(-clip.left, -clip.top);
+    view.draw(canvas);
   }
 
   private static File obtainScreenshotDirectory(Context context, String testClassName,
@@ -182,7 +472,8 @@ public final class Spoon {
       }
 
       File target = new File(filesDirectory, file.getName());
-      copy(file, target);
+      long checksum = copy(file, target);
+      addToManifest(filesDirectory, className, methodName, file.getName(), target, checksum);
       Log.d(TAG, "Saved " + file);
       return target;
     } catch (IllegalAccessException e) {
@@ -192,36 +483,50 @@ public final class Spoon {
     }
   }
 
-  private static void copy(File source, File target) throws IOException {
+  /** Copy {@code source} to {@code target} and return the CRC-32 of what was copied. */
+  private static long copy(File source, File target) throws IOException {
     Log.d(TAG, "Will copy " + source + " to " + target);
 
     target.createNewFile();
     chmodPlusR(target);
 
-    final BufferedInputStream is = new BufferedInputStream(new FileInputStream(source));
+    CRC32 crc = new CRC32();
+    final CheckedInputStream is =
+        new CheckedInputStream(new BufferedInputStream(new FileInputStream(source)), crc);
     final BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(target));
     byte [] buffer = new byte[4096];
-    while (is.read(buffer) > 0) {
-      os.write(buffer);
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      os.write(buffer, 0, read);
     }
     is.close();
     os.close();
+    return crc.getValue();
+  }
+
+  /**
+   * Record {@code file}, which was just written to {@code methodDirectory}, in the manifests of the
+   * output directory and of the test so the runner knows to fetch it.
+   */
+  private static void addToManifest(File methodDirectory, String className, String methodName,
+      String tag, File file, long checksum) throws IOException {
+    File outputDirectory = methodDirectory.getParentFile().getParentFile();
+    String path = className + "/" + methodName + "/" + file.getName();
+    SpoonManifest.Entry entry =
+        new SpoonManifest.Entry(className, methodName, tag, file.length(), checksum, path);
+    synchronized (LOCK) {
+      SpoonManifest.append(outputDirectory, entry);
+      SpoonManifest.append(methodDirectory, entry);
+    }
   }
 
   private static File filesDirectory(Context context, String directoryType, String testClassName,
       String testMethodName) throws IllegalAccessException {
-    File directory;
-    if (Build.VERSION.SDK_INT >= LOLLIPOP_API_LEVEL) {
-      // Use external storage.
-      directory = new File(getExternalStorageDirectory(), "app_" + directoryType);
-    } else {
-      // Use internal storage.
-      directory = context.getDir(directoryType, MODE_WORLD_READABLE);
-    }
+    File directory = outputDirectory(context, directoryType);
 
     synchronized (LOCK) {
       if (!clearedOutputDirectories.contains(directoryType)) {
-        deletePath(directory, false);
+        clearOutputDirectory(directory, instrumentationArgument(ARG_RUN_ID));
         clearedOutputDirectories.add(directoryType);
       }
     }
@@ -232,6 +537,15 @@ public final class Spoon {
     return dirMethod;
   }
 
+  private static File outputDirectory(Context context, String directoryType) {
+    if (Build.VERSION.SDK_INT >= LOLLIPOP_API_LEVEL) {
+      // Use external storage.
+      return new File(getExternalStorageDirectory(), "app_" + directoryType);
+    }
+    // Use internal storage.
+    return context.getDir(directoryType, MODE_WORLD_READABLE);
+  }
+
   /** Returns the test class element by looking at the method InstrumentationTestCase invokes. */
   static StackTraceElement findTestClassTraceElement(StackTraceElement[] trace) {
     for (int i = trace.length - 1; i >= 0; i--) {
@@ -260,6 +574,57 @@ public final class Spoon {
     return trace[testClassTraceIndex];
   }
 
+  /**
+   * Delete what an earlier run left in {@code directory}. The runner may start several
+   * instrumentations for one run, such as one for each batch of tests, and only pulls their output
+   * once they have all finished, so when {@code runId} is the run which last cleared the directory
+   * its output is kept.
+   */
+  static void clearOutputDirectory(File directory, String runId) {
+    if (runId == null) {
+      deletePath(directory, false);
+      return;
+    }
+    File marker = new File(directory.getParentFile(), directory.getName() + RUN_ID_SUFFIX);
+    try {
+      if (runId.equals(readString(marker))) {
+        return;
+      }
+      deletePath(directory, false);
+      writeString(marker, runId);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to record run " + runId + " in " + marker, e);
+    }
+  }
+
+  /** The contents of {@code file}, or {@code null} if there is no such file. */
+  private static String readString(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    InputStream is = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[256];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toString("UTF-8");
+    } finally {
+      is.close();
+    }
+  }
+
+  private static void writeString(File file, String value) throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(value.getBytes("UTF-8"));
+    } finally {
+      os.close();
+    }
+  }
+
   private static void createDir(File dir) throws IllegalAccessException {
     File parent = dir.getParentFile();
     if (!parent.exists()) {
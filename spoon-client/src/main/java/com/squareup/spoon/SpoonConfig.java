@@ -0,0 +1,226 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import java.util.Locale;
+
+/**
+ * How screenshots are captured and stored. Full resolution ARGB_8888 PNGs by default, which are
+ * rarely needed for regression screenshots: a smaller format, color depth or size makes them
+ * quicker to take, store and pull.
+ * <p>
+ * Set with {@link Spoon#setConfig}, or with instrumentation arguments, such as
+ * {@code --e spoonScreenshotFormat webp --e spoonScreenshotScale 0.5}, which are read when the
+ * Android testing support library is present.
+ * <p>
+ * With a {@linkplain Builder#setBufferSize buffer}, screenshots are kept in memory and only written
+ * when {@link SpoonRule} sees their test fail.
+ */
+public final class SpoonConfig {
+  /** Instrumentation argument for the {@link Format}, {@code png} or {@code webp}. */
+  public static final String ARG_FORMAT = "spoonScreenshotFormat";
+  /** Instrumentation argument for the bitmap config, {@code argb_8888} or {@code rgb_565}. */
+  public static final String ARG_BITMAP_CONFIG = "spoonScreenshotConfig";
+  /** Instrumentation argument for the scale, such as {@code 0.5}. */
+  public static final String ARG_SCALE = "spoonScreenshotScale";
+  /** Instrumentation argument for the maximum width and height in pixels. */
+  public static final String ARG_MAX_SIZE = "spoonScreenshotMaxSize";
+  /** Instrumentation argument for how many screenshots of each test to buffer. */
+  public static final String ARG_BUFFER_SIZE = "spoonScreenshotBuffer";
+  /** Instrumentation argument to write the buffered screenshots of passing tests too. */
+  public static final String ARG_KEEP_PASSING = "spoonScreenshotKeepPassing";
+
+  public static final SpoonConfig DEFAULT = new Builder().build();
+
+  public enum Format {
+    /** Lossless. */
+    PNG(".png"),
+    /** Lossless on Android 11 and above, and at the highest quality before that. */
+    WEBP(".webp");
+
+    final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+
+    Bitmap.CompressFormat compressFormat() {
+      if (this == PNG) {
+        return Bitmap.CompressFormat.PNG;
+      }
+      try {
+        // Only in the SDKs of Android 11 and above.
+        return Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS");
+      } catch (IllegalArgumentException e) {
+        return Bitmap.CompressFormat.WEBP;
+      }
+    }
+  }
+
+  private final Format format;
+  private final Bitmap.Config bitmapConfig;
+  private final float scale;
+  private final int maxSize;
+  private final int bufferSize;
+  private final boolean keepPassing;
+
+  private SpoonConfig(Format format, Bitmap.Config bitmapConfig, float scale, int maxSize,
+      int bufferSize, boolean keepPassing) {
+    this.format = format;
+    this.bitmapConfig = bitmapConfig;
+    this.scale = scale;
+    this.maxSize = maxSize;
+    this.bufferSize = bufferSize;
+    this.keepPassing = keepPassing;
+  }
+
+  /** The configuration in {@code arguments}, with the default for anything not in them. */
+  public static SpoonConfig fromArguments(Bundle arguments) {
+    return parse(arguments.getString(ARG_FORMAT), arguments.getString(ARG_BITMAP_CONFIG),
+        arguments.getString(ARG_SCALE), arguments.getString(ARG_MAX_SIZE),
+        arguments.getString(ARG_BUFFER_SIZE), arguments.getString(ARG_KEEP_PASSING));
+  }
+
+  static SpoonConfig parse(String format, String bitmapConfig, String scale, String maxSize,
+      String bufferSize, String keepPassing) {
+    Builder builder = new Builder();
+    if (format != null) {
+      builder.setFormat(Format.valueOf(format.trim().toUpperCase(Locale.US)));
+    }
+    if (bitmapConfig != null) {
+      builder.setBitmapConfig(Bitmap.Config.valueOf(bitmapConfig.trim().toUpperCase(Locale.US)));
+    }
+    if (scale != null) {
+      builder.setScale(Float.parseFloat(scale.trim()));
+    }
+    if (maxSize != null) {
+      builder.setMaxSize(Integer.parseInt(maxSize.trim()));
+    }
+    if (bufferSize != null) {
+      builder.setBufferSize(Integer.parseInt(bufferSize.trim()));
+    }
+    if (keepPassing != null) {
+      builder.setKeepPassing(Boolean.parseBoolean(keepPassing.trim()));
+    }
+    return builder.build();
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return bitmapConfig;
+  }
+
+  public float getScale() {
+    return scale;
+  }
+
+  /** Maximum width and height in pixels, or zero for no maximum. */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /** How many screenshots of each test are kept in memory, or zero to write every screenshot. */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Whether buffered screenshots are written when their test passes, too. */
+  public boolean isKeepPassing() {
+    return keepPassing;
+  }
+
+  /** How much to scale a view of {@code width} by {@code height} pixels by. Never more than 1. */
+  float scaleFor(int width, int height) {
+    float scale = this.scale;
+    if (maxSize > 0) {
+      scale = Math.min(scale, (float) maxSize / Math.max(width, height));
+    }
+    return scale;
+  }
+
+  public Builder newBuilder() {
+    return new Builder()
+        .setFormat(format)
+        .setBitmapConfig(bitmapConfig)
+        .setScale(scale)
+        .setMaxSize(maxSize)
+        .setBufferSize(bufferSize)
+        .setKeepPassing(keepPassing);
+  }
+
+  @Override public String toString() {
+    return "SpoonConfig{format=" + format + ", bitmapConfig=" + bitmapConfig + ", scale=" + scale
+        + ", maxSize=" + maxSize + ", bufferSize=" + bufferSize + ", keepPassing=" + keepPassing
+        + "}";
+  }
+
+  public static final class Builder {
+    private Format format = Format.PNG;
+    private Bitmap.Config bitmapConfig = Bitmap.Config.ARGB_8888;
+    private float scale = 1f;
+    private int maxSize;
+    private int bufferSize;
+    private boolean keepPassing;
+
+    public Builder setFormat(Format format) {
+      if (format == null) {
+        throw new NullPointerException("format == null");
+      }
+      this.format = format;
+      return this;
+    }
+
+    /** {@link Bitmap.Config#ARGB_8888 ARGB_8888}, or {@link Bitmap.Config#RGB_565 RGB_565}. */
+    public Builder setBitmapConfig(Bitmap.Config bitmapConfig) {
+      if (bitmapConfig != Bitmap.Config.ARGB_8888 && bitmapConfig != Bitmap.Config.RGB_565) {
+        throw new IllegalArgumentException("Unsupported bitmap config: " + bitmapConfig);
+      }
+      this.bitmapConfig = bitmapConfig;
+      return this;
+    }
+
+    /** Scale screenshots by {@code scale}, which is more than 0 and at most 1. */
+    public Builder setScale(float scale) {
+      if (!(scale > 0 && scale <= 1)) {
+        throw new IllegalArgumentException("Scale must be more than 0 and at most 1: " + scale);
+      }
+      this.scale = scale;
+      return this;
+    }
+
+    /** Scale screenshots down to at most {@code maxSize} pixels wide and high. Zero for any. */
+    public Builder setMaxSize(int maxSize) {
+      if (maxSize < 0) {
+        throw new IllegalArgumentException("Max size must not be negative: " + maxSize);
+      }
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * Keep the last {@code bufferSize} screenshots of each test in memory, and write them only if
+     * the test fails. Needs {@link SpoonRule}. Each holds a whole bitmap, so scaling screenshots
+     * down lets more of them be kept. Zero, the default, writes every screenshot.
+     */
+    public Builder setBufferSize(int bufferSize) {
+      if (bufferSize < 0) {
+        throw new IllegalArgumentException("Buffer size must not be negative: " + bufferSize);
+      }
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    /** Write the buffered screenshots of tests which pass as well, such as for a baseline run. */
+    public Builder setKeepPassing(boolean keepPassing) {
+      this.keepPassing = keepPassing;
+      return this;
+    }
+
+    public SpoonConfig build() {
+      return new SpoonConfig(format, bitmapConfig, scale, maxSize, bufferSize, keepPassing);
+    }
+  }
+}
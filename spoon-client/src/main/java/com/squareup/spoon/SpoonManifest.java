@@ -0,0 +1,77 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Lists every file which was written to one of the output directories, so the runner can fetch
+ * exactly those files and verify them. Each output directory has its own manifest at its root with
+ * one tab separated line per file. The directory of each test has another manifest with only that
+ * test's lines, which lets the runner fetch a test's files as soon as it ends.
+ */
+final class SpoonManifest {
+  static final String FILE_NAME = "spoon-manifest";
+
+  /** Append {@code entry} to the manifest in {@code directory}. Callers must synchronize. */
+  static void append(File directory, Entry entry) throws IOException {
+    File manifest = new File(directory, FILE_NAME);
+    Writer writer = new FileWriter(manifest, true);
+    try {
+      writer.write(entry.toLine());
+      writer.write('\n');
+    } finally {
+      writer.close();
+    }
+    Chmod.chmodPlusR(manifest);
+  }
+
+  static final class Entry {
+    final String className;
+    final String methodName;
+    final String tag;
+    final long size;
+    final long checksum;
+    /** Path relative to the output directory, always with forward slashes. */
+    final String path;
+
+    Entry(String className, String methodName, String tag, long size, long checksum,
+        String path) {
+      this.className = className;
+      this.methodName = methodName;
+      this.tag = tag.replace('\t', '_').replace('\n', '_');
+      this.size = size;
+      this.checksum = checksum;
+      this.path = path;
+    }
+
+    /** Parse a line written by {@link #toLine()}, or return {@code null} if it is malformed. */
+    static Entry parse(String line) {
+      // The path goes last so that it is the only field which may contain a tab.
+      String[] parts = line.split("\t", 6);
+      if (parts.length != 6) {
+        return null;
+      }
+      try {
+        return new Entry(parts[0], parts[1], parts[2], Long.parseLong(parts[3]),
+            Long.parseLong(parts[4], 16), parts[5]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    String toLine() {
+      return className + '\t' + methodName + '\t' + tag + '\t' + size + '\t'
+          + Long.toHexString(checksum) + '\t' + path;
+    }
+
+    @Override public String toString() {
+      return path;
+    }
+  }
+
+  private SpoonManifest() {
+    // No instances.
+  }
+}
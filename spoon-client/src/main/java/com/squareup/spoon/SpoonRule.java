@@ -0,0 +1,51 @@
+package com.squareup.spoon;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Waits for the screenshots which a test took to be written before it ends, so that Spoon finds
+ * all of them when it pulls the test's files. Needed with {@link Spoon#setAsyncScreenshots}.
+ * <p>
+ * Also writes the screenshots which a test {@linkplain SpoonConfig.Builder#setBufferSize buffered}
+ * if it fails, and drops them if it passes.
+ * <pre>{@code
+ * @Rule public final SpoonRule spoon = new SpoonRule();
+ * }</pre>
+ */
+public final class SpoonRule implements TestRule {
+  @Override public Statement apply(final Statement base, Description description) {
+    return new Statement() {
+      @Override public void evaluate() throws Throwable {
+        Throwable failure = null;
+        try {
+          base.evaluate();
+        } catch (Throwable t) {
+          failure = t;
+        }
+        try {
+          if (failure != null || Spoon.config().isKeepPassing()) {
+            Spoon.writeBufferedScreenshots();
+          } else {
+            Spoon.discardBufferedScreenshots();
+          }
+        } catch (Throwable t) {
+          if (failure == null) {
+            failure = t;
+          }
+        }
+        try {
+          Spoon.flush();
+        } catch (Throwable t) {
+          if (failure == null) {
+            failure = t;
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    };
+  }
+}
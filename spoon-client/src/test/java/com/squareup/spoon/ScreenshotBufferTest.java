@@ -0,0 +1,40 @@
+package com.squareup.spoon;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ScreenshotBufferTest {
+  private final ScreenshotBuffer buffer = new ScreenshotBuffer();
+  private final List<String> discarded = new ArrayList<String>();
+
+  @Test public void keepsMostRecentScreenshots() {
+    ScreenshotBuffer.Screenshot first = new FakeScreenshot("first");
+    ScreenshotBuffer.Screenshot second = new FakeScreenshot("second");
+    ScreenshotBuffer.Screenshot third = new FakeScreenshot("third");
+    buffer.add(first, 2);
+    buffer.add(second, 2);
+    buffer.add(third, 2);
+    assertThat(discarded).containsExactly("first");
+    assertThat(buffer.drain()).containsExactly(second, third);
+    assertThat(buffer.drain()).isEmpty();
+  }
+
+  private final class FakeScreenshot implements ScreenshotBuffer.Screenshot {
+    private final String tag;
+
+    FakeScreenshot(String tag) {
+      this.tag = tag;
+    }
+
+    @Override public void write() {
+      throw new AssertionError();
+    }
+
+    @Override public void discard() {
+      discarded.add(tag);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.squareup.spoon;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class ScreenshotWriterTest {
+  private final ScreenshotWriter writer = new ScreenshotWriter(1);
+
+  @Test public void flushWaitsForPendingWrites() throws Exception {
+    final AtomicInteger written = new AtomicInteger();
+    for (int i = 0; i < 3; i++) {
+      writer.submit(new Callable<Void>() {
+        @Override public Void call() throws InterruptedException {
+          Thread.sleep(20);
+          written.incrementAndGet();
+          return null;
+        }
+      });
+    }
+    writer.flush();
+    assertThat(written.get()).isEqualTo(3);
+  }
+
+  @Test public void submitWaitsWhileFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    writer.submit(new Callable<Void>() {
+      @Override public Void call() throws InterruptedException {
+        release.await();
+        return null;
+      }
+    });
+    final CountDownLatch submitted = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          writer.submit(new Callable<Void>() {
+            @Override public Void call() {
+              return null;
+            }
+          });
+          submitted.countDown();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    };
+    thread.start();
+    assertThat(submitted.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    release.countDown();
+    assertThat(submitted.await(5, TimeUnit.SECONDS)).isTrue();
+    writer.flush();
+  }
+
+  @Test public void flushThrowsFailedWriteOnce() throws Exception {
+    writer.submit(new Callable<Void>() {
+      @Override public Void call() throws IOException {
+        throw new IOException("Disk full");
+      }
+    });
+    try {
+      writer.flush();
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessage("Disk full");
+    }
+    writer.flush();
+  }
+}
@@ -0,0 +1,38 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonConfigTest {
+  @Test public void defaultsToFullSizePng() {
+    SpoonConfig config = SpoonConfig.parse(null, null, null, null, null, null);
+    assertThat(config.getFormat()).isEqualTo(SpoonConfig.Format.PNG);
+    assertThat(config.getBitmapConfig()).isEqualTo(Bitmap.Config.ARGB_8888);
+    assertThat(config.scaleFor(1440, 2960)).isEqualTo(1f);
+    assertThat(config.getBufferSize()).isZero();
+  }
+
+  @Test public void parsesArguments() {
+    SpoonConfig config = SpoonConfig.parse("webp", "RGB_565", "0.5", "1000", "5", "true");
+    assertThat(config.getFormat()).isEqualTo(SpoonConfig.Format.WEBP);
+    assertThat(config.getFormat().extension).isEqualTo(".webp");
+    assertThat(config.getBitmapConfig()).isEqualTo(Bitmap.Config.RGB_565);
+    assertThat(config.getScale()).isEqualTo(0.5f);
+    assertThat(config.getMaxSize()).isEqualTo(1000);
+    assertThat(config.getBufferSize()).isEqualTo(5);
+    assertThat(config.isKeepPassing()).isTrue();
+  }
+
+  @Test public void maxSizeScalesFurther() {
+    SpoonConfig config = new SpoonConfig.Builder().setScale(0.5f).setMaxSize(740).build();
+    assertThat(config.scaleFor(1440, 2960)).isEqualTo(0.25f);
+    assertThat(config.scaleFor(720, 1280)).isEqualTo(0.5f);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsOtherBitmapConfigs() {
+    SpoonConfig.parse(null, "ALPHA_8", null, null, null, null);
+  }
+}
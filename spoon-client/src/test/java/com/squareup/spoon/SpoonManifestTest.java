@@ -0,0 +1,34 @@
+package com.squareup.spoon;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonManifestTest {
+  @Test public void entryRoundTrips() {
+    SpoonManifest.Entry entry = new SpoonManifest.Entry("com.example.FooTest", "testBar",
+        "after_login", 1234, 0xcafebabeL, "com.example.FooTest/testBar/99_after_login.png");
+
+    SpoonManifest.Entry parsed = SpoonManifest.Entry.parse(entry.toLine());
+    assertThat(parsed.className).isEqualTo("com.example.FooTest");
+    assertThat(parsed.methodName).isEqualTo("testBar");
+    assertThat(parsed.tag).isEqualTo("after_login");
+    assertThat(parsed.size).isEqualTo(1234);
+    assertThat(parsed.checksum).isEqualTo(0xcafebabeL);
+    assertThat(parsed.path).isEqualTo("com.example.FooTest/testBar/99_after_login.png");
+  }
+
+  @Test public void tabsOnlySurviveInThePath() {
+    SpoonManifest.Entry entry = new SpoonManifest.Entry("com.example.FooTest", "testBar",
+        "odd\tname", 1, 2, "com.example.FooTest/testBar/odd\tname");
+
+    SpoonManifest.Entry parsed = SpoonManifest.Entry.parse(entry.toLine());
+    assertThat(parsed.tag).isEqualTo("odd_name");
+    assertThat(parsed.path).isEqualTo("com.example.FooTest/testBar/odd\tname");
+  }
+
+  @Test public void malformedLinesAreNotParsed() {
+    assertThat(SpoonManifest.Entry.parse("")).isNull();
+    assertThat(SpoonManifest.Entry.parse("a\tb\tc\tnot-a-size\t0\tpath")).isNull();
+  }
+}
@@ -0,0 +1,79 @@
+package com.squareup.spoon;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class SpoonRuleTest {
+  private final List<String> written = new ArrayList<String>();
+  private final List<String> discarded = new ArrayList<String>();
+
+  @Before public void setUp() {
+    Spoon.setConfig(new SpoonConfig.Builder().setBufferSize(2).build());
+  }
+
+  @After public void tearDown() {
+    Spoon.discardBufferedScreenshots();
+    Spoon.setConfig(SpoonConfig.DEFAULT);
+  }
+
+  @Test public void discardsScreenshotsOfPassingTest() throws Throwable {
+    evaluate(new Statement() {
+      @Override public void evaluate() {
+        screenshot("passing");
+      }
+    });
+    assertThat(written).isEmpty();
+    assertThat(discarded).containsExactly("passing");
+  }
+
+  @Test public void writesScreenshotsOfFailingTest() throws Throwable {
+    try {
+      evaluate(new Statement() {
+        @Override public void evaluate() {
+          screenshot("before");
+          screenshot("failing");
+          throw new IllegalStateException("Broken");
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Broken");
+    }
+    assertThat(written).containsExactly("before", "failing");
+    assertThat(discarded).isEmpty();
+  }
+
+  @Test public void keepPassingWritesScreenshotsOfPassingTest() throws Throwable {
+    Spoon.setConfig(Spoon.config().newBuilder().setKeepPassing(true).build());
+    evaluate(new Statement() {
+      @Override public void evaluate() {
+        screenshot("passing");
+      }
+    });
+    assertThat(written).containsExactly("passing");
+  }
+
+  private void evaluate(Statement test) throws Throwable {
+    new SpoonRule().apply(test, Description.EMPTY).evaluate();
+  }
+
+  private void screenshot(final String tag) {
+    Spoon.BUFFER.add(new ScreenshotBuffer.Screenshot() {
+      @Override public void write() {
+        written.add(tag);
+      }
+
+      @Override public void discard() {
+        discarded.add(tag);
+      }
+    }, Spoon.config().getBufferSize());
+  }
+}
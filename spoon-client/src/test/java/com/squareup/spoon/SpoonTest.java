@@ -1,9 +1,14 @@
 // Copyright 2012 Square, Inc.
 package com.squareup.spoon;
 
+import android.app.Activity;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static com.squareup.spoon.Spoon.*;
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -14,6 +19,8 @@ public class SpoonTest {
   private static final String EXPECTED_CLASS = "SomeClass";
   private static final String EXPECTED_METHOD = "someMethod";
 
+  @Rule public final TemporaryFolder temp = new TemporaryFolder();
+
   @Test(expected = IllegalArgumentException.class)
   public void invalidStackTraceThrowsException() {
     findTestClassTraceElement(new StackTraceBuilder() //
@@ -97,9 +104,34 @@ public class SpoonTest {
     assertThat(actual.getMethodName()).isEqualTo(EXPECTED_METHOD);
   }
 
+  @Test public void outputIsClearedOncePerRun() throws IOException {
+    File directory = temp.newFolder("app_spoon-screenshots");
+    File first = new File(directory, "first.png");
+    first.createNewFile();
+    clearOutputDirectory(directory, "run-1");
+    assertThat(first).doesNotExist();
+
+    File second = new File(directory, "second.png");
+    second.createNewFile();
+    clearOutputDirectory(directory, "run-1");
+    assertThat(second).exists();
+
+    clearOutputDirectory(directory, "run-2");
+    assertThat(second).doesNotExist();
+  }
+
+  @Test public void outputIsAlwaysClearedWithoutRun() throws IOException {
+    File directory = temp.newFolder("app_spoon-files");
+    File file = new File(directory, "file.txt");
+    file.createNewFile();
+    clearOutputDirectory(directory, null);
+    assertThat(file).doesNotExist();
+    assertThat(directory).exists();
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void invalidTagThrowsException() {
-    Spoon.screenshot(null, "!@#$%^&*()");
+    Spoon.screenshot((Activity) null, "!@#$%^&*()");
   }
 
   private static class StackTraceBuilder {
@@ -81,10 +81,61 @@ public class RunMojo extends AbstractSpoonMojo {
   @Parameter
   private boolean sequential;
 
+  /** Run all devices inside the build's JVM rather than starting a process per device. */
+  @Parameter
+  private boolean inProcess;
+
+  /** Install the APKs even if the same APKs are already installed on a device. */
+  @Parameter(defaultValue = "${spoon.forceInstall}")
+  private boolean forceInstall;
+
+  /** Maximum number of devices installing at once. Unlimited when zero. */
+  @Parameter
+  private int installConcurrency;
+
+  /** Maximum number of devices running tests at once. Unlimited when zero. */
+  @Parameter
+  private int instrumentConcurrency;
+
+  /** Maximum number of devices pulling output at once. Unlimited when zero. */
+  @Parameter
+  private int pullConcurrency;
+
+  /**
+   * Maximum number of devices processing output at once. Defaults to the number of processors.
+   * Unlimited when zero.
+   */
+  @Parameter
+  private int postProcessConcurrency = Runtime.getRuntime().availableProcessors();
+
+  /** Seconds a single test may run before it is stopped. Derived from previous runs when zero. */
+  @Parameter
+  private int testTimeout;
+
   /** Grant all runtime permissions during installation on Marshmallow and above devices */
   @Parameter
   private boolean grantAll;
 
+  /** Pull each test's screenshots and files as soon as it ends and delete them from the device. */
+  @Parameter
+  private boolean incrementalPull;
+
+  /** Maximum number of device log lines kept for each test. Unlimited when zero. */
+  @Parameter
+  private int maxLogLines;
+
+  /** Logcat filter specs applied on the device, such as {@code MyTag:D *:W}. */
+  @Parameter
+  private String logcatFilter;
+
+  /** Only send the app's device log messages from the device. Needs Nougat or above. */
+  @Parameter
+  private boolean logcatAppOnly;
+
+  /** File to which Spoon's own log is appended instead of the build output. */
+  @Parameter
+  private File logFile;
+
   /** Whether debug logging is enabled. */
   @Parameter
   private boolean debug;
@@ -171,7 +222,19 @@ public class RunMojo extends AbstractSpoonMojo {
         .useAllAttachedDevices()
         .setFailIfNoDeviceConnected(failIfNoDeviceConnected)
         .setSequential(sequential)
+        .setInProcess(inProcess)
+        .setForceInstall(forceInstall)
+        .setInstallConcurrency(installConcurrency)
+        .setInstrumentConcurrency(instrumentConcurrency)
+        .setPullConcurrency(pullConcurrency)
+        .setPostProcessConcurrency(postProcessConcurrency)
+        .setTestTimeout(testTimeout * 1000)
         .setGrantAll(grantAll)
+        .setIncrementalPull(incrementalPull)
+        .setMaxLogLines(maxLogLines)
+        .setLogcatFilter(logcatFilter)
+        .setLogcatAppOnly(logcatAppOnly)
+        .setLogFile(logFile)
         .build()
         .run();
 
@@ -0,0 +1,42 @@
+package com.squareup.spoon;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/** How an APK was put on a device and how long it took. */
+public final class ApkInstall {
+  private final String packageName;
+  private final boolean skipped;
+  private final long durationMillis;
+  private final long savedMillis;
+
+  ApkInstall(String packageName, boolean skipped, long durationMillis, long savedMillis) {
+    this.packageName = checkNotNull(packageName);
+    this.skipped = skipped;
+    this.durationMillis = durationMillis;
+    this.savedMillis = savedMillis;
+  }
+
+  /** Package name of the APK. */
+  public String getPackageName() {
+    return packageName;
+  }
+
+  /** {@code true} if the same APK was already installed so installation was skipped. */
+  public boolean isSkipped() {
+    return skipped;
+  }
+
+  /** Time spent installing, or checking the installed APK when skipped, in milliseconds. */
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /** When skipped, how long the install which was avoided last took, in milliseconds. */
+  public long getSavedMillis() {
+    return savedMillis;
+  }
+
+  @Override public String toString() {
+    return packageName + (skipped ? " skipped" : " installed") + " in " + durationMillis + "ms";
+  }
+}
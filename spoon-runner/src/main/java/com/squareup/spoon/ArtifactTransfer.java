@@ -0,0 +1,57 @@
+package com.squareup.spoon;
+
+/** How the screenshots and files of a device were copied to this machine. */
+public final class ArtifactTransfer {
+  private final boolean streamed;
+  private final int fileCount;
+  private final int skippedCount;
+  private final long bytes;
+  private final long durationMillis;
+
+  ArtifactTransfer(boolean streamed, int fileCount, int skippedCount, long bytes,
+      long durationMillis) {
+    this.streamed = streamed;
+    this.fileCount = fileCount;
+    this.skippedCount = skippedCount;
+    this.bytes = bytes;
+    this.durationMillis = durationMillis;
+  }
+
+  /**
+   * {@code true} if the files came as a single compressed archive, {@code false} if they were
+   * pulled one at a time.
+   */
+  public boolean isStreamed() {
+    return streamed;
+  }
+
+  /** Number of files copied. */
+  public int getFileCount() {
+    return fileCount;
+  }
+
+  /** Number of files which were not copied because they were already here from earlier. */
+  public int getSkippedCount() {
+    return skippedCount;
+  }
+
+  /** Bytes read from the device, which are compressed when {@link #isStreamed() streamed}. */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /** Time spent copying, in milliseconds. */
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /** Bytes read from the device per second. */
+  public long getBytesPerSecond() {
+    return durationMillis > 0 ? bytes * 1000 / durationMillis : bytes;
+  }
+
+  @Override public String toString() {
+    return fileCount + " files, " + bytes + " bytes " + (streamed ? "streamed" : "pulled") + " in "
+        + durationMillis + "ms" + (skippedCount > 0 ? ", " + skippedCount + " skipped" : "");
+  }
+}
@@ -0,0 +1,94 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Presents several consecutive instrumentation runs on one device to the wrapped listeners as a
+ * single run. Only the first {@code testRunStarted} is forwarded and {@code testRunEnded} is held
+ * back until {@link #finish()} is called.
+ */
+final class BatchedTestRunListener implements ITestRunListener {
+  private final List<ITestRunListener> listeners;
+  private final Map<String, String> runMetrics = new HashMap<String, String>();
+  private boolean started;
+  private long elapsedTime;
+
+  BatchedTestRunListener(List<ITestRunListener> listeners) {
+    this.listeners = checkNotNull(listeners);
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+    if (started) {
+      return;
+    }
+    started = true;
+    for (ITestRunListener listener : listeners) {
+      listener.testRunStarted(runName, testCount);
+    }
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+    for (ITestRunListener listener : listeners) {
+      listener.testStarted(test);
+    }
+  }
+
+  @Override public void testFailed(TestIdentifier test, String trace) {
+    for (ITestRunListener listener : listeners) {
+      listener.testFailed(test, trace);
+    }
+  }
+
+  @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+    for (ITestRunListener listener : listeners) {
+      listener.testAssumptionFailure(test, trace);
+    }
+  }
+
+  @Override public void testIgnored(TestIdentifier test) {
+    for (ITestRunListener listener : listeners) {
+      listener.testIgnored(test);
+    }
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    for (ITestRunListener listener : listeners) {
+      listener.testEnded(test, testMetrics);
+    }
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+    for (ITestRunListener listener : listeners) {
+      listener.testRunFailed(errorMessage);
+    }
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+    for (ITestRunListener listener : listeners) {
+      listener.testRunStopped(elapsedTime);
+    }
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    this.elapsedTime += elapsedTime;
+    if (runMetrics != null) {
+      this.runMetrics.putAll(runMetrics);
+    }
+  }
+
+  /** Forward a single {@code testRunEnded} covering every batch, if any batch was started. */
+  void finish() {
+    if (!started) {
+      return;
+    }
+    for (ITestRunListener listener : listeners) {
+      listener.testRunEnded(elapsedTime, runMetrics);
+    }
+  }
+}
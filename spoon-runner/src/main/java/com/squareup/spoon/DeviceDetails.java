@@ -8,6 +8,7 @@ import static com.google.common.base.Strings.emptyToNull;
 /** Device configuration and hardware information. */
 public final class DeviceDetails {
   public static final int UNKNOWN_API_LEVEL = 0;
+  public static final int LOLLIPOP_API_LEVEL = 21;
   public static final int MARSHMALLOW_API_LEVEL = 23;
 
   private final String model;
@@ -19,7 +20,7 @@ public final class DeviceDetails {
   private final boolean isEmulator;
   private final String avdName;
 
-  private DeviceDetails(String model, String manufacturer, String version, int apiLevel,
+  DeviceDetails(String model, String manufacturer, String version, int apiLevel,
       String language, String region, boolean emulator, String avdName) {
     this.model = model;
     this.manufacturer = manufacturer;
@@ -81,18 +82,22 @@ public final class DeviceDetails {
   }
 
   static DeviceDetails createForDevice(IDevice device) {
-    String manufacturer = emptyToNull(device.getProperty("ro.product.manufacturer"));
-    String model = emptyToNull(device.getProperty("ro.product.model"));
+    return DeviceSession.of(device).getDetails();
+  }
+
+  static DeviceDetails createForSession(DeviceSession session, IDevice device) {
+    String manufacturer = emptyToNull(session.getProperty("ro.product.manufacturer"));
+    String model = emptyToNull(session.getProperty("ro.product.model"));
     model = DeviceUtils.scrubModel(manufacturer, model);
 
-    String version = emptyToNull(device.getProperty("ro.build.version.release"));
-    String api = emptyToNull(device.getProperty("ro.build.version.sdk"));
+    String version = emptyToNull(session.getProperty("ro.build.version.release"));
+    String api = emptyToNull(session.getProperty("ro.build.version.sdk"));
     int apiLevel = api != null ? Integer.parseInt(api) : UNKNOWN_API_LEVEL;
 
-    String language = emptyToNull(device.getProperty("ro.product.locale.language"));
+    String language = emptyToNull(session.getProperty("ro.product.locale.language"));
     language = DeviceUtils.scrubLanguage(language);
 
-    String region = emptyToNull(device.getProperty("ro.product.locale.region"));
+    String region = emptyToNull(session.getProperty("ro.product.locale.region"));
 
     boolean emulator = device.isEmulator();
     String avdName = emptyToNull(device.getAvdName());
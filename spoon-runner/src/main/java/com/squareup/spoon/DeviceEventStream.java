@@ -0,0 +1,438 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.misc.StackTrace;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonUtils.COMPACT_GSON;
+
+/**
+ * Events streamed from a forked device process back to its parent as they happen.
+ * <p>
+ * Each event is a four byte big-endian length followed by that many bytes of compact JSON. The
+ * child writes them to its standard output, which is reserved for this purpose, and the parent
+ * folds them into its own {@link DeviceResult.Builder} as they arrive.
+ * <p>
+ * The child asks to enter each phase of its run with a {@link Type#PHASE_ENTER} event and waits
+ * for the parent to write a single byte to its standard input once the phase has a free slot.
+ */
+final class DeviceEventStream {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** Guards against reading garbage as a length and trying to allocate all of it. */
+  static final int MAX_EVENT_BYTES = 64 * 1024 * 1024;
+
+  enum Type {
+    TEST_RUN_STARTED, TEST_STARTED, TEST_FAILED, TEST_ASSUMPTION_FAILURE, TEST_IGNORED, TEST_ENDED,
+    TEST_RUN_FAILED, TEST_RUN_STOPPED, TEST_RUN_ENDED, DEVICE_DETAILS, APK_INSTALL, INSTALL_FAILED,
+    EXCEPTION, TRANSFER,
+    SCREENSHOT, ANIMATED_GIF, FILE, LOG, PHASE_ENTER, PHASE_EXIT, DONE
+  }
+
+  /** A single event. Only the fields relevant to its type are set. */
+  static final class Event {
+    final Type type;
+    String message;
+    int count;
+    long elapsed;
+    long started;
+    String className;
+    String methodName;
+    Map<String, String> metrics;
+    DeviceDetails details;
+    ApkInstall install;
+    StackTrace exception;
+    File file;
+    DeviceLogSlice logSlice;
+    DevicePhaseGate.Phase phase;
+    ArtifactTransfer transfer;
+
+    Event(Type type) {
+      this.type = checkNotNull(type);
+    }
+
+    Event test(String className, String methodName) {
+      this.className = className;
+      this.methodName = methodName;
+      return this;
+    }
+  }
+
+  /** Writes events from the device process. Also forwards test callbacks as they happen. */
+  static final class Writer implements ITestRunListener {
+    private final DataOutputStream out;
+    private boolean failed;
+
+    Writer(OutputStream out) {
+      this.out = new DataOutputStream(new BufferedOutputStream(checkNotNull(out)));
+    }
+
+    synchronized void write(Event event) {
+      if (failed) {
+        return;
+      }
+      byte[] bytes = COMPACT_GSON.toJson(event).getBytes(UTF_8);
+      try {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+      } catch (IOException e) {
+        // The parent has gone away. Keep running so that the device is left in a sane state.
+        failed = true;
+        System.err.println("Unable to write to parent process: " + e.getMessage());
+      }
+    }
+
+    @Override public void testRunStarted(String runName, int testCount) {
+      Event event = new Event(Type.TEST_RUN_STARTED);
+      event.message = runName;
+      event.count = testCount;
+      write(event);
+    }
+
+    @Override public void testStarted(TestIdentifier test) {
+      write(new Event(Type.TEST_STARTED).test(test.getClassName(), test.getTestName()));
+    }
+
+    @Override public void testFailed(TestIdentifier test, String trace) {
+      Event event = new Event(Type.TEST_FAILED).test(test.getClassName(), test.getTestName());
+      event.message = trace;
+      write(event);
+    }
+
+    @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+      Event event =
+          new Event(Type.TEST_ASSUMPTION_FAILURE).test(test.getClassName(), test.getTestName());
+      event.message = trace;
+      write(event);
+    }
+
+    @Override public void testIgnored(TestIdentifier test) {
+      write(new Event(Type.TEST_IGNORED).test(test.getClassName(), test.getTestName()));
+    }
+
+    @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+      Event event = new Event(Type.TEST_ENDED).test(test.getClassName(), test.getTestName());
+      event.metrics = testMetrics;
+      write(event);
+    }
+
+    @Override public void testRunFailed(String errorMessage) {
+      Event event = new Event(Type.TEST_RUN_FAILED);
+      event.message = errorMessage;
+      write(event);
+    }
+
+    @Override public void testRunStopped(long elapsedTime) {
+      Event event = new Event(Type.TEST_RUN_STOPPED);
+      event.elapsed = elapsedTime;
+      write(event);
+    }
+
+    @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+      Event event = new Event(Type.TEST_RUN_ENDED);
+      event.elapsed = elapsedTime;
+      event.metrics = runMetrics;
+      write(event);
+    }
+
+    /** @param started When the device process began its run, in milliseconds since the epoch. */
+    void deviceDetails(DeviceDetails details, long started) {
+      Event event = new Event(Type.DEVICE_DETAILS);
+      event.details = details;
+      event.started = started;
+      write(event);
+    }
+
+    void apkInstall(ApkInstall install) {
+      Event event = new Event(Type.APK_INSTALL);
+      event.install = install;
+      write(event);
+    }
+
+    void installFailed(String message) {
+      Event event = new Event(Type.INSTALL_FAILED);
+      event.message = message;
+      write(event);
+    }
+
+    void exception(Throwable throwable) {
+      Event event = new Event(Type.EXCEPTION);
+      event.exception = StackTrace.from(throwable);
+      write(event);
+    }
+
+    void exception(String message) {
+      Event event = new Event(Type.EXCEPTION);
+      event.exception = StackTrace.from(message);
+      write(event);
+    }
+
+    /**
+     * A gate which asks the parent for permission to enter each phase and waits for it to be
+     * granted on {@code grants}.
+     */
+    DevicePhaseGate remoteGate(final InputStream grants) {
+      checkNotNull(grants);
+      return new DevicePhaseGate() {
+        @Override public void enter(Phase phase) {
+          Event event = new Event(Type.PHASE_ENTER);
+          event.phase = phase;
+          write(event);
+          int granted;
+          try {
+            granted = grants.read();
+          } catch (IOException e) {
+            granted = -1;
+          }
+          if (granted == -1) {
+            throw new IllegalStateException("Parent process went away before granting " + phase);
+          }
+        }
+
+        @Override public void exit(Phase phase) {
+          Event event = new Event(Type.PHASE_EXIT);
+          event.phase = phase;
+          write(event);
+        }
+      };
+    }
+
+    /**
+     * Write how the artifacts in {@code result} were pulled and which tests they were associated
+     * with after they ran, followed by the event marking the end of the stream.
+     */
+    void finish(DeviceResult result) {
+      if (result.getTransfer() != null) {
+        Event event = new Event(Type.TRANSFER);
+        event.transfer = result.getTransfer();
+        write(event);
+      }
+      for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
+        String className = entry.getKey().getClassName();
+        String methodName = entry.getKey().getMethodName();
+        DeviceTestResult testResult = entry.getValue();
+        for (File screenshot : testResult.getScreenshots()) {
+          Event event = new Event(Type.SCREENSHOT).test(className, methodName);
+          event.file = screenshot;
+          write(event);
+        }
+        if (testResult.getAnimatedGif() != null) {
+          Event event = new Event(Type.ANIMATED_GIF).test(className, methodName);
+          event.file = testResult.getAnimatedGif();
+          write(event);
+        }
+        for (File file : testResult.getFiles()) {
+          Event event = new Event(Type.FILE).test(className, methodName);
+          event.file = file;
+          write(event);
+        }
+        if (testResult.getLogSlice() != null) {
+          Event event = new Event(Type.LOG).test(className, methodName);
+          event.logSlice = testResult.getLogSlice();
+          write(event);
+        }
+      }
+      write(new Event(Type.DONE));
+    }
+  }
+
+  /** Folds events from a device process into a result as they are read. */
+  static final class Reader {
+    private final DeviceResult.Builder result;
+    private final List<ITestRunListener> listeners;
+    private final DevicePhaseGate gate;
+    private final OutputStream grants;
+    /** Phases the device has entered and not yet exited. */
+    private final List<DevicePhaseGate.Phase> entered = new ArrayList<DevicePhaseGate.Phase>();
+
+    Reader(DeviceResult.Builder result, List<ITestRunListener> listeners) {
+      this(result, listeners, DevicePhaseGate.UNLIMITED, null);
+    }
+
+    /**
+     * @param listeners Receive the test callbacks. Should include a {@link SpoonTestRunListener}
+     * for {@code result}.
+     * @param gate Decides when the device may enter each phase.
+     * @param grants Where to tell the device that it may enter a phase.
+     */
+    Reader(DeviceResult.Builder result, List<ITestRunListener> listeners, DevicePhaseGate gate,
+        OutputStream grants) {
+      this.result = checkNotNull(result);
+      this.listeners = checkNotNull(listeners);
+      this.gate = checkNotNull(gate);
+      this.grants = grants;
+    }
+
+    /**
+     * Read events until the end of {@code in}.
+     *
+     * @return {@code true} if the stream was complete, {@code false} if it ended early.
+     */
+    boolean readAll(InputStream in) throws IOException {
+      try {
+        return readEvents(new DataInputStream(in));
+      } finally {
+        // Don't let a device which died part way through a phase hold it forever.
+        for (DevicePhaseGate.Phase phase : entered) {
+          gate.exit(phase);
+        }
+        entered.clear();
+      }
+    }
+
+    private boolean readEvents(DataInputStream data) throws IOException {
+      while (true) {
+        int length;
+        try {
+          length = data.readInt();
+        } catch (EOFException e) {
+          return false;
+        }
+        if (length < 0 || length > MAX_EVENT_BYTES) {
+          throw new IOException("Corrupt event stream, length " + length);
+        }
+        byte[] bytes = new byte[length];
+        try {
+          data.readFully(bytes);
+        } catch (EOFException e) {
+          return false;
+        }
+        Event event = COMPACT_GSON.fromJson(new String(bytes, UTF_8), Event.class);
+        if (event.type == Type.DONE) {
+          return true;
+        }
+        apply(event);
+      }
+    }
+
+    private void apply(Event event) throws IOException {
+      TestIdentifier test = event.className != null
+          ? new TestIdentifier(event.className, event.methodName) : null;
+      switch (event.type) {
+        case TEST_RUN_STARTED:
+          for (ITestRunListener listener : listeners) {
+            listener.testRunStarted(event.message, event.count);
+          }
+          break;
+        case TEST_STARTED:
+          for (ITestRunListener listener : listeners) {
+            listener.testStarted(test);
+          }
+          break;
+        case TEST_FAILED:
+          for (ITestRunListener listener : listeners) {
+            listener.testFailed(test, event.message);
+          }
+          break;
+        case TEST_ASSUMPTION_FAILURE:
+          for (ITestRunListener listener : listeners) {
+            listener.testAssumptionFailure(test, event.message);
+          }
+          break;
+        case TEST_IGNORED:
+          for (ITestRunListener listener : listeners) {
+            listener.testIgnored(test);
+          }
+          break;
+        case TEST_ENDED:
+          for (ITestRunListener listener : listeners) {
+            listener.testEnded(test, event.metrics);
+          }
+          break;
+        case TEST_RUN_FAILED:
+          for (ITestRunListener listener : listeners) {
+            listener.testRunFailed(event.message);
+          }
+          break;
+        case TEST_RUN_STOPPED:
+          for (ITestRunListener listener : listeners) {
+            listener.testRunStopped(event.elapsed);
+          }
+          break;
+        case TEST_RUN_ENDED:
+          for (ITestRunListener listener : listeners) {
+            listener.testRunEnded(event.elapsed, event.metrics);
+          }
+          break;
+        case DEVICE_DETAILS:
+          result.setDeviceDetails(event.details);
+          // The parent only launched the process, which may have taken a while to get going.
+          result.setStarted(event.started);
+          break;
+        case APK_INSTALL:
+          result.addInstall(event.install);
+          break;
+        case INSTALL_FAILED:
+          result.markInstallAsFailed(event.message);
+          break;
+        case EXCEPTION:
+          result.addException(event.exception);
+          break;
+        case TRANSFER:
+          result.setTransfer(event.transfer);
+          break;
+        case SCREENSHOT:
+          testResult(event).addScreenshot(event.file);
+          break;
+        case ANIMATED_GIF:
+          testResult(event).setAnimatedGif(event.file);
+          break;
+        case FILE:
+          testResult(event).addFile(event.file);
+          break;
+        case LOG:
+          testResult(event).setLogSlice(event.logSlice);
+          break;
+        case PHASE_ENTER:
+          try {
+            gate.enter(event.phase);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + event.phase);
+          }
+          entered.add(event.phase);
+          if (grants != null) {
+            grants.write(1);
+            grants.flush();
+          }
+          break;
+        case PHASE_EXIT:
+          if (entered.remove(event.phase)) {
+            gate.exit(event.phase);
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unknown event " + event.type);
+      }
+    }
+
+    private DeviceTestResult.Builder testResult(Event event) {
+      DeviceTest test = new DeviceTest(event.className, event.methodName);
+      DeviceTestResult.Builder builder = result.getMethodResultBuilder(test);
+      if (builder == null) {
+        // An artifact for a test the device never reported, which should not happen.
+        builder = new DeviceTestResult.Builder();
+        result.addTestResultBuilder(test, builder);
+      }
+      return builder;
+    }
+  }
+
+  private DeviceEventStream() {
+    // No instances.
+  }
+}
@@ -0,0 +1,76 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Runs a command on a device through the {@code exec:} service of the ADB server and hands back
+ * its standard output as it arrives. Unlike {@link IDevice#executeShellCommand} the output is
+ * neither buffered nor passed through a terminal, so binary output like an archive survives.
+ */
+final class DeviceExec {
+  /** The {@code exec:} service was added to adbd in Lollipop. */
+  static final int MIN_API_LEVEL = 21;
+
+  /** Start {@code command} on {@code device}. Closing the returned stream ends the command. */
+  static InputStream open(IDevice device, String command, int timeoutMillis) throws IOException {
+    return open(AndroidDebugBridge.getSocketAddress(), device.getSerialNumber(), command,
+        timeoutMillis);
+  }
+
+  static InputStream open(InetSocketAddress adb, String serial, String command,
+      int timeoutMillis) throws IOException {
+    Socket socket = new Socket();
+    boolean opened = false;
+    try {
+      socket.connect(adb, timeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      OutputStream out = socket.getOutputStream();
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      request(out, in, "host:transport:" + serial);
+      request(out, in, "exec:" + command);
+      opened = true;
+      return in;
+    } finally {
+      if (!opened) {
+        socket.close();
+      }
+    }
+  }
+
+  private static void request(OutputStream out, InputStream in, String request)
+      throws IOException {
+    // Requests are prefixed with their length as four hex digits.
+    byte[] payload = request.getBytes(Charsets.UTF_8);
+    out.write(String.format("%04X", payload.length).getBytes(Charsets.UTF_8));
+    out.write(payload);
+    out.flush();
+    String status = read(in, 4);
+    if ("OKAY".equals(status)) {
+      return;
+    }
+    if ("FAIL".equals(status)) {
+      int length = Integer.parseInt(read(in, 4), 16);
+      throw new IOException("ADB refused '" + request + "': " + read(in, length));
+    }
+    throw new IOException("Unexpected ADB response '" + status + "' to '" + request + "'.");
+  }
+
+  private static String read(InputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    ByteStreams.readFully(in, bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private DeviceExec() {
+    // No instances.
+  }
+}
@@ -0,0 +1,151 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * The whole device log of a run in one compressed file, along with an index of where the
+ * messages of each test are in it. The file is a series of gzip members, each of whole lines in
+ * the {@link DeviceLogFile} format. A new member starts whenever a test starts or ends and
+ * whenever one has {@link #BLOCK_SIZE} bytes, so a test's messages can be read by decompressing
+ * only its own members. Together they are an ordinary gzip file which {@code zcat} reads whole.
+ * <p>
+ * The index has one tab separated line per test: class, method, process id and the start and end
+ * offsets of its {@link DeviceLogSlice slice}. The report's log pages are rendered from it.
+ */
+public final class DeviceLogArchive implements Closeable {
+  static final String FILE_NAME = "logcat.gz";
+  static final String INDEX_NAME = "logcat.index";
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  private final File file;
+  private final CountingOutputStream out;
+  private final Writer index;
+  private OutputStream block;
+  private int blockBytes;
+
+  DeviceLogArchive(File directory) throws IOException {
+    directory.mkdirs();
+    file = new File(directory, FILE_NAME);
+    out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    index = new OutputStreamWriter(new FileOutputStream(new File(directory, INDEX_NAME)),
+        Charsets.UTF_8);
+  }
+
+  void write(LogCatMessage message) throws IOException {
+    byte[] line = (DeviceLogFile.toLine(message) + '\n').getBytes(Charsets.UTF_8);
+    if (block == null) {
+      // Closing a member must not close the file.
+      block = new GZIPOutputStream(new FilterOutputStream(out) {
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+          out.write(bytes, offset, length);
+        }
+
+        @Override public void close() {
+        }
+      });
+    }
+    block.write(line);
+    blockBytes += line.length;
+    if (blockBytes >= BLOCK_SIZE) {
+      endBlock();
+    }
+  }
+
+  /** Start a slice for a test's messages and return its offset. */
+  long startSlice() throws IOException {
+    endBlock();
+    return out.getCount();
+  }
+
+  /** End the slice of {@code test} which was started at {@code start} and add it to the index. */
+  DeviceLogSlice endSlice(DeviceTest test, long start, int pid) throws IOException {
+    endBlock();
+    DeviceLogSlice slice = new DeviceLogSlice(file, start, out.getCount(), pid);
+    index.write(test.getClassName() + '\t' + test.getMethodName() + '\t' + pid + '\t'
+        + slice.getStart() + '\t' + slice.getEnd() + '\n');
+    index.flush();
+    return slice;
+  }
+
+  private void endBlock() throws IOException {
+    if (block != null) {
+      block.close();
+      block = null;
+      blockBytes = 0;
+    }
+  }
+
+  @Override public void close() throws IOException {
+    try {
+      endBlock();
+      out.close();
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * Add the messages in {@code slice} to {@code store}. Only those of the test's own process are
+   * added unless {@code allProcesses} is set.
+   */
+  static void read(DeviceLogSlice slice, DeviceLogStore store, boolean allProcesses)
+      throws IOException {
+    if (slice.getEnd() == slice.getStart()) {
+      return;
+    }
+    InputStream in = new FileInputStream(slice.getArchive());
+    try {
+      ByteStreams.skipFully(in, slice.getStart());
+      InputStream members =
+          new GZIPInputStream(ByteStreams.limit(in, slice.getEnd() - slice.getStart()));
+      DeviceLogFile.read(members, store, allProcesses ? DeviceLogcat.ALL_PROCESSES
+          : slice.getPid());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The slice of each test in the index in {@code directory}, in the order they ran, or none if
+   * the device never got as far as logging.
+   */
+  public static Map<DeviceTest, DeviceLogSlice> readIndex(File directory) throws IOException {
+    File archive = new File(directory, FILE_NAME);
+    File index = new File(directory, INDEX_NAME);
+    Map<DeviceTest, DeviceLogSlice> slices = new LinkedHashMap<DeviceTest, DeviceLogSlice>();
+    if (!index.exists()) {
+      return slices;
+    }
+    for (String line : Files.readLines(index, Charsets.UTF_8)) {
+      String[] parts = line.split("\t");
+      try {
+        slices.put(new DeviceTest(parts[0], parts[1]), new DeviceLogSlice(archive,
+            Long.parseLong(parts[3]), Long.parseLong(parts[4]), Integer.parseInt(parts[2])));
+      } catch (RuntimeException e) {
+        logError("Ignoring malformed log index line in %s: %s", directory, line);
+      }
+    }
+    return slices;
+  }
+}
@@ -0,0 +1,148 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * The log of a single test on disk. Each message is one line of tab separated fields: priority
+ * letter, pid, tid, timestamp, application, tag and message. Tabs, newlines and backslashes inside
+ * the text fields are escaped so a log can be read back a line at a time.
+ */
+final class DeviceLogFile {
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final String EXTENSION = ".log";
+
+  static String toLine(LogCatMessage message) {
+    return String.valueOf(message.getLogLevel().getPriorityLetter()) + '\t'
+        + message.getPid() + '\t'
+        + message.getTid() + '\t'
+        + message.getTimestamp() + '\t'
+        + escape(message.getAppName()) + '\t'
+        + escape(message.getTag()) + '\t'
+        + escape(message.getMessage());
+  }
+
+  /**
+   * Add every message in {@code file} to {@code store}, skipping lines which are malformed.
+   * Messages are stored without ever creating a {@link LogCatMessage}.
+   */
+  static void read(File file, DeviceLogStore store) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      read(in, store, DeviceLogcat.ALL_PROCESSES);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Add the messages in {@code in} from process {@code pid}, or from every process if it is
+   * {@link DeviceLogcat#ALL_PROCESSES}, to {@code store}.
+   */
+  static void read(InputStream in, DeviceLogStore store, int pid) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      add(line, store, pid);
+    }
+  }
+
+  /** Add a line written by {@link #toLine} to {@code store}, unless it is malformed. */
+  private static void add(String line, DeviceLogStore store, int pid) {
+    String[] parts = line.split("\t", -1);
+    if (parts.length != 7 || parts[0].length() != 1) {
+      return;
+    }
+    if (pid != DeviceLogcat.ALL_PROCESSES && !parts[1].equals(String.valueOf(pid))) {
+      return;
+    }
+    LogLevel level = LogLevel.getByLetter(parts[0].charAt(0));
+    long timestamp = DeviceLogStore.parseTimestamp(parts[3]);
+    if (level == null || timestamp == -1) {
+      return;
+    }
+    try {
+      store.add(level, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), timestamp,
+          unescape(parts[4]), unescape(parts[5]), unescape(parts[6]));
+    } catch (NumberFormatException ignored) {
+    }
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    StringBuilder builder = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String replacement;
+      switch (c) {
+        case '\\':
+          replacement = "\\\\";
+          break;
+        case '\t':
+          replacement = "\\t";
+          break;
+        case '\n':
+          replacement = "\\n";
+          break;
+        case '\r':
+          replacement = "\\r";
+          break;
+        default:
+          replacement = null;
+      }
+      if (replacement != null && builder == null) {
+        builder = new StringBuilder(value.length() + 16).append(value, 0, i);
+      }
+      if (builder != null) {
+        if (replacement != null) {
+          builder.append(replacement);
+        } else {
+          builder.append(c);
+        }
+      }
+    }
+    return builder == null ? value : builder.toString();
+  }
+
+  private static String unescape(String value) {
+    if (value.indexOf('\\') == -1) {
+      return value;
+    }
+    StringBuilder builder = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c != '\\' || i == value.length() - 1) {
+        builder.append(c);
+        continue;
+      }
+      char escaped = value.charAt(++i);
+      switch (escaped) {
+        case 't':
+          builder.append('\t');
+          break;
+        case 'n':
+          builder.append('\n');
+          break;
+        case 'r':
+          builder.append('\r');
+          break;
+        default:
+          builder.append(escaped);
+      }
+    }
+    return builder.toString();
+  }
+
+  private DeviceLogFile() {
+    // No instances.
+  }
+}
@@ -0,0 +1,85 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Where one test's share of a device's {@link DeviceLogArchive log archive} is: the compressed
+ * bytes from {@code start} up to {@code end}, which are whole blocks that can be decompressed on
+ * their own.
+ */
+public final class DeviceLogSlice {
+  private final File archive;
+  private final long start;
+  private final long end;
+  private final int pid;
+
+  DeviceLogSlice(File archive, long start, long end, int pid) {
+    checkArgument(start >= 0 && end >= start, "Invalid slice [%s, %s)", start, end);
+    this.archive = checkNotNull(archive);
+    this.start = start;
+    this.end = end;
+    this.pid = pid;
+  }
+
+  public File getArchive() {
+    return archive;
+  }
+
+  /** Offset of the slice's first compressed byte. */
+  public long getStart() {
+    return start;
+  }
+
+  /** Offset just past the slice's last compressed byte. */
+  public long getEnd() {
+    return end;
+  }
+
+  /** Process which ran the test. The slice also has messages of every other process. */
+  public int getPid() {
+    return pid;
+  }
+
+  /**
+   * Replace the contents of {@code store} with the messages the test's process logged during the
+   * test. The store is left empty if the archive can't be read.
+   */
+  public void read(DeviceLogStore store) {
+    store.clear();
+    try {
+      DeviceLogArchive.read(this, store, false);
+    } catch (IOException e) {
+      logError("Unable to read %s: %s", this, e.getMessage());
+      store.clear();
+    }
+  }
+
+  @Override public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    DeviceLogSlice that = (DeviceLogSlice) o;
+    if (start != that.start) return false;
+    if (end != that.end) return false;
+    if (pid != that.pid) return false;
+    if (!archive.equals(that.archive)) return false;
+    return true;
+  }
+
+  @Override public int hashCode() {
+    int result = archive.hashCode();
+    result = 31 * result + (int) (start ^ (start >>> 32));
+    result = 31 * result + (int) (end ^ (end >>> 32));
+    result = 31 * result + pid;
+    return result;
+  }
+
+  @Override public String toString() {
+    return archive + "[" + start + ", " + end + ")";
+  }
+}
@@ -0,0 +1,206 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Device log messages stored by column rather than as one object per message. Tags and
+ * application names are interned, the numeric fields are kept in primitive arrays and the text of
+ * every message shares a single UTF-8 byte array. A store can be cleared and refilled so that
+ * one is enough for all the tests of a device.
+ */
+public final class DeviceLogStore {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final LogLevel[] LEVELS = LogLevel.values();
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final List<String> strings = new ArrayList<String>();
+  private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+  private int size;
+  private byte[] levels = new byte[INITIAL_CAPACITY];
+  private int[] pids = new int[INITIAL_CAPACITY];
+  private int[] tids = new int[INITIAL_CAPACITY];
+  private long[] timestamps = new long[INITIAL_CAPACITY];
+  private int[] appNames = new int[INITIAL_CAPACITY];
+  private int[] tags = new int[INITIAL_CAPACITY];
+  /** Where the text of each message ends in {@link #text}. It starts where the previous ends. */
+  private int[] textEnds = new int[INITIAL_CAPACITY];
+  private byte[] text = new byte[INITIAL_CAPACITY * 64];
+
+  public int size() {
+    return size;
+  }
+
+  public void add(LogCatMessage message) {
+    add(message.getLogLevel(), message.getPid(), message.getTid(),
+        parseTimestamp(String.valueOf(message.getTimestamp())), message.getAppName(),
+        message.getTag(), message.getMessage());
+  }
+
+  /** Add a message whose timestamp was packed by {@link #parseTimestamp}. */
+  void add(LogLevel level, int pid, int tid, long timestamp, String appName, String tag,
+      String message) {
+    checkNotNull(level);
+    if (size == levels.length) {
+      int capacity = size * 2;
+      levels = Arrays.copyOf(levels, capacity);
+      pids = Arrays.copyOf(pids, capacity);
+      tids = Arrays.copyOf(tids, capacity);
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      appNames = Arrays.copyOf(appNames, capacity);
+      tags = Arrays.copyOf(tags, capacity);
+      textEnds = Arrays.copyOf(textEnds, capacity);
+    }
+    byte[] bytes = (message == null ? "" : message).getBytes(UTF_8);
+    int start = textStart(size);
+    if (start + bytes.length > text.length) {
+      text = Arrays.copyOf(text, Math.max(text.length * 2, start + bytes.length));
+    }
+    System.arraycopy(bytes, 0, text, start, bytes.length);
+
+    levels[size] = (byte) level.ordinal();
+    pids[size] = pid;
+    tids[size] = tid;
+    timestamps[size] = timestamp;
+    appNames[size] = intern(appName);
+    tags[size] = intern(tag);
+    textEnds[size] = start + bytes.length;
+    size++;
+  }
+
+  /** Remove every message while keeping the space they took for the next ones. */
+  public void clear() {
+    size = 0;
+    strings.clear();
+    stringIds.clear();
+  }
+
+  public LogLevel getLevel(int index) {
+    checkElementIndex(index, size);
+    return LEVELS[levels[index]];
+  }
+
+  public int getPid(int index) {
+    checkElementIndex(index, size);
+    return pids[index];
+  }
+
+  public int getTid(int index) {
+    checkElementIndex(index, size);
+    return tids[index];
+  }
+
+  /** The timestamp as logcat prints it, such as {@code 10-18 12:34:56.789}. */
+  public String getTimestamp(int index) {
+    checkElementIndex(index, size);
+    return formatTimestamp(timestamps[index]);
+  }
+
+  /** Format a timestamp packed by {@link #parseTimestamp}, or return an empty string for -1. */
+  static String formatTimestamp(long packed) {
+    if (packed < 0) {
+      return "";
+    }
+    int millis = (int) (packed % 1000);
+    packed /= 1000;
+    int seconds = (int) (packed % 60);
+    packed /= 60;
+    int minutes = (int) (packed % 60);
+    packed /= 60;
+    int hours = (int) (packed % 24);
+    packed /= 24;
+    int day = (int) (packed % 32);
+    int month = (int) (packed / 32);
+    return String.format("%02d-%02d %02d:%02d:%02d.%03d", month, day, hours, minutes, seconds,
+        millis);
+  }
+
+  public String getAppName(int index) {
+    checkElementIndex(index, size);
+    return strings.get(appNames[index]);
+  }
+
+  public String getTag(int index) {
+    checkElementIndex(index, size);
+    return strings.get(tags[index]);
+  }
+
+  public String getMessage(int index) {
+    checkElementIndex(index, size);
+    int start = textStart(index);
+    return new String(text, start, textEnds[index] - start, UTF_8);
+  }
+
+  /** A ddmlib copy of a message, for code which needs one. */
+  public LogCatMessage get(int index) {
+    String timestamp = getTimestamp(index);
+    LogCatHeader header = new LogCatHeader(getLevel(index), getPid(index), getTid(index),
+        getAppName(index), getTag(index), timestamp.isEmpty() ? LogCatTimestamp.ZERO
+            : LogCatTimestamp.fromString(timestamp));
+    return new LogCatMessage(header, getMessage(index));
+  }
+
+  private int textStart(int index) {
+    return index == 0 ? 0 : textEnds[index - 1];
+  }
+
+  private int intern(String value) {
+    if (value == null) {
+      value = "";
+    }
+    Integer id = stringIds.get(value);
+    if (id == null) {
+      id = strings.size();
+      strings.add(value);
+      stringIds.put(value, id);
+    }
+    return id;
+  }
+
+  /**
+   * Pack a timestamp in logcat's {@code MM-dd HH:mm:ss.SSS} form into a single number, or return
+   * {@code -1} if it is not in that form.
+   */
+  static long parseTimestamp(String timestamp) {
+    if (timestamp.length() != 18
+        || timestamp.charAt(2) != '-' || timestamp.charAt(5) != ' '
+        || timestamp.charAt(8) != ':' || timestamp.charAt(11) != ':'
+        || timestamp.charAt(14) != '.') {
+      return -1;
+    }
+    int month = digits(timestamp, 0, 2);
+    int day = digits(timestamp, 3, 2);
+    int hours = digits(timestamp, 6, 2);
+    int minutes = digits(timestamp, 9, 2);
+    int seconds = digits(timestamp, 12, 2);
+    int millis = digits(timestamp, 15, 3);
+    if (month < 0 || day < 0 || day > 31 || hours < 0 || hours > 23 || minutes < 0
+        || minutes > 59 || seconds < 0 || seconds > 59 || millis < 0) {
+      return -1;
+    }
+    return ((((month * 32L + day) * 24 + hours) * 60 + minutes) * 60 + seconds) * 1000 + millis;
+  }
+
+  private static int digits(String value, int start, int count) {
+    int result = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+}
@@ -0,0 +1,180 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.logcat.LogCatListener;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatMessageParser;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Streams the device log to a listener, like ddmlib's {@code LogCatReceiverTask}, except that
+ * logcat can be {@link #scope scoped} to a single process while it runs. Scoping stops the running
+ * logcat and starts another from the time of the last message seen, so messages logged in between
+ * are not lost, and ones which were already delivered are skipped.
+ */
+final class DeviceLogcat implements Runnable {
+  /** Scoping to a process needs {@code logcat --pid}, which arrived in Nougat. */
+  static final int SCOPE_API_LEVEL = 24;
+  static final int ALL_PROCESSES = -1;
+  /** Logcat filter specs, such as {@code MyTag:D *:W}, which are safe to pass to the shell. */
+  private static final Pattern FILTER = Pattern.compile("([A-Za-z0-9_.$*-]+:[VDIWEFS]\\s*)+");
+
+  private final IDevice device;
+  private final LogCatListener listener;
+  private final String filter;
+  private final LogCatMessageParser parser = new LogCatMessageParser();
+
+  // Guarded by this.
+  private int pid = ALL_PROCESSES;
+  private String since;
+  private Receiver receiver;
+  private boolean stopped;
+
+  // Only touched by the thread running logcat.
+  private long lastTimestamp = -1;
+  private final Set<String> lastMessages = new HashSet<String>();
+  private long replayUntil = -1;
+
+  /**
+   * @param filter Logcat filter specs applied on the device, or {@code null} for everything. The
+   * test runner's own messages are always kept so that the log can be split by test.
+   */
+  DeviceLogcat(IDevice device, LogCatListener listener, String filter) {
+    checkArgument(filter == null || isValidFilter(filter), "Invalid logcat filter: %s", filter);
+    this.device = checkNotNull(device);
+    this.listener = checkNotNull(listener);
+    this.filter = filter;
+  }
+
+  static boolean isValidFilter(String filter) {
+    return FILTER.matcher(filter.trim()).matches();
+  }
+
+  /** The logcat command for the current scope. */
+  synchronized String command() {
+    StringBuilder command = new StringBuilder("logcat -v long");
+    if (since != null) {
+      command.append(" -T '").append(since).append('\'');
+    }
+    if (pid != ALL_PROCESSES) {
+      command.append(" --pid=").append(pid);
+    }
+    if (filter != null) {
+      command.append(" TestRunner:V ").append(filter.trim());
+    }
+    return command.toString();
+  }
+
+  /**
+   * Only stream the messages of process {@code pid}, or of every process if it is
+   * {@link #ALL_PROCESSES}. Called from any thread, including from the listener.
+   */
+  synchronized void scope(int pid) {
+    if (this.pid == pid || stopped) {
+      return;
+    }
+    this.pid = pid;
+    if (receiver != null) {
+      receiver.cancelled = true;
+    }
+  }
+
+  synchronized void stop() {
+    stopped = true;
+    if (receiver != null) {
+      receiver.cancelled = true;
+    }
+  }
+
+  @Override public void run() {
+    while (true) {
+      Receiver current;
+      String command;
+      synchronized (this) {
+        if (stopped) {
+          return;
+        }
+        current = receiver = new Receiver();
+        command = command();
+      }
+      try {
+        device.executeShellCommand(command, current, 0, TimeUnit.MILLISECONDS);
+      } catch (Exception e) {
+        synchronized (this) {
+          if (!stopped) {
+            logError("[%s] Device log stopped: %s", device.getSerialNumber(), e.getMessage());
+          }
+        }
+        return;
+      }
+      synchronized (this) {
+        if (!current.cancelled || stopped) {
+          return; // Logcat exited on its own, so the device went away.
+        }
+        // Start the next logcat where this one left off.
+        if (lastTimestamp != -1) {
+          since = DeviceLogStore.formatTimestamp(lastTimestamp);
+          replayUntil = lastTimestamp;
+        }
+      }
+    }
+  }
+
+  private void deliver(List<LogCatMessage> messages) {
+    List<LogCatMessage> fresh = new ArrayList<LogCatMessage>(messages.size());
+    for (LogCatMessage message : messages) {
+      long timestamp = DeviceLogStore.parseTimestamp(String.valueOf(message.getTimestamp()));
+      String key = message.getPid() + ":" + message.getTid() + ":" + message.getTag() + ":"
+          + message.getMessage();
+      if (replayUntil != -1 && timestamp != -1) {
+        // A restarted logcat begins with messages the last one already delivered.
+        if (timestamp < replayUntil
+            || timestamp == replayUntil && lastMessages.contains(key)) {
+          continue;
+        }
+        if (timestamp > replayUntil) {
+          replayUntil = -1;
+        }
+      }
+      if (timestamp != -1) {
+        if (timestamp != lastTimestamp) {
+          lastTimestamp = timestamp;
+          lastMessages.clear();
+        }
+        lastMessages.add(key);
+      }
+      fresh.add(message);
+    }
+    if (!fresh.isEmpty()) {
+      listener.log(fresh);
+    }
+  }
+
+  private final class Receiver extends MultiLineReceiver {
+    volatile boolean cancelled;
+
+    Receiver() {
+      setTrimLine(false);
+    }
+
+    @Override public void processNewLines(String[] lines) {
+      if (!cancelled) {
+        deliver(parser.processLogLines(lines, device));
+      }
+    }
+
+    @Override public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.squareup.spoon;
+
+/** Controls when a device may enter each phase of its run. */
+interface DevicePhaseGate {
+  /** The phases of a device run in the order they happen. */
+  enum Phase {
+    /** Installing the APKs and granting permissions. */
+    INSTALL,
+    /** Running the instrumentation. */
+    INSTRUMENT,
+    /** Pulling screenshots, files and coverage from the device. */
+    PULL,
+    /** Turning what was pulled into the output, such as encoding animated GIFs. */
+    POST_PROCESS
+  }
+
+  /** Lets every device into every phase immediately. */
+  DevicePhaseGate UNLIMITED = new DevicePhaseGate() {
+    @Override public void enter(Phase phase) {
+    }
+
+    @Override public void exit(Phase phase) {
+    }
+  };
+
+  /** Block until the device may enter {@code phase}. Must be followed by {@link #exit}. */
+  void enter(Phase phase) throws InterruptedException;
+
+  void exit(Phase phase);
+}
@@ -19,20 +19,29 @@ public final class DeviceResult {
   private final boolean installFailed;
   private final String installMessage;
   private final DeviceDetails deviceDetails;
+  private final List<ApkInstall> installs;
+  private final List<Speculation> speculations;
+  private final ArtifactTransfer transfer;
   private final Map<DeviceTest, DeviceTestResult> testResults;
   private final long started;
   private final long duration;
+  private final long durationMillis;
   private final List<StackTrace> exceptions;
 
   private DeviceResult(boolean installFailed, String installMessage, DeviceDetails deviceDetails,
+      List<ApkInstall> installs, List<Speculation> speculations, ArtifactTransfer transfer,
       Map<DeviceTest, DeviceTestResult> testResults, long started, long duration,
-      List<StackTrace> exceptions) {
+      long durationMillis, List<StackTrace> exceptions) {
     this.installFailed = installFailed;
     this.installMessage = installMessage;
     this.deviceDetails = deviceDetails;
+    this.installs = unmodifiableList(new ArrayList<ApkInstall>(installs));
+    this.speculations = unmodifiableList(new ArrayList<Speculation>(speculations));
+    this.transfer = transfer;
     this.started = started;
     this.testResults = unmodifiableMap(new TreeMap<DeviceTest, DeviceTestResult>(testResults));
     this.duration = duration;
+    this.durationMillis = durationMillis;
     this.exceptions = unmodifiableList(new ArrayList<StackTrace>(exceptions));
   }
 
@@ -60,6 +69,24 @@ public final class DeviceResult {
     return deviceDetails;
   }
 
+  /** How each APK was installed, or not, on this device. */
+  public List<ApkInstall> getInstalls() {
+    return installs;
+  }
+
+  /**
+   * Tests which ran both on this device and on another because one of them was falling behind.
+   * Only the result from the device which finished a test first counts.
+   */
+  public List<Speculation> getSpeculations() {
+    return speculations;
+  }
+
+  /** How screenshots and files were copied from the device, or {@code null} if they were not. */
+  public ArtifactTransfer getTransfer() {
+    return transfer;
+  }
+
   /** Individual test results. */
   public Map<DeviceTest, DeviceTestResult> getTestResults() {
     return testResults;
@@ -75,6 +102,11 @@ public final class DeviceResult {
     return duration;
   }
 
+  /** Length of execution of all tests on device, in milliseconds, or {@code -1} if none ran. */
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
   /** Exceptions that occurred during execution. */
   public List<StackTrace> getExceptions() {
     return exceptions;
@@ -86,9 +118,13 @@ public final class DeviceResult {
     private final Map<DeviceTest, DeviceTestResult.Builder> testResultBuilders =
         new HashMap<DeviceTest, DeviceTestResult.Builder>();
     private DeviceDetails deviceDetails = null;
-    private final long started = new Date().getTime();
+    private final List<ApkInstall> installs = new ArrayList<ApkInstall>();
+    private final List<Speculation> speculations = new ArrayList<Speculation>();
+    private ArtifactTransfer transfer;
+    private long started = new Date().getTime();
     private long start;
     private long duration = -1;
+    private long durationMillis = -1;
     private final List<StackTrace> exceptions = new ArrayList<StackTrace>();
 
     public Builder addTestResultBuilder(DeviceTest test,
@@ -109,6 +145,33 @@ public final class DeviceResult {
       return this;
     }
 
+    /** When the device began its run, if not when this builder was created. */
+    Builder setStarted(long started) {
+      this.started = started;
+      return this;
+    }
+
+    long getStarted() {
+      return started;
+    }
+
+    Builder addInstall(ApkInstall install) {
+      checkNotNull(install);
+      installs.add(install);
+      return this;
+    }
+
+    Builder addSpeculation(Speculation speculation) {
+      checkNotNull(speculation);
+      speculations.add(speculation);
+      return this;
+    }
+
+    Builder setTransfer(ArtifactTransfer transfer) {
+      this.transfer = checkNotNull(transfer);
+      return this;
+    }
+
     public Builder markInstallAsFailed(String message) {
       checkNotNull(message);
       checkArgument(!installFailed, "Install already marked as failed.");
@@ -127,7 +190,9 @@ public final class DeviceResult {
     public Builder endTests() {
       checkArgument(start != 0, "Start was not called.");
       checkArgument(duration == -1, "End was already called.");
-      duration = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+      long elapsed = System.nanoTime() - start;
+      duration = TimeUnit.NANOSECONDS.toSeconds(elapsed);
+      durationMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
       return this;
     }
 
@@ -143,6 +208,12 @@ public final class DeviceResult {
       return this;
     }
 
+    Builder addException(StackTrace exception) {
+      checkNotNull(exception);
+      exceptions.add(exception);
+      return this;
+    }
+
     public DeviceResult build() {
       // Convert builders to actual instances.
       Map<DeviceTest, DeviceTestResult> testResults = new HashMap<DeviceTest, DeviceTestResult>();
@@ -150,8 +221,9 @@ public final class DeviceResult {
         testResults.put(entry.getKey(), entry.getValue().build());
       }
 
-      return new DeviceResult(installFailed, installMessage, deviceDetails, testResults, started,
-          duration, exceptions);
+      return new DeviceResult(installFailed, installMessage, deviceDetails, installs,
+          speculations, transfer, testResults, started, duration, durationMillis,
+          exceptions);
     }
   }
 }
@@ -0,0 +1,98 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * What is known about one device for the length of a run. The system properties and the external
+ * storage root come from a single shell command the first time either is needed, instead of a
+ * round trip for every property and every path. Device discovery and the device runners share
+ * sessions through {@link #of}.
+ */
+final class DeviceSession {
+  private static final ConcurrentMap<String, DeviceSession> SESSIONS =
+      new ConcurrentHashMap<String, DeviceSession>();
+  private static final Pattern PROPERTY = Pattern.compile("\\[(.+?)\\]: \\[(.*)\\]");
+
+  /** The session of {@code device}, started the first time the device is seen. */
+  static DeviceSession of(IDevice device) {
+    String serial = device.getSerialNumber();
+    DeviceSession session = SESSIONS.get(serial);
+    if (session == null) {
+      DeviceSession created = new DeviceSession(device);
+      session = SESSIONS.putIfAbsent(serial, created);
+      if (session == null) {
+        session = created;
+      }
+    }
+    // A device which reconnects has a new instance, but its properties are the same.
+    session.device = device;
+    return session;
+  }
+
+  /** Forget everything about every device, so a new run asks again. */
+  static void clear() {
+    SESSIONS.clear();
+  }
+
+  private volatile IDevice device;
+  private Map<String, String> properties;
+  private String externalStorage;
+  private DeviceDetails details;
+
+  DeviceSession(IDevice device) {
+    this.device = checkNotNull(device);
+  }
+
+  /** The value of a system property, or {@code null} if it is not set. */
+  String getProperty(String name) {
+    try {
+      load();
+    } catch (Exception e) {
+      return device.getProperty(name);
+    }
+    if (properties.isEmpty()) {
+      return device.getProperty(name); // No usable getprop output, fall back to ddmlib.
+    }
+    return properties.get(name);
+  }
+
+  /** The root of external storage, without a trailing slash. */
+  String getExternalStorage() throws Exception {
+    load();
+    return externalStorage;
+  }
+
+  synchronized DeviceDetails getDetails() {
+    if (details == null) {
+      details = DeviceDetails.createForSession(this, device);
+    }
+    return details;
+  }
+
+  private synchronized void load() throws Exception {
+    if (properties != null) {
+      return;
+    }
+    CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+    device.executeShellCommand("echo \"$EXTERNAL_STORAGE\"; getprop", receiver);
+    String[] lines = receiver.getOutput().split("\r?\n");
+    Map<String, String> properties = new HashMap<String, String>();
+    for (int i = 1; i < lines.length; i++) {
+      Matcher matcher = PROPERTY.matcher(lines[i]);
+      if (matcher.matches()) {
+        properties.put(matcher.group(1), matcher.group(2));
+      }
+    }
+    externalStorage = lines[0].trim();
+    this.properties = properties;
+  }
+}
@@ -1,10 +1,8 @@
 package com.squareup.spoon;
 
-import com.android.ddmlib.logcat.LogCatMessage;
 import com.squareup.spoon.misc.StackTrace;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -25,20 +23,23 @@ public final class DeviceTestResult {
   private final Status status;
   private final StackTrace exception;
   private final long duration;
+  private final long durationMillis;
   private final List<File> screenshots;
   private final List<File> files;
   private final File animatedGif;
-  private final List<LogCatMessage> log;
+  private final DeviceLogSlice logSlice;
 
   private DeviceTestResult(Status status, StackTrace exception, long duration,
-      List<File> screenshots, File animatedGif, List<LogCatMessage> log, List<File> files) {
+      long durationMillis, List<File> screenshots, File animatedGif, DeviceLogSlice logSlice,
+      List<File> files) {
     this.status = status;
     this.exception = exception;
     this.duration = duration;
+    this.durationMillis = durationMillis;
     this.screenshots = unmodifiableList(new ArrayList<File>(screenshots));
     this.files = unmodifiableList(new ArrayList<File>(files));
     this.animatedGif = animatedGif;
-    this.log = unmodifiableList(new ArrayList<LogCatMessage>(log));
+    this.logSlice = logSlice;
   }
 
   /** Execution status. */
@@ -56,12 +57,20 @@ public final class DeviceTestResult {
     return duration;
   }
 
-  /** Screenshots taken during test. */
+  /** Length of test execution, in milliseconds, or {@code -1} if the test never ended. */
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /** Screenshots taken during test, in the format of the test's {@link SpoonConfig}. */
   public List<File> getScreenshots() {
     return screenshots;
   }
 
-  /** Animated GIF of screenshots. */
+  /**
+   * Animated GIF of screenshots, or {@code null} if fewer than two could be read. WebP ones are
+   * animated from the PNG frames which the client writes alongside them.
+   */
   public File getAnimatedGif() {
     return animatedGif;
   }
@@ -71,8 +80,27 @@ public final class DeviceTestResult {
     return files;
   }
 
-  public List<LogCatMessage> getLog() {
-    return log;
+  /** Messages the test's process logged during the test, read from {@link #getLogSlice()}. */
+  public DeviceLogStore getLog() {
+    DeviceLogStore store = new DeviceLogStore();
+    readLog(store);
+    return store;
+  }
+
+  /** Replace the contents of {@code store} with the messages the device logged during the test. */
+  public void readLog(DeviceLogStore store) {
+    store.clear();
+    if (logSlice != null) {
+      logSlice.read(store);
+    }
+  }
+
+  /**
+   * Where the test's messages are in the device's log archive, which also has those of every
+   * other process, or {@code null} if none were seen.
+   */
+  public DeviceLogSlice getLogSlice() {
+    return logSlice;
   }
 
   public static class Builder {
@@ -82,8 +110,9 @@ public final class DeviceTestResult {
     private StackTrace exception;
     private long start;
     private long duration = -1;
+    private long durationMillis = -1;
     private File animatedGif;
-    private List<LogCatMessage> log;
+    private DeviceLogSlice logSlice;
 
     public Builder markTestAsFailed(String message) {
       checkNotNull(message);
@@ -95,10 +124,10 @@ public final class DeviceTestResult {
       return this;
     }
 
-    public Builder setLog(List<LogCatMessage> log) {
-      checkNotNull(log);
-      checkArgument(this.log == null, "Log already added.");
-      this.log = log;
+    public Builder setLogSlice(DeviceLogSlice logSlice) {
+      checkNotNull(logSlice);
+      checkArgument(this.logSlice == null, "Log already added.");
+      this.logSlice = logSlice;
       return this;
     }
 
@@ -113,7 +142,9 @@ public final class DeviceTestResult {
       if (duration != -1) {
         logError("Test was already marked as ended!");
       }
-      duration = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+      long elapsed = System.nanoTime() - start;
+      duration = TimeUnit.NANOSECONDS.toSeconds(elapsed);
+      durationMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
       return this;
     }
 
@@ -137,11 +168,8 @@ public final class DeviceTestResult {
     }
 
     public DeviceTestResult build() {
-      if (log == null) {
-        log = Collections.emptyList();
-      }
-      return new DeviceTestResult(status, exception, duration,
-              screenshots, animatedGif, log, files);
+      return new DeviceTestResult(status, exception, duration, durationMillis,
+              screenshots, animatedGif, logSlice, files);
     }
   }
 }
@@ -0,0 +1,35 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.Map;
+
+/** A listener which ignores every event, for subclasses which only care about a few of them. */
+class NoOpTestRunListener implements ITestRunListener {
+  @Override public void testRunStarted(String runName, int testCount) {
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+  }
+
+  @Override public void testFailed(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testIgnored(TestIdentifier test) {
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+  }
+}
@@ -0,0 +1,112 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sits between one instrumentation run of a scheduled batch and the device's listeners. Finished
+ * tests are reported to the {@link SpoonTestScheduler}. When the run reaches a test which another
+ * device already finished, it is cancelled and nothing more from it is forwarded, so the failure
+ * which ddmlib reports for the cancelled run does not count against this device.
+ */
+final class ScheduledBatchListener implements ITestRunListener {
+  private final SpoonTestScheduler scheduler;
+  private final String serial;
+  private final IRemoteAndroidTestRunner runner;
+  private final ITestRunListener delegate;
+  // The test which ended last is only finished once we know that the run carried on, since a
+  // device which disconnects fails whichever test it was in the middle of.
+  private DeviceTest ended;
+  private boolean failed;
+  private DeviceTest abandonedAt;
+
+  ScheduledBatchListener(SpoonTestScheduler scheduler, String serial,
+      IRemoteAndroidTestRunner runner, ITestRunListener delegate) {
+    this.scheduler = checkNotNull(scheduler);
+    this.serial = checkNotNull(serial);
+    this.runner = checkNotNull(runner);
+    this.delegate = checkNotNull(delegate);
+  }
+
+  /** The test at which the run was cancelled, or {@code null} if it was not. */
+  DeviceTest getAbandonedAt() {
+    return abandonedAt;
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+    delegate.testRunStarted(runName, testCount);
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+    if (abandonedAt != null) {
+      return;
+    }
+    finishEnded();
+    failed = false;
+    DeviceTest deviceTest = DeviceTest.from(test);
+    if (scheduler.isDone(deviceTest)) {
+      abandonedAt = deviceTest;
+      runner.cancel();
+      return;
+    }
+    delegate.testStarted(test);
+  }
+
+  @Override public void testFailed(TestIdentifier test, String trace) {
+    if (abandonedAt != null) {
+      return;
+    }
+    failed = true;
+    delegate.testFailed(test, trace);
+  }
+
+  @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+    if (abandonedAt == null) {
+      delegate.testAssumptionFailure(test, trace);
+    }
+  }
+
+  @Override public void testIgnored(TestIdentifier test) {
+    if (abandonedAt == null) {
+      delegate.testIgnored(test);
+    }
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    if (abandonedAt != null) {
+      return;
+    }
+    ended = DeviceTest.from(test);
+    delegate.testEnded(test, testMetrics);
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+    if (abandonedAt != null) {
+      return;
+    }
+    if (failed) {
+      ended = null;
+    }
+    delegate.testRunFailed(errorMessage);
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+    delegate.testRunStopped(elapsedTime);
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    finishEnded();
+    delegate.testRunEnded(elapsedTime, runMetrics);
+  }
+
+  private void finishEnded() {
+    if (ended != null) {
+      scheduler.finished(serial, ended);
+      ended = null;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.squareup.spoon;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A test which was also run on an idle device because the device it was first given to was
+ * falling behind. Whichever device finished it first provides the result that counts.
+ */
+public final class Speculation {
+  private final DeviceTest test;
+  private final String original;
+  private final String backup;
+  private final String winner;
+
+  Speculation(DeviceTest test, String original, String backup, String winner) {
+    this.test = checkNotNull(test);
+    this.original = checkNotNull(original);
+    this.backup = checkNotNull(backup);
+    this.winner = winner;
+  }
+
+  /** The test which was run twice. */
+  public DeviceTest getTest() {
+    return test;
+  }
+
+  /** Serial of the device which was first given the test. */
+  public String getOriginal() {
+    return original;
+  }
+
+  /** Serial of the idle device which also ran the test. */
+  public String getBackup() {
+    return backup;
+  }
+
+  /** Serial of the device which finished the test first, or {@code null} if neither did. */
+  public String getWinner() {
+    return winner;
+  }
+
+  Speculation withWinner(String winner) {
+    return new Speculation(test, original, backup, winner);
+  }
+
+  @Override public String toString() {
+    return test + " from " + original + " on " + backup + ", won by " + winner;
+  }
+}
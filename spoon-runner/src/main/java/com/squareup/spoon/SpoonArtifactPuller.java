@@ -0,0 +1,154 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.android.ddmlib.SyncService.getNullProgressMonitor;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Fetches the files which the client listed in its {@link SpoonManifest manifests}. Files are
+ * pulled over several sync connections at once, and ones which are already here with the listed
+ * size and checksum, say from an earlier partial pull, are not pulled again.
+ */
+final class SpoonArtifactPuller {
+  static final int SYNC_CONNECTIONS = 4;
+
+  /** A file from a manifest, along with where it is on the device and where it goes here. */
+  static final class Artifact {
+    final SpoonManifest.Entry entry;
+    final String remotePath;
+    final File localFile;
+
+    Artifact(SpoonManifest.Entry entry, String remotePath, File localFile) {
+      this.entry = checkNotNull(entry);
+      this.remotePath = checkNotNull(remotePath);
+      this.localFile = checkNotNull(localFile);
+    }
+
+    /** {@code true} if the local file exists and matches the manifest. */
+    boolean isPresent() throws IOException {
+      return localFile.isFile()
+          && localFile.length() == entry.size
+          && Files.hash(localFile, Hashing.crc32()).padToLong() == entry.checksum;
+    }
+
+    @Override public String toString() {
+      return remotePath;
+    }
+  }
+
+  /**
+   * Read a manifest which was copied from {@code remoteDir} on the device. Listed files go below
+   * {@code localDir}.
+   */
+  static List<Artifact> readManifest(File manifest, String remoteDir, File localDir)
+      throws IOException {
+    List<Artifact> artifacts = new ArrayList<Artifact>();
+    for (String line : Files.readLines(manifest, Charsets.UTF_8)) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      SpoonManifest.Entry entry = SpoonManifest.Entry.parse(line);
+      if (entry == null || entry.path.startsWith("/") || entry.path.contains("..")) {
+        logError("Ignoring malformed manifest line in %s: %s", remoteDir, line);
+        continue;
+      }
+      artifacts.add(new Artifact(entry, remoteDir + "/" + entry.path,
+          new File(localDir, entry.path)));
+    }
+    return artifacts;
+  }
+
+  /** The artifacts which are not here yet, or which do not match the manifest. */
+  static List<Artifact> missing(List<Artifact> artifacts) throws IOException {
+    List<Artifact> missing = new ArrayList<Artifact>();
+    for (Artifact artifact : artifacts) {
+      if (!artifact.isPresent()) {
+        missing.add(artifact);
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Pull {@code artifacts} from {@code device} over up to {@code connections} sync connections.
+   * An artifact which cannot be pulled is skipped, and is still {@link #missing} afterwards.
+   *
+   * @return the number of bytes pulled.
+   */
+  static long pull(final IDevice device, List<Artifact> artifacts, int connections)
+      throws Exception {
+    if (artifacts.isEmpty()) {
+      return 0;
+    }
+    final Queue<Artifact> queue = new ConcurrentLinkedQueue<Artifact>(artifacts);
+    final AtomicLong bytes = new AtomicLong();
+    int threads = Math.min(connections, artifacts.size());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> pulls = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        pulls.add(executor.submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            SyncService sync = device.getSyncService();
+            if (sync == null) {
+              // The other connections pull this one's share.
+              logInfo("Unable to open a sync connection to %s.", device.getSerialNumber());
+              return null;
+            }
+            try {
+              Artifact artifact;
+              while ((artifact = queue.poll()) != null) {
+                artifact.localFile.getParentFile().mkdirs();
+                try {
+                  sync.pullFile(artifact.remotePath, artifact.localFile.getAbsolutePath(),
+                      getNullProgressMonitor());
+                } catch (Exception e) {
+                  logInfo("Unable to pull %s: %s", artifact.remotePath, e.getMessage());
+                  continue;
+                }
+                bytes.addAndGet(artifact.localFile.length());
+              }
+            } finally {
+              sync.close();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> pull : pulls) {
+        try {
+          pull.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          throw cause instanceof Exception ? (Exception) cause : e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return bytes.get();
+  }
+
+  private SpoonArtifactPuller() {
+    // No instances.
+  }
+}
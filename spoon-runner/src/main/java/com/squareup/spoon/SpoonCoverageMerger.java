@@ -25,7 +25,11 @@ final class SpoonCoverageMerger {
     Collection<String> sanitizeSerials = transform(serials, toSanitizeSerials());
     for (String serial : sanitizeSerials) {
       String coverageFilePath = COVERAGE_DIR + "/" + serial + "/" + COVERAGE_FILE;
-      execFileLoader.load(new File(outputDirectory, coverageFilePath));
+      File coverageFile = new File(outputDirectory, coverageFilePath);
+      // A device which joined a split run after every test was taken has no coverage.
+      if (coverageFile.exists()) {
+        execFileLoader.load(coverageFile);
+      }
     }
     String mergedCoverageFile = COVERAGE_DIR + "/" + MERGED_COVERAGE_FILE;
     execFileLoader.save(new File(outputDirectory, mergedCoverageFile), false);
@@ -1,71 +1,214 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
 import com.android.ddmlib.logcat.LogCatListener;
 import com.android.ddmlib.logcat.LogCatMessage;
-import com.android.ddmlib.logcat.LogCatReceiverTask;
-import java.util.ArrayList;
-import java.util.HashMap;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Writes the device log to a {@link DeviceLogArchive} as it arrives, and marks where each test's
+ * messages are using the test runner's "started" and "finished" lines. Every process's messages
+ * are kept for triage, and no more than a compression block is held in memory at any time.
+ * <p>
+ * When scoped to the app, logcat on the device only sends the messages of the test's process once
+ * the first test of an instrumentation has started, and goes back to every process when told that
+ * a new instrumentation, which has a new process, is {@link #instrumentationStarting starting}.
+ */
 final class SpoonDeviceLogger implements LogCatListener {
   private static final String TEST_RUNNER = "TestRunner";
   private static final Pattern MESSAGE_START = Pattern.compile("started: ([^(]+)\\(([^)]+)\\)");
   private static final Pattern MESSAGE_END = Pattern.compile("finished: [^(]+\\([^)]+\\)");
 
-  private final List<LogCatMessage> messages;
-  private final LogCatReceiverTask logCatReceiverTask;
+  private final File directory;
+  private final int maxLines;
+  private final DeviceLogcat logcat;
+  private final boolean scopeToApp;
+  private final Map<DeviceTest, DeviceLogSlice> logs =
+      new LinkedHashMap<DeviceTest, DeviceLogSlice>();
+
+  // Guarded by this.
+  private DeviceLogArchive archive;
+  private DeviceTest current;
+  private int pid = -1;
+  private long sliceStart;
+  private int lines;
+  private int dropped;
+  // Other processes have a cap of their own so that a noisy device can't crowd the test out.
+  private int otherLines;
+  private int otherDropped;
+  private boolean finished;
 
-  public SpoonDeviceLogger(IDevice device) {
-    messages = new ArrayList<LogCatMessage>();
-    logCatReceiverTask = new LogCatReceiverTask(device);
-    logCatReceiverTask.addLogCatListener(this);
+  /**
+   * @param directory Where the log archive and its index are written.
+   * @param maxLines Lines kept for each test, with the rest dropped. Unlimited when zero.
+   * @param filter Logcat filter specs applied on the device, or {@code null} for everything.
+   * @param scopeToApp Whether logcat only sends the messages of the test's process. Needs
+   * {@link DeviceLogcat#SCOPE_API_LEVEL}.
+   */
+  public SpoonDeviceLogger(IDevice device, File directory, int maxLines, String filter,
+      boolean scopeToApp) {
+    checkArgument(maxLines >= 0, "Max lines must not be negative.");
+    this.directory = checkNotNull(directory);
+    this.maxLines = maxLines;
+    this.logcat = device != null ? new DeviceLogcat(device, this, filter) : null;
+    this.scopeToApp = scopeToApp && logcat != null;
 
     // Start a background thread to monitor the device logs. This will exit when we call stop below.
-    new Thread(logCatReceiverTask).start();
+    if (logcat != null) {
+      new Thread(logcat, "spoon-logcat-" + device.getSerialNumber()).start();
+    }
+  }
+
+  /** A logger which is only fed by calls to {@link #log}. */
+  SpoonDeviceLogger(File directory, int maxLines) {
+    this(null, directory, maxLines, null, false);
+  }
+
+  @Override public synchronized void log(List<LogCatMessage> msgList) {
+    if (finished) {
+      return;
+    }
+    try {
+      if (archive == null) {
+        archive = new DeviceLogArchive(directory);
+      }
+      for (LogCatMessage message : msgList) {
+        log(message);
+      }
+    } catch (IOException e) {
+      logError("Unable to write the device log to %s: %s", directory, e.getMessage());
+      finish();
+    }
+  }
+
+  private void log(LogCatMessage message) throws IOException {
+    boolean fromTestRunner = TEST_RUNNER.equals(message.getTag());
+    if (fromTestRunner) {
+      Matcher match = MESSAGE_START.matcher(message.getMessage());
+      if (match.matches()) {
+        // A test whose process died never logs that it finished.
+        endTest();
+        startTest(new DeviceTest(match.group(2), match.group(1)), message.getPid());
+      }
+    }
+    write(message);
+    if (current != null && fromTestRunner && pid == message.getPid()
+        && MESSAGE_END.matcher(message.getMessage()).matches()) {
+      endTest();
+    }
   }
 
-  @Override public void log(List<LogCatMessage> msgList) {
-    synchronized (messages) {
-      messages.addAll(msgList);
+  private void startTest(DeviceTest test, int pid) throws IOException {
+    current = test;
+    this.pid = pid;
+    sliceStart = archive.startSlice();
+    lines = 0;
+    dropped = 0;
+    otherLines = 0;
+    otherDropped = 0;
+    if (scopeToApp) {
+      logcat.scope(pid);
     }
   }
 
-  public Map<DeviceTest, List<LogCatMessage>> getParsedLogs() {
-    logCatReceiverTask.stop();
-
-    Map<DeviceTest, List<LogCatMessage>> logs = new HashMap<DeviceTest, List<LogCatMessage>>();
-    DeviceTest current = null;
-    int pid = -1;
-    synchronized (messages) {
-      for (LogCatMessage message : messages) {
-        if (current == null) {
-          Matcher match = MESSAGE_START.matcher(message.getMessage());
-          if (match.matches() && TEST_RUNNER.equals(message.getTag())) {
-            current = new DeviceTest(match.group(2), match.group(1));
-            pid = message.getPid();
-
-            List<LogCatMessage> deviceLogMessages = new ArrayList<LogCatMessage>();
-            deviceLogMessages.add(message);
-            logs.put(current, deviceLogMessages);
-          }
-        } else {
-          // Only log messages from the same PID.
-          if (pid == message.getPid()) {
-            logs.get(current).add(message);
-          }
-
-          Matcher match = MESSAGE_END.matcher(message.getMessage());
-          if (match.matches() && TEST_RUNNER.equals(message.getTag())) {
-            current = null;
-            pid = -1;
-          }
-        }
+  private void write(LogCatMessage message) throws IOException {
+    if (current == null || maxLines == 0) {
+      archive.write(message);
+    } else if (message.getPid() == pid) {
+      if (lines >= maxLines) {
+        dropped++;
+        return;
+      }
+      archive.write(message);
+      lines++;
+    } else {
+      if (otherLines >= maxLines) {
+        otherDropped++;
+        return;
       }
+      archive.write(message);
+      otherLines++;
+    }
+  }
+
+  private void endTest() throws IOException {
+    if (current == null) {
+      return;
+    }
+    if (dropped > 0) {
+      writeNote(String.format("Spoon dropped %d more lines after the first %d.", dropped,
+          maxLines));
+    }
+    if (otherDropped > 0) {
+      writeNote(String.format("Spoon dropped %d more lines of other processes after the first %d.",
+          otherDropped, maxLines));
+    }
+    logs.put(current, archive.endSlice(current, sliceStart, pid));
+    current = null;
+    pid = -1;
+  }
+
+  private void writeNote(String note) throws IOException {
+    archive.write(new LogCatMessage(
+        new LogCatHeader(LogLevel.WARN, pid, 0, "", "Spoon", LogCatTimestamp.ZERO), note));
+  }
+
+  /** End the current test's slice and close the archive. */
+  private void finish() {
+    finished = true;
+    if (archive == null) {
+      return;
+    }
+    try {
+      endTest();
+    } catch (IOException e) {
+      logError("Unable to write the device log to %s: %s", directory, e.getMessage());
+    }
+    try {
+      archive.close();
+    } catch (IOException e) {
+      logError("Unable to close the device log in %s: %s", directory, e.getMessage());
+    }
+  }
+
+  /** Stop monitoring the device logs and close the archive. */
+  public void stop() {
+    if (logcat != null) {
+      logcat.stop();
+    }
+    synchronized (this) {
+      if (!finished) {
+        finish();
+      }
+    }
+  }
+
+  /** Stop monitoring the device logs and return where each test's messages are. */
+  public synchronized Map<DeviceTest, DeviceLogSlice> getLogSlices() {
+    stop();
+    return new LinkedHashMap<DeviceTest, DeviceLogSlice>(logs);
+  }
+
+  /**
+   * Called before each instrumentation is run. Its new process's messages would otherwise be
+   * dropped by logcat while it is still scoped to the last one.
+   */
+  public void instrumentationStarting() {
+    if (scopeToApp) {
+      logcat.scope(DeviceLogcat.ALL_PROCESSES);
     }
-    return logs;
   }
 }
@@ -0,0 +1,135 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
+import com.android.ddmlib.IDevice;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Follows devices as they come and go during a run, rather than relying on the snapshot taken
+ * when the run started. Devices which come online and match the run's filters are handed to the
+ * {@link Listener} to be put to work, and devices which disconnect are reported so that their
+ * unfinished tests can be given to others. A device which has left does not rejoin the same run.
+ */
+final class SpoonDevicePool implements IDeviceChangeListener {
+  /** Where devices come from. This is ADB outside of tests. */
+  interface DeviceSource {
+    IDevice[] getDevices();
+
+    void addDeviceChangeListener(IDeviceChangeListener listener);
+
+    void removeDeviceChangeListener(IDeviceChangeListener listener);
+  }
+
+  /** Notified on the source's thread as devices join and leave the pool. */
+  interface Listener {
+    void deviceAdded(IDevice device);
+
+    void deviceRemoved(String serial);
+  }
+
+  /** Devices seen by {@code adb}. */
+  static DeviceSource adbSource(final AndroidDebugBridge adb) {
+    checkNotNull(adb);
+    return new DeviceSource() {
+      @Override public IDevice[] getDevices() {
+        return adb.getDevices();
+      }
+
+      @Override public void addDeviceChangeListener(IDeviceChangeListener listener) {
+        AndroidDebugBridge.addDeviceChangeListener(listener);
+      }
+
+      @Override public void removeDeviceChangeListener(IDeviceChangeListener listener) {
+        AndroidDebugBridge.removeDeviceChangeListener(listener);
+      }
+    };
+  }
+
+  private final DeviceSource source;
+  private final Set<String> serials;
+  private final Set<String> skipDevices;
+  private final Integer minApiLevel;
+  private final Listener listener;
+  private final Set<String> members = new HashSet<String>();
+  private final Set<String> removed = new HashSet<String>();
+
+  /**
+   * @param serials Only these devices may join, or any device if empty.
+   * @param skipDevices Devices which may never join.
+   * @param minApiLevel Lowest API level a device must have to join, or {@code null} for any.
+   */
+  SpoonDevicePool(DeviceSource source, Set<String> serials, Set<String> skipDevices,
+      Integer minApiLevel, Listener listener) {
+    this.source = checkNotNull(source);
+    this.serials = checkNotNull(serials);
+    this.skipDevices = skipDevices != null ? skipDevices : Collections.<String>emptySet();
+    this.minApiLevel = minApiLevel;
+    this.listener = checkNotNull(listener);
+  }
+
+  /**
+   * Start following devices. The {@code initial} devices are already at work and are only
+   * reported when they leave. Any other matching device which is already online joins now.
+   */
+  void start(Collection<String> initial) {
+    synchronized (this) {
+      members.addAll(initial);
+    }
+    source.addDeviceChangeListener(this);
+    for (IDevice device : source.getDevices()) {
+      offer(device);
+    }
+  }
+
+  /** Stop following devices. */
+  void stop() {
+    source.removeDeviceChangeListener(this);
+  }
+
+  @Override public void deviceConnected(IDevice device) {
+    offer(device);
+  }
+
+  @Override public void deviceChanged(IDevice device, int changeMask) {
+    // Devices connect before they are online so this is usually when they become usable.
+    if ((changeMask & IDevice.CHANGE_STATE) != 0) {
+      offer(device);
+    }
+  }
+
+  @Override public void deviceDisconnected(IDevice device) {
+    String serial = device.getSerialNumber();
+    synchronized (this) {
+      if (!members.contains(serial) || !removed.add(serial)) {
+        return;
+      }
+    }
+    listener.deviceRemoved(serial);
+  }
+
+  private void offer(IDevice device) {
+    if (!device.isOnline()) {
+      return;
+    }
+    String serial = device.getSerialNumber();
+    synchronized (this) {
+      if (members.contains(serial)) {
+        return;
+      }
+      if (!serials.isEmpty() && !serials.contains(serial) || skipDevices.contains(serial)) {
+        return;
+      }
+      if (!SpoonUtils.meetsMinApiLevel(device, minApiLevel)) {
+        return;
+      }
+      members.add(serial);
+    }
+    listener.deviceAdded(device);
+  }
+}
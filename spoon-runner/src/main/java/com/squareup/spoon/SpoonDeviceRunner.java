@@ -5,15 +5,19 @@ import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.InstallException;
-import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.CountingInputStream;
 import com.squareup.spoon.adapters.TestIdentifierAdapter;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -22,16 +26,32 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.jacoco.core.tools.ExecFileLoader;
 
 import static com.android.ddmlib.FileListingService.FileEntry;
 import static com.android.ddmlib.SyncService.getNullProgressMonitor;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.squareup.spoon.DevicePhaseGate.Phase;
+import static com.squareup.spoon.Spoon.ARG_RUN_ID;
+import static com.squareup.spoon.Spoon.GIF_FRAME_SUFFIX;
 import static com.squareup.spoon.Spoon.SPOON_FILES;
 import static com.squareup.spoon.Spoon.SPOON_SCREENSHOTS;
+import static com.squareup.spoon.SpoonArtifactPuller.Artifact;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logError;
 import static com.squareup.spoon.SpoonLogger.logInfo;
@@ -43,14 +63,22 @@ import static com.squareup.spoon.SpoonUtils.obtainRealDevice;
 /** Represents a single device and the test configuration to be executed. */
 public final class SpoonDeviceRunner {
   private static final String FILE_EXECUTION = "execution.json";
-  private static final String FILE_RESULT = "result.json";
   private static final String DEVICE_SCREENSHOT_DIR = "app_" + SPOON_SCREENSHOTS;
   private static final String DEVICE_FILE_DIR = "app_" + SPOON_FILES;
   private static final String[] DEVICE_DIRS = {DEVICE_SCREENSHOT_DIR, DEVICE_FILE_DIR};
+  /**
+   * Longest list of tests passed to one instrumentation. Before Android N adbd cuts shell commands
+   * off at 4 KB, which has to hold the rest of the {@code am instrument} command as well.
+   */
+  static final int MAX_CLASS_ARG_LENGTH = 3000;
+  /** Test output other than the manifests which list it. */
+  private static final IOFileFilter NOT_MANIFEST =
+      FileFilterUtils.notFileFilter(FileFilterUtils.nameFileFilter(SpoonManifest.FILE_NAME));
   static final String TEMP_DIR = "work";
   static final String JUNIT_DIR = "junit-reports";
   static final String IMAGE_DIR = "image";
   static final String FILE_DIR = "file";
+  static final String LOG_DIR = "logs";
   static final String COVERAGE_FILE = "coverage.ec";
   static final String COVERAGE_DIR = "coverage";
 
@@ -58,8 +86,6 @@ public final class SpoonDeviceRunner {
   private final File apk;
   private final File testApk;
   private final String serial;
-  private final int shardIndex;
-  private final int numShards;
   private final boolean debug;
   private final boolean noAnimations;
   private final int adbTimeout;
@@ -72,11 +98,22 @@ public final class SpoonDeviceRunner {
   private final File imageDir;
   private final File coverageDir;
   private final File fileDir;
+  private final File logDir;
   private final String classpath;
   private final SpoonInstrumentationInfo instrumentationInfo;
   private boolean codeCoverage;
-  private final List<ITestRunListener> testRunListeners;
+  private final transient List<ITestRunListener> testRunListeners;
   private final boolean grantAll;
+  private final boolean incrementalPull;
+  private final int maxLogLines;
+  private final String logcatFilter;
+  private final boolean logcatAppOnly;
+  private final SpoonInstallCache installCache;
+  private final SpoonTestTimeouts testTimeouts;
+  /** Set only in a forked device process, to stream events back to the parent. */
+  private transient DeviceEventStream.Writer events;
+  /** Shared by every instrumentation of one run, so they keep each other's output. */
+  private transient String runId;
 
   /**
    * Create a test runner for a single device.
@@ -94,18 +131,24 @@ public final class SpoonDeviceRunner {
    * @param methodName Test method name to run or {@code null} to run all tests.  Must also pass
    * {@code className}.
    * @param testRunListeners Additional TestRunListener or empty list.
+   * @param incrementalPull Whether to pull each test's files as soon as it ends.
+   * @param maxLogLines Device log lines kept for each test, or zero to keep them all.
+   * @param logcatFilter Logcat filter specs applied on the device, or {@code null}.
+   * @param logcatAppOnly Whether logcat only sends the messages of the app's process.
+   * @param installCache Decides whether the APKs need to be installed.
+   * @param testTimeouts How long each test may run before it is stopped.
    */
-  SpoonDeviceRunner(File sdk, File apk, File testApk, File output, String serial, int shardIndex,
-      int numShards, boolean debug, boolean noAnimations, int adbTimeout, String classpath,
+  SpoonDeviceRunner(File sdk, File apk, File testApk, File output, String serial, boolean debug,
+      boolean noAnimations, int adbTimeout, String classpath,
       SpoonInstrumentationInfo instrumentationInfo, List<String> instrumentationArgs,
       String className, String methodName, IRemoteAndroidTestRunner.TestSize testSize,
-      List<ITestRunListener> testRunListeners, boolean codeCoverage, boolean grantAll) {
+      List<ITestRunListener> testRunListeners, boolean codeCoverage, boolean grantAll,
+      boolean incrementalPull, int maxLogLines, String logcatFilter, boolean logcatAppOnly,
+      SpoonInstallCache installCache, SpoonTestTimeouts testTimeouts) {
     this.sdk = sdk;
     this.apk = apk;
     this.testApk = testApk;
     this.serial = serial;
-    this.shardIndex = shardIndex;
-    this.numShards = numShards;
     this.debug = debug;
     this.noAnimations = noAnimations;
     this.adbTimeout = adbTimeout;
@@ -121,13 +164,31 @@ public final class SpoonDeviceRunner {
     this.junitReport = FileUtils.getFile(output, JUNIT_DIR, serial + ".xml");
     this.imageDir = FileUtils.getFile(output, IMAGE_DIR, serial);
     this.fileDir = FileUtils.getFile(output, FILE_DIR, serial);
+    this.logDir = FileUtils.getFile(output, LOG_DIR, serial);
     this.coverageDir = FileUtils.getFile(output, COVERAGE_DIR, serial);
     this.testRunListeners = testRunListeners;
     this.grantAll = grantAll;
+    this.incrementalPull = incrementalPull;
+    this.maxLogLines = maxLogLines;
+    this.logcatFilter = logcatFilter;
+    this.logcatAppOnly = logcatAppOnly;
+    this.installCache = installCache;
+    this.testTimeouts = testTimeouts;
   }
 
-  /** Serialize to disk and start {@link #main(String...)} in another process. */
+  /**
+   * Serialize to disk and start {@link #main(String...)} in another process. The result is built
+   * up from the events the process streams back over its standard output as the tests run.
+   */
   public DeviceResult runInNewProcess() throws IOException, InterruptedException {
+    return runInNewProcess(DevicePhaseGate.UNLIMITED);
+  }
+
+  /**
+   * @param gate Controls when the device may enter each phase of its run. The process asks for
+   * each phase over its standard output and is let in by writing to its standard input.
+   */
+  DeviceResult runInNewProcess(DevicePhaseGate gate) throws IOException, InterruptedException {
     logDebug(debug, "[%s]", serial);
 
     // Create the output directory.
@@ -142,31 +203,74 @@ public final class SpoonDeviceRunner {
     String name = SpoonDeviceRunner.class.getName();
     Process process = new ProcessBuilder("java", "-Djava.awt.headless=true", "-cp", classpath, name,
         work.getAbsolutePath()).start();
-    printStream(process.getInputStream(), "STDOUT");
-    printStream(process.getErrorStream(), "STDERR");
 
-    final int exitCode = process.waitFor();
-    logDebug(debug, "Process.waitFor() finished for [%s] with exitCode %d", serial, exitCode);
+    // Drain the process's log output concurrently so that neither pipe can fill up and stall it.
+    Thread stderr = printStreamInBackground(process.getErrorStream(), "STDERR");
 
-    // Read the result from a file in the output directory.
-    FileReader resultFile = new FileReader(new File(work, FILE_RESULT));
-    DeviceResult result = GSON.fromJson(resultFile, DeviceResult.class);
-    resultFile.close();
+    DeviceResult.Builder result = new DeviceResult.Builder();
+    List<ITestRunListener> listeners = new ArrayList<ITestRunListener>();
+    listeners.add(new SpoonTestRunListener(result, debug,
+        TestIdentifierAdapter.fromTestRunner(instrumentationInfo.getTestRunnerClass())));
+    if (testRunListeners != null) {
+      listeners.addAll(testRunListeners);
+    }
+    boolean complete = false;
+    InputStream stdout = process.getInputStream();
+    try {
+      complete = new DeviceEventStream.Reader(result, listeners, gate, process.getOutputStream())
+          .readAll(stdout);
+    } catch (IOException e) {
+      result.addException(e);
+    } finally {
+      process.getOutputStream().close();
+      // Keep draining if we stopped early so that the process can still exit.
+      while (stdout.read() != -1) {
+        // Discard.
+      }
+    }
 
-    return result;
+    final int exitCode = process.waitFor();
+    stderr.join();
+    logDebug(debug, "Process.waitFor() finished for [%s] with exitCode %d", serial, exitCode);
+    if (!complete) {
+      result.addException(
+          "Device process exited with code " + exitCode + " before reporting its result.");
+    }
+    return result.build();
   }
 
-  private void printStream(InputStream stream, String tag) throws IOException {
-    BufferedReader stdout = new BufferedReader(new InputStreamReader(stream));
-    String s;
-    while ((s = stdout.readLine()) != null) {
-      logDebug(debug, "[%s] %s %s", serial, tag, s);
-    }
+  private Thread printStreamInBackground(final InputStream stream, final String tag) {
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        try {
+          String s;
+          while ((s = reader.readLine()) != null) {
+            logDebug(debug, "[%s] %s %s", serial, tag, s);
+          }
+        } catch (IOException e) {
+          logDebug(debug, "[%s] Unable to read %s: %s", serial, tag, e.getMessage());
+        }
+      }
+    }, "spoon-" + serial + "-" + tag);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
   }
 
   /** Execute instrumentation on the target device and return a result summary. */
   public DeviceResult run(AndroidDebugBridge adb) {
-    String testPackage = instrumentationInfo.getInstrumentationPackage();
+    return run(adb, null, DevicePhaseGate.UNLIMITED);
+  }
+
+  /**
+   * Execute instrumentation on the target device and return a result summary.
+   *
+   * @param scheduler Scheduler from which to pull batches of tests, or {@code null} to run the
+   * whole suite in a single instrumentation run.
+   * @param gate Controls when this device may enter each phase of its run.
+   */
+  DeviceResult run(AndroidDebugBridge adb, SpoonTestScheduler scheduler, DevicePhaseGate gate) {
     String testRunner = instrumentationInfo.getTestRunnerClass();
     TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
 
@@ -177,6 +281,7 @@ public final class SpoonDeviceRunner {
     }
 
     DeviceResult.Builder result = new DeviceResult.Builder();
+    runId = UUID.randomUUID().toString();
 
     IDevice device = obtainRealDevice(adb, serial);
     logDebug(debug, "Got realDevice for [%s]", serial);
@@ -185,130 +290,475 @@ public final class SpoonDeviceRunner {
     final DeviceDetails deviceDetails = DeviceDetails.createForDevice(device);
     result.setDeviceDetails(deviceDetails);
     logDebug(debug, "[%s] setDeviceDetails %s", serial, deviceDetails);
+    if (events != null) {
+      events.deviceDetails(deviceDetails, result.getStarted());
+    }
 
     DdmPreferences.setTimeOut(adbTimeout);
 
+    // Initiate device logging. This attaches while the APKs are installed.
+    boolean scopeLogcat =
+        logcatAppOnly && deviceDetails.getApiLevel() >= DeviceLogcat.SCOPE_API_LEVEL;
+    SpoonDeviceLogger deviceLogger =
+        new SpoonDeviceLogger(device, logDir, maxLogLines, logcatFilter, scopeLogcat);
+
     // Now install the main application and the instrumentation application.
+    enter(gate, Phase.INSTALL);
     try {
-      String extraArgument = "";
-      if (grantAll && deviceDetails.getApiLevel() >= DeviceDetails.MARSHMALLOW_API_LEVEL) {
-        extraArgument = "-g";
-      }
-      device.installPackage(apk.getAbsolutePath(), true, extraArgument);
-    } catch (InstallException e) {
-      logInfo("InstallException while install app apk on device [%s]", serial);
-      e.printStackTrace(System.out);
-      return result.markInstallAsFailed(
-              "Unable to install application APK.").addException(e).build();
-    }
-    try {
-      device.installPackage(testApk.getAbsolutePath(), true);
-    } catch (InstallException e) {
-      logInfo("InstallException while install test apk on device [%s]", serial);
-      e.printStackTrace(System.out);
-      return result.markInstallAsFailed(
-              "Unable to install instrumentation APK.").addException(e).build();
-    }
-
-    // If this is Android Marshmallow or above grant WRITE_EXTERNAL_STORAGE
-    if (deviceDetails.getApiLevel() >= DeviceDetails.MARSHMALLOW_API_LEVEL) {
-      String appPackage = instrumentationInfo.getApplicationPackage();
-      try {
-        CollectingOutputReceiver grantOutputReceiver = new CollectingOutputReceiver();
-        device.executeShellCommand(
-            "pm grant " + appPackage + " android.permission.READ_EXTERNAL_STORAGE",
-            grantOutputReceiver);
-        device.executeShellCommand(
-            "pm grant " + appPackage + " android.permission.WRITE_EXTERNAL_STORAGE",
-            grantOutputReceiver);
-      } catch (Exception e) {
-        logInfo("Exception while granting external storage access to application apk"
-            + "on device [%s]", serial);
-        e.printStackTrace(System.out);
-        return result.markInstallAsFailed(
-            "Unable to grant external storage access to application APK.").addException(e).build();
+      DeviceResult installFailure = install(device, deviceDetails, result);
+      if (installFailure != null) {
+        deviceLogger.stop();
+        return installFailure;
       }
+    } finally {
+      gate.exit(Phase.INSTALL);
     }
 
     // Create the output directory, if it does not already exist.
     work.mkdirs();
 
-    // Initiate device logging.
-    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device);
-
     // Run all the tests! o/
+    enter(gate, Phase.INSTRUMENT);
+    SpoonIncrementalPuller incrementalPuller = null;
     try {
       logDebug(debug, "About to actually run tests for [%s]", serial);
-      RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
-      runner.setMaxtimeToOutputResponse(adbTimeout);
-
-      if (instrumentationArgs != null && instrumentationArgs.size() > 0) {
-        for (String pair : instrumentationArgs) {
-          int firstEqualSignIndex = pair.indexOf("=");
-          if (firstEqualSignIndex <= -1) {
-            // No Equal Sign, can't process
-            logDebug(debug, "Can't process instrumentationArg [%s] (no equal sign)", pair);
-            continue;
-          }
-          String key = pair.substring(0, firstEqualSignIndex);
-          String value = pair.substring(firstEqualSignIndex + 1);
-          if (isNullOrEmpty(key) || isNullOrEmpty(value)) {
-            // Invalid values, skipping
-            logDebug(debug, "Can't process instrumentationArg [%s] (empty key or value)", pair);
-            continue;
-          }
-          runner.addInstrumentationArg(key, value);
-        }
-      }
-      if (codeCoverage) {
-        addCodeCoverageInstrumentationArgs(runner, device);
-      }
-      // Add the sharding instrumentation arguments if necessary
-      if (numShards != 0) {
-        addShardingInstrumentationArgs(runner);
-      }
-
-      if (!isNullOrEmpty(className)) {
-        if (isNullOrEmpty(methodName)) {
-          runner.setClassName(className);
-        } else {
-          runner.setMethodName(className, methodName);
-        }
-      }
-      if (testSize != null) {
-        runner.setTestSize(testSize);
-      }
       List<ITestRunListener> listeners = new ArrayList<ITestRunListener>();
       listeners.add(new SpoonTestRunListener(result, debug, testIdentifierAdapter));
       listeners.add(new XmlTestRunListener(junitReport));
       if (testRunListeners != null) {
         listeners.addAll(testRunListeners);
       }
-      runner.run(listeners);
+      if (events != null) {
+        listeners.add(events);
+      }
+      incrementalPuller = newIncrementalPuller(device, deviceDetails);
+      if (incrementalPuller != null) {
+        listeners.add(incrementalPuller);
+      }
+      if (scheduler != null) {
+        try {
+          runScheduledBatches(device, deviceDetails, scheduler, deviceLogger, listeners);
+        } finally {
+          for (Speculation speculation : scheduler.getSpeculations(serial)) {
+            result.addSpeculation(speculation);
+          }
+        }
+      } else {
+        BatchedTestRunListener batchedListener = new BatchedTestRunListener(listeners);
+        try {
+          runWatched(device, deviceDetails, null, null, deviceLogger, batchedListener);
+        } finally {
+          batchedListener.finish();
+        }
+      }
     } catch (Exception e) {
-      result.addException(e);
+      addException(result, e);
+    } finally {
+      gate.exit(Phase.INSTRUMENT);
+    }
+    if (incrementalPuller != null) {
+      try {
+        incrementalPuller.finish(adbTimeout);
+      } catch (InterruptedException e) {
+        addException(result, e);
+      }
     }
 
     mapLogsToTests(deviceLogger, result);
 
+    enter(gate, Phase.PULL);
     try {
       logDebug(debug, "About to grab screenshots and prepare output for [%s]", serial);
-      pullDeviceFiles(device);
-      if (codeCoverage) {
+      pullDeviceFiles(device, deviceDetails, result);
+      if (codeCoverage && scheduler == null) {
         pullCoverageFile(device);
       }
+    } catch (Exception e) {
+      addException(result, e);
+    } finally {
+      gate.exit(Phase.PULL);
+    }
 
+    enter(gate, Phase.POST_PROCESS);
+    try {
       cleanScreenshotsDirectory(result);
       cleanFilesDirectory(result);
-
     } catch (Exception e) {
-      result.addException(e);
+      addException(result, e);
+    } finally {
+      gate.exit(Phase.POST_PROCESS);
     }
     logDebug(debug, "Done running for [%s]", serial);
 
     return result.build();
   }
 
+  /**
+   * Install the application and instrumentation APKs and grant access to external storage.
+   * <p>
+   * Both APKs are pushed to the device at the same time. The application is installed as soon as
+   * it has arrived, and its permissions are granted while the instrumentation is installed.
+   *
+   * @return the failed result if installation failed, or {@code null} on success.
+   */
+  private DeviceResult install(final IDevice device, DeviceDetails deviceDetails,
+      DeviceResult.Builder result) {
+    final String appPackage = instrumentationInfo.getApplicationPackage();
+    String testPackage = instrumentationInfo.getInstrumentationPackage();
+    String extraArgument = "";
+    if (grantAll && deviceDetails.getApiLevel() >= DeviceDetails.MARSHMALLOW_API_LEVEL) {
+      extraArgument = "-g";
+    }
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      ApkInstall appInstall = installCache.checkInstalled(device, apk, appPackage);
+      ApkInstall testInstall = installCache.checkInstalled(device, testApk, testPackage);
+      Future<Long> appPush = appInstall == null ? push(executor, device, apk, appPackage) : null;
+      Future<Long> testPush =
+          testInstall == null ? push(executor, device, testApk, testPackage) : null;
+
+      try {
+        if (appInstall == null) {
+          appInstall = installCache.installPushed(device, apk,
+              SpoonInstallCache.remotePath(appPackage), appPackage, awaitPush(appPush),
+              extraArgument);
+        }
+      } catch (InstallException e) {
+        logInfo("InstallException while install app apk on device [%s]", serial);
+        e.printStackTrace(System.out);
+        return installFailed(result, "Unable to install application APK.", e);
+      }
+      recordInstall(result, appInstall);
+
+      // If this is Android Marshmallow or above grant WRITE_EXTERNAL_STORAGE
+      Future<?> grants = null;
+      if (deviceDetails.getApiLevel() >= DeviceDetails.MARSHMALLOW_API_LEVEL) {
+        grants = executor.submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            SpoonInstallCache.grantExternalStorage(device, appPackage);
+            return null;
+          }
+        });
+      }
+
+      try {
+        if (testInstall == null) {
+          testInstall = installCache.installPushed(device, testApk,
+              SpoonInstallCache.remotePath(testPackage), testPackage, awaitPush(testPush));
+        }
+      } catch (InstallException e) {
+        logInfo("InstallException while install test apk on device [%s]", serial);
+        e.printStackTrace(System.out);
+        return installFailed(result, "Unable to install instrumentation APK.", e);
+      }
+      recordInstall(result, testInstall);
+
+      if (grants != null) {
+        try {
+          awaitGrants(grants);
+        } catch (Exception e) {
+          logInfo("Exception while granting external storage access to application apk"
+              + "on device [%s]", serial);
+          e.printStackTrace(System.out);
+          return installFailed(result,
+              "Unable to grant external storage access to application APK.", e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return null;
+  }
+
+  /** Push {@code apk} in the background, returning how long it took in milliseconds. */
+  private Future<Long> push(ExecutorService executor, final IDevice device, final File apk,
+      final String packageName) {
+    return executor.submit(new Callable<Long>() {
+      @Override public Long call() throws Exception {
+        long start = System.nanoTime();
+        SpoonInstallCache.push(device, apk, packageName);
+        long pushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logDebug(debug, "[%s] Pushed %s in %d ms", serial, apk.getName(), pushMillis);
+        return pushMillis;
+      }
+    });
+  }
+
+  private static void awaitGrants(Future<?> grants) throws Exception {
+    try {
+      grants.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : e;
+    }
+  }
+
+  private static long awaitPush(Future<Long> push) throws InstallException {
+    try {
+      return push.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof InstallException ? (InstallException) cause
+          : new InstallException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InstallException(e);
+    }
+  }
+
+  private void recordInstall(DeviceResult.Builder result, ApkInstall install) {
+    logDebug(debug, "[%s] %s", serial, install);
+    result.addInstall(install);
+    if (events != null) {
+      events.apkInstall(install);
+    }
+  }
+
+  private void enter(DevicePhaseGate gate, Phase phase) {
+    try {
+      gate.enter(phase);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for " + phase + " on " + serial, e);
+    }
+  }
+
+  private void addException(DeviceResult.Builder result, Exception e) {
+    result.addException(e);
+    if (events != null) {
+      events.exception(e);
+    }
+  }
+
+  private void addException(DeviceResult.Builder result, String message) {
+    result.addException(message);
+    if (events != null) {
+      events.exception(message);
+    }
+  }
+
+  private DeviceResult installFailed(DeviceResult.Builder result, String message, Exception e) {
+    result.markInstallAsFailed(message);
+    if (events != null) {
+      events.installFailed(message);
+    }
+    addException(result, e);
+    return result.build();
+  }
+
+  /** Create an instrumentation runner for this device with all of the configured arguments. */
+  private RemoteAndroidTestRunner createTestRunner(IDevice device) throws Exception {
+    String testPackage = instrumentationInfo.getInstrumentationPackage();
+    String testRunner = instrumentationInfo.getTestRunnerClass();
+    RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
+    runner.setMaxtimeToOutputResponse(adbTimeout);
+    runner.addInstrumentationArg(ARG_RUN_ID, runId);
+
+    if (instrumentationArgs != null && instrumentationArgs.size() > 0) {
+      for (String pair : instrumentationArgs) {
+        int firstEqualSignIndex = pair.indexOf("=");
+        if (firstEqualSignIndex <= -1) {
+          // No Equal Sign, can't process
+          logDebug(debug, "Can't process instrumentationArg [%s] (no equal sign)", pair);
+          continue;
+        }
+        String key = pair.substring(0, firstEqualSignIndex);
+        String value = pair.substring(firstEqualSignIndex + 1);
+        if (isNullOrEmpty(key) || isNullOrEmpty(value)) {
+          // Invalid values, skipping
+          logDebug(debug, "Can't process instrumentationArg [%s] (empty key or value)", pair);
+          continue;
+        }
+        runner.addInstrumentationArg(key, value);
+      }
+    }
+    if (codeCoverage) {
+      addCodeCoverageInstrumentationArgs(runner, device);
+    }
+
+    if (!isNullOrEmpty(className)) {
+      if (isNullOrEmpty(methodName)) {
+        runner.setClassName(className);
+      } else {
+        runner.setMethodName(className, methodName);
+      }
+    }
+    if (testSize != null) {
+      runner.setTestSize(testSize);
+    }
+    return runner;
+  }
+
+  /** Enumerate the tests which a full run on this device would execute, without running them. */
+  private List<DeviceTest> listTests(IDevice device) throws Exception {
+    logDebug(debug, "Enumerating tests on [%s]", serial);
+    RemoteAndroidTestRunner runner = createTestRunner(device);
+    runner.setLogOnly(true);
+    TestRunResult collector = new TestRunResult();
+    runner.run(collector);
+    if (collector.isRunFailure()) {
+      throw new IllegalStateException(
+          "Unable to enumerate tests: " + collector.getRunFailureMessage());
+    }
+    List<DeviceTest> tests = new ArrayList<DeviceTest>();
+    for (TestIdentifier test : collector.getTestResults().keySet()) {
+      tests.add(DeviceTest.from(test));
+    }
+    logDebug(debug, "Enumerated %d tests on [%s]", tests.size(), serial);
+    return tests;
+  }
+
+  /**
+   * Pull batches of tests from the shared scheduler and run them until it has none left. If the
+   * device goes offline its unfinished tests are released for other devices to run.
+   */
+  private void runScheduledBatches(final IDevice device, DeviceDetails deviceDetails,
+      SpoonTestScheduler scheduler, SpoonDeviceLogger deviceLogger,
+      List<ITestRunListener> listeners) throws Exception {
+    SpoonTestScheduler.TestLister lister = new SpoonTestScheduler.TestLister() {
+      @Override public List<DeviceTest> listTests() throws Exception {
+        return SpoonDeviceRunner.this.listTests(device);
+      }
+    };
+    BatchedTestRunListener batchedListener = new BatchedTestRunListener(listeners);
+    try {
+      List<DeviceTest> batch;
+      while (!(batch = scheduler.nextBatch(serial, lister)).isEmpty()) {
+        logDebug(debug, "[%s] Running batch of %d tests (%d remaining)", serial, batch.size(),
+            scheduler.remaining());
+        runWatched(device, deviceDetails, batch, scheduler, deviceLogger, batchedListener);
+        if (!device.isOnline()) {
+          logInfo("[%s] Went offline while running tests.", serial);
+          break;
+        }
+        if (codeCoverage) {
+          appendBatchCoverage(device);
+        }
+      }
+    } finally {
+      batchedListener.finish();
+      int released = scheduler.release(serial);
+      if (released > 0) {
+        logInfo("[%s] Returned %d unfinished tests for other devices.", serial, released);
+      }
+    }
+  }
+
+  /**
+   * Run {@code tests}, or the whole suite if {@code null}, stopping any test which runs for longer
+   * than its timeout. When a test is stopped it is reported as failed and the tests after it are
+   * run in a new instrumentation, so one hung test does not lose the rest. Too many tests to name
+   * in one command are run in several instrumentations.
+   *
+   * @param scheduler Scheduler which handed out {@code tests}, or {@code null}.
+   */
+  private void runWatched(IDevice device, DeviceDetails deviceDetails, List<DeviceTest> tests,
+      SpoonTestScheduler scheduler, SpoonDeviceLogger deviceLogger, ITestRunListener listener)
+      throws Exception {
+    while (true) {
+      RemoteAndroidTestRunner runner = createTestRunner(device);
+      int running = 0;
+      if (tests != null) {
+        running = testsThatFit(tests, MAX_CLASS_ARG_LENGTH);
+        String[] classNames = new String[running];
+        for (int i = 0; i < classNames.length; i++) {
+          classNames[i] = classArgument(tests.get(i));
+        }
+        runner.setClassNames(classNames);
+      }
+      ITestRunListener downstream = listener;
+      ScheduledBatchListener batchListener = null;
+      if (scheduler != null) {
+        batchListener = new ScheduledBatchListener(scheduler, serial, runner, listener);
+        downstream = batchListener;
+      }
+      SpoonTestWatchdog watchdog =
+          new SpoonTestWatchdog(runner, testTimeouts, deviceDetails, downstream);
+      // Each instrumentation has a new process, and only the first run start reaches the listeners.
+      deviceLogger.instrumentationStarting();
+      try {
+        runner.run(watchdog);
+      } catch (Exception e) {
+        // The ADB timeout may fire at the same time as the watchdog.
+        if (!watchdog.hasTimedOut()) {
+          throw e;
+        }
+      }
+      DeviceTest hung = watchdog.finish();
+      if (batchListener != null && batchListener.getAbandonedAt() != null) {
+        logInfo("[%s] Stopped batch at %s which another device already finished.", serial,
+            batchListener.getAbandonedAt());
+        return;
+      }
+      if (hung == null) {
+        if (tests == null || running == tests.size()) {
+          return;
+        }
+        tests = tests.subList(running, tests.size());
+        continue;
+      }
+
+      // The instrumentation keeps running on the device until its process is killed.
+      device.executeShellCommand("am force-stop " + instrumentationInfo.getApplicationPackage(),
+          new CollectingOutputReceiver());
+      if (tests == null) {
+        tests = listTests(device);
+      }
+      Set<DeviceTest> started = watchdog.getStarted();
+      List<DeviceTest> remaining = new ArrayList<DeviceTest>();
+      for (DeviceTest test : tests) {
+        if (!started.contains(test)) {
+          remaining.add(test);
+        }
+      }
+      logInfo("[%s] Stopped %s which hung, resuming with %d remaining tests.", serial, hung,
+          remaining.size());
+      if (remaining.isEmpty()) {
+        return;
+      }
+      tests = remaining;
+    }
+  }
+
+  /**
+   * How many of {@code tests}, at least one, can be named in a {@code -e class} argument of no more
+   * than {@code maxLength} characters.
+   */
+  static int testsThatFit(List<DeviceTest> tests, int maxLength) {
+    int length = classArgument(tests.get(0)).length();
+    int count = 1;
+    while (count < tests.size()) {
+      length += 1 + classArgument(tests.get(count)).length();
+      if (length > maxLength) {
+        break;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  private static String classArgument(DeviceTest test) {
+    return test.getClassName() + "#" + test.getMethodName();
+  }
+
+  /**
+   * Each instrumentation run overwrites the coverage file on the device so accumulate the data
+   * from every batch into the local coverage file as we go.
+   */
+  private void appendBatchCoverage(IDevice device) throws Exception {
+    coverageDir.mkdirs();
+    File batchFile = new File(work, COVERAGE_FILE);
+    adbPullFile(device, getExternalStoragePath(device, COVERAGE_FILE),
+        batchFile.getAbsolutePath());
+    if (batchFile.exists()) {
+      ExecFileLoader loader = new ExecFileLoader();
+      loader.load(batchFile);
+      loader.save(new File(coverageDir, COVERAGE_FILE), true);
+      batchFile.delete();
+    }
+  }
+
   private void addCodeCoverageInstrumentationArgs(RemoteAndroidTestRunner runner, IDevice device)
           throws Exception {
     String coveragePath = getExternalStoragePath(device, COVERAGE_FILE);
@@ -316,11 +766,6 @@ public final class SpoonDeviceRunner {
     runner.addInstrumentationArg("coverageFile", coveragePath);
   }
 
-  private void addShardingInstrumentationArgs(RemoteAndroidTestRunner runner) {
-    runner.addInstrumentationArg("numShards", Integer.toString(numShards));
-    runner.addInstrumentationArg("shardIndex", Integer.toString(shardIndex));
-  }
-
   private void cleanScreenshotsDirectory(DeviceResult.Builder result) throws IOException {
     File screenshotDir = new File(work, DEVICE_SCREENSHOT_DIR);
     if (screenshotDir.exists()) {
@@ -357,18 +802,26 @@ public final class SpoonDeviceRunner {
     File[] classNameDirs = screenshotDir.listFiles();
     if (classNameDirs != null) {
       Multimap<DeviceTest, File> testScreenshots = ArrayListMultimap.create();
+      List<File> frames = new ArrayList<File>();
       for (File classNameDir : classNameDirs) {
+        if (!classNameDir.isDirectory()) {
+          continue; // The manifest.
+        }
         String className = classNameDir.getName();
         File destDir = new File(imageDir, className);
-        FileUtils.copyDirectory(classNameDir, destDir);
+        FileUtils.copyDirectory(classNameDir, destDir, NOT_MANIFEST);
 
         // Get a sorted list of all screenshots from the device run.
         List<File> screenshots = new ArrayList<File>(
-            FileUtils.listFiles(destDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
+            FileUtils.listFiles(destDir, NOT_MANIFEST, TrueFileFilter.INSTANCE));
         Collections.sort(screenshots);
 
         // Iterate over each screenshot and associate it with its corresponding method result.
         for (File screenshot : screenshots) {
+          if (screenshot.getName().endsWith(GIF_FRAME_SUFFIX)) {
+            frames.add(screenshot);
+            continue; // Only for the animated GIF, which is made below.
+          }
           String methodName = screenshot.getParentFile().getName();
 
           DeviceTest testIdentifier = new DeviceTest(className, methodName);
@@ -393,11 +846,30 @@ public final class SpoonDeviceRunner {
           }
           File animatedGif = FileUtils.getFile(imageDir, deviceTest.getClassName(),
               deviceTest.getMethodName() + ".gif");
-          createAnimatedGif(screenshots, animatedGif);
-          result.getMethodResultBuilder(deviceTest).setAnimatedGif(animatedGif);
+          if (createAnimatedGif(gifFrames(screenshots), animatedGif)) {
+            result.getMethodResultBuilder(deviceTest).setAnimatedGif(animatedGif);
+          } else {
+            logDebug(debug, "Not enough readable screenshots to animate %s", deviceTest);
+          }
         }
       }
+      for (File frame : frames) {
+        FileUtils.deleteQuietly(frame);
+      }
+    }
+  }
+
+  /**
+   * The frames to animate {@code screenshots} from, which are the PNGs that the client wrote
+   * alongside screenshots taken in other formats, or the screenshots themselves.
+   */
+  static List<File> gifFrames(List<File> screenshots) {
+    List<File> frames = new ArrayList<File>(screenshots.size());
+    for (File screenshot : screenshots) {
+      File frame = new File(screenshot.getPath() + GIF_FRAME_SUFFIX);
+      frames.add(frame.exists() ? frame : screenshot);
     }
+    return frames;
   }
 
   private void handleFiles(DeviceResult.Builder result, File testFileDir) throws IOException {
@@ -405,14 +877,17 @@ public final class SpoonDeviceRunner {
     if (classNameDirs != null) {
       logInfo("Found class name dirs: " + Arrays.toString(classNameDirs));
       for (File classNameDir : classNameDirs) {
+        if (!classNameDir.isDirectory()) {
+          continue; // The manifest.
+        }
         String className = classNameDir.getName();
         File destDir = new File(fileDir, className);
-        FileUtils.copyDirectory(classNameDir, destDir);
+        FileUtils.copyDirectory(classNameDir, destDir, NOT_MANIFEST);
         logInfo("Copied " + classNameDir + " to " + destDir);
 
         // Get a sorted list of all files from the device run.
         List<File> files = new ArrayList<File>(
-            FileUtils.listFiles(destDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
+            FileUtils.listFiles(destDir, NOT_MANIFEST, TrueFileFilter.INSTANCE));
         Collections.sort(files);
 
         // Iterate over each file and associate it with its
@@ -433,11 +908,161 @@ public final class SpoonDeviceRunner {
     }
   }
 
-  /** Download all files from a single device to the local machine. */
-  private void pullDeviceFiles(IDevice device) throws Exception {
+  /**
+   * Create a listener which pulls each test's files as it ends, or return {@code null} when that
+   * is not wanted. Only output on external storage, from Lollipop on, can be deleted afterwards.
+   */
+  private SpoonIncrementalPuller newIncrementalPuller(IDevice device,
+      DeviceDetails deviceDetails) {
+    if (!incrementalPull) {
+      return null;
+    }
+    if (deviceDetails.getApiLevel() < DeviceDetails.LOLLIPOP_API_LEVEL) {
+      logInfo("[%s] Pulling files as tests end needs Lollipop, pulling them after the run.",
+          serial);
+      return null;
+    }
+    Map<String, String> remoteDirs = new LinkedHashMap<String, String>();
+    try {
+      for (String dir : DEVICE_DIRS) {
+        remoteDirs.put(dir, getExternalStoragePath(device, dir));
+      }
+    } catch (Exception e) {
+      logError("[%s] Unable to find external storage, pulling files after the run: %s", serial,
+          e.getMessage());
+      return null;
+    }
+    return new SpoonIncrementalPuller(device, serial, debug, work, remoteDirs);
+  }
+
+  /**
+   * Download all files from a single device to the local machine. When the client listed what it
+   * wrote in manifests only those files are fetched, and verified. Devices which can stream the
+   * output of a command send everything as one compressed archive, unpacked while it arrives,
+   * instead of one file at a time.
+   */
+  private void pullDeviceFiles(IDevice device, DeviceDetails deviceDetails,
+      DeviceResult.Builder result) throws Exception {
+    long start = System.nanoTime();
+    boolean external = deviceDetails.getApiLevel() >= DeviceDetails.LOLLIPOP_API_LEVEL;
+    boolean canStream = deviceDetails.getApiLevel() >= DeviceExec.MIN_API_LEVEL;
+    List<Artifact> listed = readManifests(device, external);
+    ArtifactTransfer transfer;
+    if (listed != null) {
+      transfer = pullListedFiles(device, listed, canStream, start, result);
+    } else {
+      transfer = pullAllFiles(device, canStream, start);
+    }
+    result.setTransfer(transfer);
+    logInfo("[%s] %s (%d bytes/s)", serial, transfer, transfer.getBytesPerSecond());
+  }
+
+  /**
+   * Copy the manifest of each output directory from the device and read them.
+   *
+   * @return the files they list, or {@code null} if there were none because the client predates
+   * manifests.
+   */
+  private List<Artifact> readManifests(IDevice device, boolean external) throws Exception {
+    List<Artifact> listed = null;
+    for (String dir : DEVICE_DIRS) {
+      String remoteDir = external ? getExternalStoragePath(device, dir) : getInternalPath(dir);
+      File localDir = new File(work, dir);
+      File manifest = new File(localDir, SpoonManifest.FILE_NAME);
+      localDir.mkdirs();
+      manifest.delete();
+      adbPullFile(device, remoteDir + "/" + SpoonManifest.FILE_NAME, manifest.getAbsolutePath());
+      if (manifest.exists()) {
+        if (listed == null) {
+          listed = new ArrayList<Artifact>();
+        }
+        listed.addAll(SpoonArtifactPuller.readManifest(manifest, remoteDir, localDir));
+      }
+    }
+    return listed;
+  }
+
+  private ArtifactTransfer pullListedFiles(IDevice device, List<Artifact> listed,
+      boolean canStream, long start, DeviceResult.Builder result) throws Exception {
+    List<Artifact> missing = SpoonArtifactPuller.missing(listed);
+    int skipped = listed.size() - missing.size();
+    boolean streamed = false;
+    long bytes = 0;
+    if (canStream && skipped == 0 && !missing.isEmpty()) {
+      // Nothing is here yet so everything is needed, which one archive delivers fastest.
+      try {
+        bytes = streamDeviceFiles(device, start).getBytes();
+        streamed = true;
+        missing = SpoonArtifactPuller.missing(listed);
+      } catch (IOException e) {
+        logDebug(debug, "[%s] Unable to stream files, pulling them instead: %s", serial,
+            e.getMessage());
+      }
+    }
+    logDebug(debug, "[%s] Pulling %d listed files, %d already here", serial, missing.size(),
+        listed.size() - missing.size());
+    bytes += SpoonArtifactPuller.pull(device, missing, SpoonArtifactPuller.SYNC_CONNECTIONS);
+
+    List<Artifact> corrupt = SpoonArtifactPuller.missing(missing);
+    for (Artifact artifact : corrupt) {
+      artifact.localFile.delete();
+    }
+    if (!corrupt.isEmpty()) {
+      addException(result, corrupt.size() + " files did not match the manifest after pulling: "
+          + corrupt);
+    }
+    return new ArtifactTransfer(streamed, listed.size() - skipped - corrupt.size(), skipped,
+        bytes, millisSince(start));
+  }
+
+  /** Copy both output directories in full, for clients which do not write manifests. */
+  private ArtifactTransfer pullAllFiles(IDevice device, boolean canStream, long start)
+      throws Exception {
+    if (canStream) {
+      try {
+        return streamDeviceFiles(device, start);
+      } catch (IOException e) {
+        logDebug(debug, "[%s] Unable to stream files, pulling them instead: %s", serial,
+            e.getMessage());
+      }
+    }
     for (String dir : DEVICE_DIRS) {
       pullDirectory(device, dir);
     }
+    int files = 0;
+    long bytes = 0;
+    for (String dir : DEVICE_DIRS) {
+      File localDir = new File(work, dir);
+      if (localDir.exists()) {
+        files += FileUtils.listFiles(localDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)
+            .size();
+        bytes += FileUtils.sizeOfDirectory(localDir);
+      }
+    }
+    return new ArtifactTransfer(false, files, 0, bytes, millisSince(start));
+  }
+
+  /**
+   * Stream the output directories on external storage as one tar archive, gzipped if the device
+   * can. Before Lollipop, where {@link DeviceExec} cannot be used, output is on internal storage.
+   */
+  private ArtifactTransfer streamDeviceFiles(IDevice device, long start) throws IOException {
+    String dirs = DEVICE_SCREENSHOT_DIR + " " + DEVICE_FILE_DIR;
+    String command = "cd \"$EXTERNAL_STORAGE\" && if type gzip >/dev/null 2>&1;"
+        + " then tar -czf - " + dirs + "; else tar -cf - " + dirs + "; fi 2>/dev/null";
+    work.mkdirs();
+    CountingInputStream archive =
+        new CountingInputStream(DeviceExec.open(device, command, adbTimeout));
+    try {
+      int files = TarExtractor.extract(archive, work);
+      return new ArtifactTransfer(true, files, 0, archive.getCount(), millisSince(start));
+    } finally {
+      archive.close();
+    }
+  }
+
+  private static long millisSince(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
   }
 
   private void pullDirectory(final IDevice device, final String name) throws Exception {
@@ -493,18 +1118,16 @@ public final class SpoonDeviceRunner {
   }
 
   private String getExternalStoragePath(IDevice device, final String path) throws Exception {
-    CollectingOutputReceiver pathNameOutputReceiver = new CollectingOutputReceiver();
-    device.executeShellCommand("echo $EXTERNAL_STORAGE", pathNameOutputReceiver);
-    return pathNameOutputReceiver.getOutput().trim() + "/" + path;
+    return DeviceSession.of(device).getExternalStorage() + "/" + path;
   }
 
   /** Grab all the parsed logs and map them to individual tests. */
   private static void mapLogsToTests(SpoonDeviceLogger deviceLogger, DeviceResult.Builder result) {
-    Map<DeviceTest, List<LogCatMessage>> logs = deviceLogger.getParsedLogs();
-    for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : logs.entrySet()) {
+    Map<DeviceTest, DeviceLogSlice> logs = deviceLogger.getLogSlices();
+    for (Map.Entry<DeviceTest, DeviceLogSlice> entry : logs.entrySet()) {
       DeviceTestResult.Builder builder = result.getMethodResultBuilder(entry.getKey());
       if (builder != null) {
-        builder.setLog(entry.getValue());
+        builder.setLogSlice(entry.getValue());
       }
     }
   }
@@ -513,12 +1136,18 @@ public final class SpoonDeviceRunner {
   ////  Secondary Per-Device Process  /////////////////////////////////////////
   /////////////////////////////////////////////////////////////////////////////
 
-  /** De-serialize from disk, run the tests, and serialize the result back to disk. */
+  /**
+   * De-serialize from disk, run the tests, and stream the result back to the parent over standard
+   * output. Anything else written to standard output is redirected to standard error.
+   */
   public static void main(String... args) {
     if (args.length != 1) {
       throw new IllegalArgumentException("Must be started with a device directory.");
     }
 
+    DeviceEventStream.Writer events =
+        new DeviceEventStream.Writer(new FileOutputStream(FileDescriptor.out));
+    System.setOut(System.err);
     try {
       String outputDirName = args[0];
       File outputDir = new File(outputDirName);
@@ -532,16 +1161,15 @@ public final class SpoonDeviceRunner {
       reader.close();
 
       AndroidDebugBridge adb = SpoonUtils.initAdb(target.sdk, target.adbTimeout);
-      DeviceResult result = target.run(adb);
+      target.events = events;
+      DeviceResult result = target.run(adb, null, events.remoteGate(System.in));
       AndroidDebugBridge.terminate();
 
-      // Write device result file.
-      FileWriter writer = new FileWriter(new File(outputDir, FILE_RESULT));
-      GSON.toJson(result, writer);
-      writer.close();
+      events.finish(result);
     } catch (Throwable ex) {
       logInfo("ERROR: Unable to execute test for target.  Exception message: %s", ex.getMessage());
       ex.printStackTrace(System.out);
+      events.exception(ex);
       System.exit(1);
     }
   }
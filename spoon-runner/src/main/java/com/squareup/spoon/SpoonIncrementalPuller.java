@@ -0,0 +1,140 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.android.ddmlib.SyncService.getNullProgressMonitor;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonArtifactPuller.Artifact;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Pulls the screenshots and files of each test in the background as soon as it ends, using the
+ * manifest in the test's directory, and deletes them from the device once they are verified.
+ * Anything it misses stays on the device for the pull after the run, which skips whatever is
+ * already here.
+ */
+final class SpoonIncrementalPuller extends NoOpTestRunListener {
+  private final IDevice device;
+  private final String serial;
+  private final boolean debug;
+  private final File work;
+  /** Remote output directory by the name of its local copy in {@link #work}. */
+  private final Map<String, String> remoteDirs;
+  private final ExecutorService executor;
+  private final AtomicInteger files = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+
+  SpoonIncrementalPuller(IDevice device, final String serial, boolean debug, File work,
+      Map<String, String> remoteDirs) {
+    this.device = checkNotNull(device);
+    this.serial = checkNotNull(serial);
+    this.debug = debug;
+    this.work = checkNotNull(work);
+    this.remoteDirs = new LinkedHashMap<String, String>(remoteDirs);
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "spoon-" + serial + "-pull");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /** Wait up to {@code timeoutMillis} for the pulls of tests which already ended. */
+  void finish(long timeoutMillis) throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      executor.shutdownNow();
+      logError("[%s] Gave up waiting for files of finished tests.", serial);
+    }
+    logInfo("[%s] Pulled %d files, %d bytes, while tests ran", serial, files.get(), bytes.get());
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    final DeviceTest deviceTest = DeviceTest.from(test);
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          pullTest(deviceTest);
+        } catch (Exception e) {
+          logError("[%s] Unable to pull files of %s: %s", serial, deviceTest, e.getMessage());
+        }
+      }
+    });
+  }
+
+  private void pullTest(DeviceTest test) throws Exception {
+    // Matches how the client names the directory of a test class.
+    String testPath = test.getClassName().replaceAll("[^A-Za-z0-9._-]", "_") + "/"
+        + test.getMethodName();
+    List<String> verified = new ArrayList<String>();
+    for (Map.Entry<String, String> dir : remoteDirs.entrySet()) {
+      String remoteTestDir = dir.getValue() + "/" + testPath;
+      File manifest = new File(work, dir.getKey() + "-" + SpoonManifest.FILE_NAME);
+      if (!pullManifest(remoteTestDir + "/" + SpoonManifest.FILE_NAME, manifest)) {
+        continue;
+      }
+      List<Artifact> artifacts = SpoonArtifactPuller.readManifest(manifest, dir.getValue(),
+          new File(work, dir.getKey()));
+      manifest.delete();
+
+      List<Artifact> missing = SpoonArtifactPuller.missing(artifacts);
+      bytes.addAndGet(SpoonArtifactPuller.pull(device, missing, 1));
+      List<Artifact> unverified = SpoonArtifactPuller.missing(missing);
+      files.addAndGet(missing.size() - unverified.size());
+      for (Artifact artifact : artifacts) {
+        if (!unverified.contains(artifact)) {
+          verified.add(artifact.remotePath);
+        }
+      }
+      if (unverified.isEmpty()) {
+        verified.add(remoteTestDir + "/" + SpoonManifest.FILE_NAME);
+      } else {
+        logDebug(debug, "[%s] %d files of %s did not match, leaving them on the device", serial,
+            unverified.size(), test);
+      }
+    }
+    if (!verified.isEmpty()) {
+      StringBuilder command = new StringBuilder("rm -f");
+      for (String path : verified) {
+        command.append(" '").append(path.replace("'", "'\\''")).append('\'');
+      }
+      device.executeShellCommand(command.toString(), new CollectingOutputReceiver());
+    }
+  }
+
+  /** Copy a test's manifest, returning {@code false} if the test did not write one. */
+  private boolean pullManifest(String remote, File local) throws Exception {
+    local.delete();
+    SyncService sync = device.getSyncService();
+    if (sync == null) {
+      throw new IOException("Unable to open a sync connection.");
+    }
+    try {
+      sync.pullFile(remote, local.getAbsolutePath(), getNullProgressMonitor());
+    } catch (SyncException e) {
+      return false;
+    } finally {
+      sync.close();
+    }
+    return local.exists();
+  }
+}
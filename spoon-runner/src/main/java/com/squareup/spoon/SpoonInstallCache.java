@@ -0,0 +1,198 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.InstallException;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Skips installing an APK on a device when the same APK is already installed there.
+ * <p>
+ * After each install a marker is written to the device recording the hash of the APK, where the
+ * package manager put it and how long the install took. A later install of an APK with the same
+ * hash is skipped as long as the package is still installed at the same path, since any other
+ * install, including one not made by Spoon, moves it.
+ */
+final class SpoonInstallCache {
+  static final String MARKER_DIR = "/data/local/tmp/spoon-installs";
+  /** Where APKs are pushed to before being installed. */
+  static final String REMOTE_DIR = "/data/local/tmp";
+
+  private final boolean force;
+  /** APK path to SHA-1 of its contents. */
+  private final Map<String, String> hashes;
+
+  private SpoonInstallCache(boolean force, Map<String, String> hashes) {
+    this.force = force;
+    this.hashes = hashes;
+  }
+
+  /**
+   * Hash {@code apks} so that each is read only once however many devices it is installed on.
+   *
+   * @param force Always install, but still record the markers for the next run.
+   */
+  static SpoonInstallCache create(boolean force, File... apks) {
+    Map<String, String> hashes = new LinkedHashMap<String, String>();
+    for (File apk : apks) {
+      try {
+        hashes.put(apk.getAbsolutePath(), Files.hash(apk, Hashing.sha1()).toString());
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to hash " + apk, e);
+      }
+    }
+    return new SpoonInstallCache(force, hashes);
+  }
+
+  /**
+   * Check whether {@code apk} is already installed as {@code packageName} on {@code device}.
+   *
+   * @return the skipped install if so, or {@code null} if it needs to be installed.
+   */
+  ApkInstall checkInstalled(IDevice device, File apk, String packageName) {
+    if (force) {
+      return null;
+    }
+    long start = System.nanoTime();
+    try {
+      Marker marker = Marker.parse(shell(device, "cat " + markerPath(packageName)
+          + " 2>/dev/null"));
+      if (marker != null && marker.hash.equals(hashOf(apk))
+          && marker.path.equals(installedPath(device, packageName))) {
+        return new ApkInstall(packageName, true, elapsedMillis(start), marker.installMillis);
+      }
+    } catch (Exception e) {
+      logInfo("Unable to check installed %s, installing: %s", packageName, e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Copy {@code apk} to a temporary location on {@code device} to be installed from with
+   * {@link #installPushed}. Several APKs may be pushed to the same device at once.
+   *
+   * @return the path of the APK on the device.
+   */
+  static String push(IDevice device, File apk, String packageName) throws InstallException {
+    String remotePath = remotePath(packageName);
+    try {
+      device.pushFile(apk.getAbsolutePath(), remotePath);
+    } catch (Exception e) {
+      throw new InstallException("Unable to push " + apk.getName(), e);
+    }
+    return remotePath;
+  }
+
+  /**
+   * Install an APK which was already pushed to {@code remotePath} and remember it for next time.
+   *
+   * @param pushMillis How long the push took, to be included in the install duration.
+   */
+  ApkInstall installPushed(IDevice device, File apk, String remotePath, String packageName,
+      long pushMillis, String... extraArgs) throws InstallException {
+    long start = System.nanoTime();
+    try {
+      device.installRemotePackage(remotePath, true, extraArgs);
+    } finally {
+      try {
+        device.removeRemotePackage(remotePath);
+      } catch (InstallException e) {
+        logInfo("Unable to remove %s: %s", remotePath, e.getMessage());
+      }
+    }
+    long installMillis = pushMillis + elapsedMillis(start);
+    try {
+      String path = installedPath(device, packageName);
+      if (!path.isEmpty()) {
+        shell(device, "mkdir -p " + MARKER_DIR + " && echo '" + hashOf(apk) + " " + path + " "
+            + installMillis + "' > " + markerPath(packageName));
+      }
+    } catch (Exception e) {
+      // Only means that the next run installs again.
+      logInfo("Unable to record install of %s: %s", packageName, e.getMessage());
+    }
+    return new ApkInstall(packageName, false, installMillis, 0);
+  }
+
+  /**
+   * Grant the installed {@code packageName} access to external storage, where screenshots and
+   * files are written. Can run while another APK is installed on the same device.
+   */
+  static void grantExternalStorage(IDevice device, String packageName) throws Exception {
+    shell(device, "pm grant " + packageName + " android.permission.READ_EXTERNAL_STORAGE");
+    shell(device, "pm grant " + packageName + " android.permission.WRITE_EXTERNAL_STORAGE");
+  }
+
+  /** Where {@link #push} puts the APK for {@code packageName} on the device. */
+  static String remotePath(String packageName) {
+    return REMOTE_DIR + "/" + packageName + ".apk";
+  }
+
+  private String hashOf(File apk) {
+    String hash = hashes.get(apk.getAbsolutePath());
+    checkArgument(hash != null, "APK was not hashed: %s", apk);
+    return hash;
+  }
+
+  private static String markerPath(String packageName) {
+    return MARKER_DIR + "/" + packageName;
+  }
+
+  /** Where the package manager has the APK for {@code packageName}, or empty if not installed. */
+  private static String installedPath(IDevice device, String packageName) throws Exception {
+    String output = shell(device, "pm path " + packageName);
+    // Split APKs list several paths, the first of which is the base APK.
+    for (String line : output.split("\n")) {
+      line = line.trim();
+      if (line.startsWith("package:")) {
+        return line.substring("package:".length());
+      }
+    }
+    return "";
+  }
+
+  private static String shell(IDevice device, String command) throws Exception {
+    CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+    device.executeShellCommand(command, receiver);
+    return receiver.getOutput().trim();
+  }
+
+  private static long elapsedMillis(long start) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /** Contents of a marker file: hash, installed path and install duration. */
+  static final class Marker {
+    final String hash;
+    final String path;
+    final long installMillis;
+
+    Marker(String hash, String path, long installMillis) {
+      this.hash = hash;
+      this.path = path;
+      this.installMillis = installMillis;
+    }
+
+    /** Returns {@code null} if {@code contents} is not a valid marker. */
+    static Marker parse(String contents) {
+      String[] parts = contents.trim().split(" ");
+      if (parts.length != 3) {
+        return null;
+      }
+      try {
+        return new Marker(parts[0], parts[1], Long.parseLong(parts[2]));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -1,36 +1,227 @@
 package com.squareup.spoon;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Simple logger interface. */
+/**
+ * Simple logger interface. Callers only note the time, their stack and the arguments, and hand
+ * them to a background thread which formats and prints them, so that a slow console never holds
+ * up a device. If the writer falls {@link #QUEUE_SIZE} lines behind, new info and debug lines are
+ * dropped and counted rather than waited on, while errors wait for room so that none are lost.
+ * Arguments must not be changed after they are logged.
+ */
 final class SpoonLogger {
-  private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
-    @Override protected DateFormat initialValue() {
-      return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    }
-  };
+  static final int QUEUE_SIZE = 8192;
+  private static final long FLUSH_TIMEOUT_SECONDS = 5;
+
+  private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+  private static final AtomicInteger DROPPED = new AtomicInteger();
+  private static final Writer WRITER = new Writer();
+
+  static {
+    Thread thread = new Thread(WRITER, "spoon-logger");
+    thread.setDaemon(true);
+    thread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread("spoon-logger-flush") {
+      @Override public void run() {
+        flush();
+      }
+    });
+  }
 
   static void logError(String message, Object... args) {
-    System.err.println(getPrefix() + String.format(message, args));
+    log(true, message, args);
   }
 
   static void logInfo(String message, Object... args) {
-    System.out.println(getPrefix() + String.format(message, args));
+    log(false, message, args);
   }
 
   static void logDebug(boolean debug, String message, Object... args) {
-    if (debug) System.out.println(getPrefix() + String.format(message, args));
+    if (debug) log(false, message, args);
+  }
+
+  /** Must only be called from the methods above, so that the caller is always two frames up. */
+  private static void log(boolean error, String message, Object[] args) {
+    // Filling in the stack is cheap. Turning it into elements is left to the writer.
+    Entry entry = new Entry(error, System.currentTimeMillis(), new Throwable(), message, args);
+    if (QUEUE.offer(entry)) {
+      return;
+    }
+    if (!error) {
+      DROPPED.incrementAndGet();
+      return;
+    }
+    try {
+      QUEUE.put(entry);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      WRITER.printNow(entry); // Out of order, but not lost.
+    }
+  }
+
+  /** Wait for everything logged so far to be printed. */
+  static void flush() {
+    Entry marker = new Entry(false, 0, null, null, null);
+    try {
+      if (QUEUE.offer(marker, FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        marker.flushed.await(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Append to {@code file} instead of printing to the console. Lines logged before this are
+   * printed where they would have been.
+   */
+  static void setFile(File file) throws IOException {
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    setStream(new PrintStream(new FileOutputStream(file, true), false, "UTF-8"));
+  }
+
+  /**
+   * Print to {@code stream} instead of the console, or to the console again if it is
+   * {@code null}. The stream which was used before is closed.
+   */
+  static void setStream(PrintStream stream) {
+    flush();
+    WRITER.setStream(stream);
+  }
+
+  private static final class Entry {
+    final boolean error;
+    final long time;
+    final Throwable caller;
+    final String message;
+    final Object[] args;
+    final CountDownLatch flushed = new CountDownLatch(1);
+
+    Entry(boolean error, long time, Throwable caller, String message, Object[] args) {
+      this.error = error;
+      this.time = time;
+      this.caller = caller;
+      this.message = message;
+      this.args = args;
+    }
+  }
+
+  /** Prints entries from the queue. Apart from the stream, only its own thread touches it. */
+  private static final class Writer implements Runnable {
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Map<String, String> abbreviations = new HashMap<String, String>();
+    private final StringBuilder line = new StringBuilder();
+    private long second = -1;
+    private String timestamp;
+    // Guarded by this.
+    private PrintStream stream;
+
+    synchronized void printNow(Entry entry) {
+      print(entry);
+    }
+
+    synchronized void setStream(PrintStream stream) {
+      if (this.stream != null) {
+        this.stream.close();
+      }
+      this.stream = stream;
+    }
+
+    @Override public void run() {
+      while (true) {
+        Entry entry;
+        try {
+          entry = QUEUE.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        synchronized (this) {
+          int dropped = DROPPED.getAndSet(0);
+          if (dropped > 0) {
+            stream(true).println(
+                String.format("Spoon dropped %d log lines while the console was busy.", dropped));
+          }
+          if (entry.caller == null) {
+            stream(false).flush();
+            stream(true).flush();
+            entry.flushed.countDown();
+          } else {
+            print(entry);
+          }
+        }
+      }
+    }
+
+    private PrintStream stream(boolean error) {
+      if (stream != null) {
+        return stream;
+      }
+      // Looked up each time as they can be redirected.
+      return error ? System.err : System.out;
+    }
+
+    private void print(Entry entry) {
+      line.setLength(0);
+      StackTraceElement[] stackTrace = entry.caller.getStackTrace();
+      if (stackTrace == null || stackTrace.length < 3) {
+        line.append("[BOGUS] ");
+      } else {
+        line.append(timestamp(entry.time))
+            .append(" [")
+            .append(abbreviate(stackTrace[2].getClassName()))
+            .append('.')
+            .append(stackTrace[2].getMethodName())
+            .append("] ");
+      }
+      try {
+        line.append(String.format(entry.message, entry.args));
+      } catch (RuntimeException e) {
+        line.append(entry.message).append(" (").append(e).append(')');
+      }
+      stream(entry.error).println(line);
+    }
+
+    private String timestamp(long time) {
+      long second = time / 1000;
+      if (second != this.second) {
+        this.second = second;
+        timestamp = dateFormat.format(new Date(time));
+      }
+      return timestamp;
+    }
+
+    /** Drop lowercase letters and dots, so {@code com.example.FooBar$1} becomes {@code FB$1}. */
+    private String abbreviate(String className) {
+      String abbreviation = abbreviations.get(className);
+      if (abbreviation == null) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < className.length(); i++) {
+          char c = className.charAt(i);
+          if (c != '.' && (c < 'a' || c > 'z')) {
+            builder.append(c);
+          }
+        }
+        abbreviation = builder.toString();
+        abbreviations.put(className, abbreviation);
+      }
+      return abbreviation;
+    }
   }
 
-  private static String getPrefix() {
-    StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-    if (stackTrace == null || stackTrace.length < 4) return "[BOGUS]";
-    String className = stackTrace[3].getClassName();
-    String methodName = stackTrace[3].getMethodName();
-    className = className.replaceAll("[a-z\\.]", "");
-    String timestamp = DATE_FORMAT.get().format(new Date());
-    return String.format("%s [%s.%s] ", timestamp, className, methodName);
+  private SpoonLogger() {
+    // No instances.
   }
 }
@@ -0,0 +1,41 @@
+package com.squareup.spoon;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounds how many devices may be in each phase of their run at once, so that for example installs
+ * do not saturate the host's USB hubs while instrumentation runs on every device.
+ */
+final class SpoonPhaseLimits implements DevicePhaseGate {
+  /** Phases without an entry are unlimited. */
+  private final Map<Phase, Semaphore> permits = new EnumMap<Phase, Semaphore>(Phase.class);
+
+  /** @param limits Maximum concurrent devices per phase, where zero means unlimited. */
+  SpoonPhaseLimits(Map<Phase, Integer> limits) {
+    for (Map.Entry<Phase, Integer> entry : limits.entrySet()) {
+      int limit = entry.getValue();
+      checkArgument(limit >= 0, "Limit for %s must not be negative.", entry.getKey());
+      if (limit > 0) {
+        permits.put(entry.getKey(), new Semaphore(limit, true));
+      }
+    }
+  }
+
+  @Override public void enter(Phase phase) throws InterruptedException {
+    Semaphore semaphore = permits.get(phase);
+    if (semaphore != null) {
+      semaphore.acquire();
+    }
+  }
+
+  @Override public void exit(Phase phase) {
+    Semaphore semaphore = permits.get(phase);
+    if (semaphore != null) {
+      semaphore.release();
+    }
+  }
+}
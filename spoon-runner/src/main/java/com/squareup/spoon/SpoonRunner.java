@@ -1,6 +1,7 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.beust.jcommander.IStringConverter;
@@ -18,13 +19,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -33,12 +38,12 @@ import static com.squareup.spoon.DeviceTestResult.Status;
 import static com.squareup.spoon.SpoonInstrumentationInfo.parseFromFile;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logInfo;
-import static java.util.Collections.synchronizedSet;
 
 /** Represents a collection of devices and the test configuration to be executed. */
 public final class SpoonRunner {
   private static final String DEFAULT_TITLE = "Spoon Execution";
   public static final String DEFAULT_OUTPUT_DIRECTORY = "spoon-output";
+  public static final String DEFAULT_TIMING_STORE = "spoon-timings.json";
   private static final int DEFAULT_ADB_TIMEOUT_SEC = 10 * 60; //10 minutes
   private final ExecutorService threadExecutor;
 
@@ -50,12 +55,18 @@ public final class SpoonRunner {
   private final boolean debug;
   private final boolean noAnimations;
   private final int adbTimeoutMillis;
+  private final int testTimeoutMillis;
   private final List<String> instrumentationArgs;
   private final String className;
   private final String methodName;
   private final Set<String> serials;
   private final Set<String> skipDevices;
   private final boolean shard;
+  private final boolean dynamicShard;
+  private final boolean inProcess;
+  private final boolean forceInstall;
+  private final SpoonPhaseLimits phaseLimits;
+  private final File timingStore;
   private final String classpath;
   private final IRemoteAndroidTestRunner.TestSize testSize;
   private boolean codeCoverage;
@@ -64,14 +75,23 @@ public final class SpoonRunner {
   private final boolean terminateAdb;
   private File initScript;
   private final boolean grantAll;
+  private final boolean incrementalPull;
+  private final int maxLogLines;
+  private final String logcatFilter;
+  private final boolean logcatAppOnly;
+  private final File logFile;
 
   private SpoonRunner(String title, File androidSdk, File applicationApk, File instrumentationApk,
-      File output, boolean debug, boolean noAnimations, int adbTimeoutMillis, Set<String> serials,
-      Set<String> skipDevices,
-      boolean shard, String classpath, List<String> instrumentationArgs, String className,
-      String methodName, IRemoteAndroidTestRunner.TestSize testSize,
+      File output, boolean debug, boolean noAnimations, int adbTimeoutMillis,
+      int testTimeoutMillis, Set<String> serials, Set<String> skipDevices, boolean shard,
+      boolean dynamicShard, boolean inProcess,
+      boolean forceInstall, SpoonPhaseLimits phaseLimits, File timingStore, String classpath,
+      List<String> instrumentationArgs, String className, String methodName,
+      IRemoteAndroidTestRunner.TestSize testSize,
       boolean failIfNoDeviceConnected, List<ITestRunListener> testRunListeners, boolean sequential,
-      File initScript, boolean grantAll, boolean terminateAdb, boolean codeCoverage) {
+      File initScript, boolean grantAll, boolean incrementalPull, int maxLogLines,
+      String logcatFilter, boolean logcatAppOnly, File logFile, boolean terminateAdb,
+      boolean codeCoverage) {
     this.title = title;
     this.androidSdk = androidSdk;
     this.applicationApk = applicationApk;
@@ -80,6 +100,7 @@ public final class SpoonRunner {
     this.debug = debug;
     this.noAnimations = noAnimations;
     this.adbTimeoutMillis = adbTimeoutMillis;
+    this.testTimeoutMillis = testTimeoutMillis;
     this.instrumentationArgs = instrumentationArgs;
     this.className = className;
     this.methodName = methodName;
@@ -89,11 +110,21 @@ public final class SpoonRunner {
     this.codeCoverage = codeCoverage;
     this.serials = ImmutableSet.copyOf(serials);
     this.shard = shard;
+    this.dynamicShard = dynamicShard;
+    this.inProcess = inProcess;
+    this.forceInstall = forceInstall;
+    this.phaseLimits = phaseLimits;
+    this.timingStore = timingStore;
     this.failIfNoDeviceConnected = failIfNoDeviceConnected;
     this.testRunListeners = testRunListeners;
     this.terminateAdb = terminateAdb;
     this.initScript = initScript;
     this.grantAll = grantAll;
+    this.incrementalPull = incrementalPull;
+    this.maxLogLines = maxLogLines;
+    this.logcatFilter = logcatFilter;
+    this.logcatAppOnly = logcatAppOnly;
+    this.logFile = logFile;
 
     if (sequential) {
       this.threadExecutor = Executors.newSingleThreadExecutor();
@@ -111,7 +142,21 @@ public final class SpoonRunner {
     checkArgument(applicationApk.exists(), "Could not find application APK.");
     checkArgument(instrumentationApk.exists(), "Could not find instrumentation APK.");
 
+    // Devices may have changed since an earlier run in this JVM.
+    DeviceSession.clear();
+
+    if (logFile != null) {
+      try {
+        SpoonLogger.setFile(logFile);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to write log to " + logFile, e);
+      }
+    }
+
+    long adbStart = System.nanoTime();
     AndroidDebugBridge adb = SpoonUtils.initAdb(androidSdk, adbTimeoutMillis);
+    logDebug(debug, "ADB bridge ready after %d ms.",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - adbStart));
 
     try {
       final SpoonInstrumentationInfo testInfo = parseFromFile(instrumentationApk);
@@ -128,20 +173,29 @@ public final class SpoonRunner {
         throw new RuntimeException("No device(s) found.");
       }
 
+      SpoonTimingStore timings = SpoonTimingStore.load(timingStore);
+
       // Execute all the things...
-      SpoonSummary summary = runTests(adb, serials);
+      SpoonSummary summary = runTests(adb, serials, timings);
+      recordTimings(timings, summary);
       // ...and render to HTML
       new HtmlRenderer(summary, SpoonUtils.GSON, output).render();
 
-      return parseOverallSuccess(summary);
+      return parseOverallSuccess(summary, shard || dynamicShard);
     } finally {
       if (terminateAdb) {
         AndroidDebugBridge.terminate();
       }
+      if (logFile != null) {
+        SpoonLogger.setStream(null);
+      } else {
+        SpoonLogger.flush();
+      }
     }
   }
 
-  private SpoonSummary runTests(AndroidDebugBridge adb, Set<String> serials) {
+  private SpoonSummary runTests(final AndroidDebugBridge adb, Set<String> serials,
+      SpoonTimingStore timings) {
     int targetCount = serials.size();
     logInfo("Executing instrumentation suite on %d device(s).", targetCount);
 
@@ -158,19 +212,39 @@ public final class SpoonRunner {
         instrumentationApk.getAbsolutePath());
 
     final SpoonSummary.Builder summary = new SpoonSummary.Builder().setTitle(title).start();
+    final SpoonInstallCache installCache =
+        SpoonInstallCache.create(forceInstall, applicationApk, instrumentationApk);
+    SpoonTestTimeouts testTimeouts =
+        new SpoonTestTimeouts(testTimeoutMillis, adbTimeoutMillis, timings);
 
     if (testSize != null) {
       summary.setTestSize(testSize);
     }
 
-    if (targetCount == 1) {
+    SpoonTestScheduler testScheduler = null;
+    if (dynamicShard) {
+      testScheduler = SpoonTestScheduler.dynamic(targetCount, timings);
+    } else if (shard) {
+      Map<String, DeviceDetails> devices = new LinkedHashMap<String, DeviceDetails>();
+      for (String serial : serials) {
+        IDevice device = SpoonUtils.obtainRealDevice(adb, serial);
+        devices.put(serial, DeviceDetails.createForDevice(device));
+      }
+      testScheduler = SpoonTestScheduler.balanced(devices, timings);
+    }
+
+    // Devices which join part way through a run are added to those it was started with.
+    Set<String> ranOn = serials;
+    if (targetCount == 1 && testScheduler == null) {
       // Since there is only one device just execute it synchronously in this process.
       executeInitScript();
       String serial = serials.iterator().next();
       String safeSerial = SpoonUtils.sanitizeSerial(serial);
       try {
         logDebug(debug, "[%s] Starting execution.", serial);
-        summary.addResult(safeSerial, getTestRunner(serial, 0, 0, testInfo).run(adb));
+        summary.addResult(safeSerial,
+            getTestRunner(serial, testInfo, installCache, testTimeouts)
+                .run(adb, null, phaseLimits));
       } catch (Exception e) {
         logDebug(debug, "[%s] Execution exception!", serial);
         e.printStackTrace(System.out);
@@ -182,51 +256,48 @@ public final class SpoonRunner {
       // Execute a script before the first test on the thread executor if sequential mode on
       threadExecutor.execute(getRunnableScript());
 
+      // Devices pulling from a shared scheduler must live in this process alongside it.
+      SpoonTestScheduler scheduler = testScheduler;
+      boolean shareAdb = inProcess || scheduler != null;
+      DeviceWorkers workers =
+          new DeviceWorkers(adb, testInfo, installCache, testTimeouts, scheduler, shareAdb,
+              summary);
+
       // Spawn a new thread for each device and wait for them all to finish.
-      final CountDownLatch done = new CountDownLatch(targetCount);
-      final Set<String> remaining = synchronizedSet(new HashSet<String>(serials));
+      for (String serial : serials) {
+        workers.start(serial);
+      }
 
-      int shardIndex = 0;
-      final int numShards = shard ? serials.size() : 0;
-      for (final String serial : serials) {
-        final String safeSerial = SpoonUtils.sanitizeSerial(serial);
-        logDebug(debug, "[%s] Starting execution.", serial);
-        final int safeShardIndex = shardIndex;
-        Runnable runnable = new Runnable() {
-          @Override public void run() {
-            try {
-              summary.addResult(safeSerial,
-                  getTestRunner(serial, safeShardIndex, numShards, testInfo).runInNewProcess());
-            } catch (Exception e) {
-              e.printStackTrace(System.out);
-              summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
-            } finally {
-              done.countDown();
-              remaining.remove(serial);
-              logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, done.getCount(),
-                  remaining);
-            }
-          }
-        };
-        if (shard) {
-          shardIndex++;
-          logDebug(debug, "shardIndex [%d]", shardIndex);
-        }
-        threadExecutor.execute(runnable);
+      // With a shared scheduler, devices which connect late can take on the remaining tests and
+      // the tests of devices which disconnect can be handed to others.
+      SpoonDevicePool pool = null;
+      if (scheduler != null) {
+        pool = newDevicePool(adb, testInfo, workers, scheduler);
+        pool.start(serials);
       }
 
       try {
-        done.await();
+        workers.awaitAll();
         threadExecutor.shutdown();
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
+      } finally {
+        if (pool != null) {
+          pool.stop();
+        }
+      }
+      if (scheduler != null && scheduler.remaining() > 0) {
+        logInfo("%d tests were not run because no devices were left to run them.",
+            scheduler.remaining());
       }
+      reportStartup(shareAdb ? "in-process" : "forked", workers.launched, summary.build());
+      ranOn = workers.getStarted();
     }
 
     if (codeCoverage) {
       SpoonCoverageMerger coverageMerger = new SpoonCoverageMerger();
       try {
-        coverageMerger.mergeCoverageFiles(serials, output);
+        coverageMerger.mergeCoverageFiles(ranOn, output);
         logDebug(debug, "Merging of coverage files done.");
       } catch (IOException exception) {
         throw new RuntimeException("error while merging coverage files", exception);
@@ -240,7 +311,95 @@ public final class SpoonRunner {
       }
     }
 
-    return summary.end().build();
+    SpoonSummary result = summary.end().build();
+    reportInstalls(result);
+    if (testScheduler != null && testScheduler.getPlan() != null) {
+      reportMakespan(testScheduler.getPlan(), result);
+    }
+    return result;
+  }
+
+  /**
+   * Log how long devices took from being launched until they began executing, which for forked
+   * devices includes starting a JVM and connecting a new ADB bridge. Compare runs with and without
+   * {@code --in-process} to measure the difference.
+   */
+  private void reportStartup(String mode, Map<String, Long> launched, SpoonSummary summary) {
+    long total = 0;
+    long max = 0;
+    int count = 0;
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      Long launchedAt = launched.get(entry.getKey());
+      if (launchedAt == null || entry.getValue().getDeviceDetails() == null) {
+        continue; // Never reached the device.
+      }
+      long startup = Math.max(0, entry.getValue().getStarted() - launchedAt);
+      logDebug(debug, "[%s] Started after %d ms.", entry.getKey(), startup);
+      total += startup;
+      max = Math.max(max, startup);
+      count++;
+    }
+    if (count > 0) {
+      logInfo("Device startup (%s): mean %d ms, max %d ms over %d device(s).", mode,
+          total / count, max, count);
+    }
+  }
+
+  /** Log how many installs were skipped because the APK was already on the device. */
+  private static void reportInstalls(SpoonSummary summary) {
+    int installs = 0;
+    int skipped = 0;
+    long savedMillis = 0;
+    for (DeviceResult result : summary.getResults().values()) {
+      for (ApkInstall install : result.getInstalls()) {
+        installs++;
+        if (install.isSkipped()) {
+          skipped++;
+          savedMillis += Math.max(0, install.getSavedMillis() - install.getDurationMillis());
+        }
+      }
+    }
+    if (skipped > 0) {
+      logInfo("Skipped %d of %d APK installs which were unchanged, saving about %d s.", skipped,
+          installs, TimeUnit.MILLISECONDS.toSeconds(savedMillis));
+    }
+  }
+
+  /**
+   * Log how far the balanced plan's predicted makespan, and each device's predicted share of it,
+   * was from how long the devices actually spent running their tests.
+   */
+  private void reportMakespan(SpoonShardPlan plan, SpoonSummary summary) {
+    long actual = 0;
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      long duration = entry.getValue().getDurationMillis();
+      if (duration < 0) {
+        continue; // Never ran any tests.
+      }
+      logDebug(debug, "[%s] Predicted %d ms, ran for %d ms.", entry.getKey(),
+          plan.getPredictedMillis(entry.getKey()), duration);
+      actual = Math.max(actual, duration);
+    }
+    long predicted = plan.getPredictedMakespanMillis();
+    if (predicted > 0) {
+      logInfo("Predicted makespan %d ms, actual %d ms (%+.1f%%).", predicted, actual,
+          100.0 * (actual - predicted) / predicted);
+    } else {
+      logInfo("No test history for predicting makespan, actual %d ms.", actual);
+    }
+  }
+
+  /** Fold the durations of this run into the history used to balance future runs. */
+  private void recordTimings(SpoonTimingStore timings, SpoonSummary summary) {
+    if (timingStore == null) {
+      return;
+    }
+    timings.recordAll(summary);
+    try {
+      timings.save(timingStore);
+    } catch (IOException e) {
+      logInfo("Unable to save test timings to %s: %s", timingStore, e.getMessage());
+    }
   }
 
   /** Returns a {@link Runnable} to launch the script before/between devices in sequential mode. */
@@ -279,30 +438,165 @@ public final class SpoonRunner {
     }
   }
 
-  /** Returns {@code false} if a test failed on any device. */
+  /** Returns {@code false} if a test failed on any device, or if any device ran no tests. */
   static boolean parseOverallSuccess(SpoonSummary summary) {
-    for (DeviceResult result : summary.getResults().values()) {
+    return parseOverallSuccess(summary, false);
+  }
+
+  /**
+   * Returns {@code false} if a test failed on any device.
+   *
+   * @param splitSuite Whether the suite was split across the devices, so that a device may run
+   * none of it as long as another device ran something.
+   */
+  static boolean parseOverallSuccess(SpoonSummary summary, boolean splitSuite) {
+    boolean testsRun = false;
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      DeviceResult result = entry.getValue();
       if (result.getInstallFailed()) {
         return false; // App and/or test installation failed.
       }
-      if (!result.getExceptions().isEmpty() || result.getTestResults().isEmpty()) {
-        return false; // Top-level exception present, or no tests were run.
+      if (!result.getExceptions().isEmpty()) {
+        return false; // Top-level exception present.
       }
-      for (DeviceTestResult methodResult : result.getTestResults().values()) {
-        if (methodResult.getStatus() != Status.PASS) {
+      Set<DeviceTest> lost = lostSpeculations(entry.getKey(), result);
+      for (Map.Entry<DeviceTest, DeviceTestResult> test : result.getTestResults().entrySet()) {
+        if (test.getValue().getStatus() != Status.PASS && !lost.contains(test.getKey())) {
           return false; // Individual test failure.
         }
       }
+      if (result.getTestResults().isEmpty()) {
+        if (!splitSuite) {
+          return false; // No tests were run.
+        }
+      } else {
+        testsRun = true;
+      }
     }
-    return true;
+    return testsRun || summary.getResults().isEmpty();
+  }
+
+  /** Tests which another device finished before the one with {@code safeSerial}. */
+  private static Set<DeviceTest> lostSpeculations(String safeSerial, DeviceResult result) {
+    Set<DeviceTest> lost = new HashSet<DeviceTest>();
+    for (Speculation speculation : result.getSpeculations()) {
+      String winner = speculation.getWinner();
+      if (winner != null && !SpoonUtils.sanitizeSerial(winner).equals(safeSerial)) {
+        lost.add(speculation.getTest());
+      }
+    }
+    return lost;
+  }
+
+  private SpoonDevicePool newDevicePool(AndroidDebugBridge adb, SpoonInstrumentationInfo testInfo,
+      final DeviceWorkers workers, final SpoonTestScheduler scheduler) {
+    SpoonDevicePool.Listener listener = new SpoonDevicePool.Listener() {
+      @Override public void deviceAdded(IDevice device) {
+        if (workers.start(device.getSerialNumber())) {
+          logInfo("[%s] Connected, joining the run.", device.getSerialNumber());
+        }
+      }
+
+      @Override public void deviceRemoved(String serial) {
+        logInfo("[%s] Disconnected, returned %d unfinished tests for other devices.", serial,
+            scheduler.release(serial));
+      }
+    };
+    return new SpoonDevicePool(SpoonDevicePool.adbSource(adb), serials, skipDevices,
+        testInfo.getMinSdkVersion(), listener);
   }
 
-  private SpoonDeviceRunner getTestRunner(String serial, int shardIndex, int numShards,
-      SpoonInstrumentationInfo testInfo) {
+  /** Runs each device on its own thread and tracks when they have all finished. */
+  private final class DeviceWorkers {
+    private final AndroidDebugBridge adb;
+    private final SpoonInstrumentationInfo testInfo;
+    private final SpoonInstallCache installCache;
+    private final SpoonTestTimeouts testTimeouts;
+    private final SpoonTestScheduler scheduler;
+    private final boolean shareAdb;
+    private final SpoonSummary.Builder summary;
+    private final Set<String> running = new LinkedHashSet<String>();
+    private final Set<String> started = new LinkedHashSet<String>();
+    final Map<String, Long> launched = new ConcurrentHashMap<String, Long>();
+    private boolean finished;
+
+    DeviceWorkers(AndroidDebugBridge adb, SpoonInstrumentationInfo testInfo,
+        SpoonInstallCache installCache, SpoonTestTimeouts testTimeouts,
+        SpoonTestScheduler scheduler, boolean shareAdb, SpoonSummary.Builder summary) {
+      this.adb = adb;
+      this.testInfo = testInfo;
+      this.installCache = installCache;
+      this.testTimeouts = testTimeouts;
+      this.scheduler = scheduler;
+      this.shareAdb = shareAdb;
+      this.summary = summary;
+    }
+
+    /**
+     * Start running on {@code serial} unless it has already been started or every device has
+     * already finished.
+     */
+    synchronized boolean start(final String serial) {
+      if (finished || !started.add(serial)) {
+        return false;
+      }
+      running.add(serial);
+      final String safeSerial = SpoonUtils.sanitizeSerial(serial);
+      logDebug(debug, "[%s] Starting execution.", serial);
+      threadExecutor.execute(new Runnable() {
+        @Override public void run() {
+          launched.put(safeSerial, System.currentTimeMillis());
+          try {
+            SpoonDeviceRunner testRunner =
+                getTestRunner(serial, testInfo, installCache, testTimeouts);
+            if (shareAdb) {
+              summary.addResult(safeSerial, testRunner.run(adb, scheduler, phaseLimits));
+            } else {
+              summary.addResult(safeSerial, testRunner.runInNewProcess(phaseLimits));
+            }
+          } catch (Throwable e) {
+            // Without a process boundary anything a device throws must stop at its own thread.
+            e.printStackTrace(System.out);
+            summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
+          } finally {
+            if (scheduler != null) {
+              // Hand back a shard this device never got to, for example if its install failed.
+              scheduler.release(serial);
+            }
+            finish(serial);
+          }
+        }
+      });
+      return true;
+    }
+
+    private synchronized void finish(String serial) {
+      running.remove(serial);
+      logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, running.size(), running);
+      notifyAll();
+    }
+
+    /** Every device which was started, in the order they were. */
+    synchronized Set<String> getStarted() {
+      return new LinkedHashSet<String>(started);
+    }
+
+    /** Wait for every device to finish. No more devices may be started afterwards. */
+    synchronized void awaitAll() throws InterruptedException {
+      while (!running.isEmpty()) {
+        wait();
+      }
+      finished = true;
+    }
+  }
+
+  private SpoonDeviceRunner getTestRunner(String serial, SpoonInstrumentationInfo testInfo,
+      SpoonInstallCache installCache, SpoonTestTimeouts testTimeouts) {
     return new SpoonDeviceRunner(androidSdk, applicationApk, instrumentationApk, output, serial,
-        shardIndex, numShards, debug, noAnimations, adbTimeoutMillis, classpath, testInfo,
+        debug, noAnimations, adbTimeoutMillis, classpath, testInfo,
         instrumentationArgs, className, methodName, testSize, testRunListeners, codeCoverage,
-        grantAll);
+        grantAll, incrementalPull, maxLogLines, logcatFilter, logcatAppOnly, installCache,
+        testTimeouts);
   }
 
   /** Build a test suite for the specified devices and configuration. */
@@ -322,14 +616,28 @@ public final class SpoonRunner {
     private boolean noAnimations;
     private IRemoteAndroidTestRunner.TestSize testSize;
     private int adbTimeoutMillis = DEFAULT_ADB_TIMEOUT_SEC * 1000;
+    private int testTimeoutMillis;
     private boolean failIfNoDeviceConnected;
     private List<ITestRunListener> testRunListeners = new ArrayList<ITestRunListener>();
     private boolean sequential;
     private File initScript;
     private boolean grantAll;
+    private boolean incrementalPull;
+    private int maxLogLines;
+    private String logcatFilter;
+    private boolean logcatAppOnly;
+    private File logFile;
     private boolean terminateAdb = true;
     private boolean codeCoverage;
     private boolean shard = false;
+    private boolean dynamicShard = false;
+    private boolean inProcess = false;
+    private boolean forceInstall = false;
+    private int installConcurrency;
+    private int instrumentConcurrency;
+    private int pullConcurrency;
+    private int postProcessConcurrency = Runtime.getRuntime().availableProcessors();
+    private File timingStore;
 
     /** Identifying title for this execution. */
     public Builder setTitle(String title) {
@@ -387,6 +695,16 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Set how long a single test may run before it is stopped, in milliseconds. When zero this is
+     * derived from how long each test took in previous runs.
+     */
+    public Builder setTestTimeout(int value) {
+      checkArgument(value >= 0, "Test timeout must not be negative.");
+      this.testTimeoutMillis = value;
+      return this;
+    }
+
     /** Add a device serial for test execution. */
     public Builder addDevice(String serial) {
       checkNotNull(serial, "Serial cannot be null.");
@@ -469,6 +787,48 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Pull each test's screenshots and files in the background as soon as it ends and delete them
+     * from the device, instead of pulling everything after the run.
+     */
+    public Builder setIncrementalPull(boolean incrementalPull) {
+      this.incrementalPull = incrementalPull;
+      return this;
+    }
+
+    /** Set how many device log lines are kept for each test. Unlimited when zero. */
+    public Builder setMaxLogLines(int maxLogLines) {
+      checkArgument(maxLogLines >= 0, "Max log lines must not be negative.");
+      this.maxLogLines = maxLogLines;
+      return this;
+    }
+
+    /**
+     * Only send device log messages which pass these logcat filter specs, such as
+     * {@code MyTag:D *:W}, from the device. The test runner's messages are always sent.
+     */
+    public Builder setLogcatFilter(String logcatFilter) {
+      checkArgument(logcatFilter == null || DeviceLogcat.isValidFilter(logcatFilter),
+          "Invalid logcat filter: %s", logcatFilter);
+      this.logcatFilter = logcatFilter;
+      return this;
+    }
+
+    /**
+     * Only send device log messages of the app's process from the device, once its first test has
+     * started. Needs Nougat or above.
+     */
+    public Builder setLogcatAppOnly(boolean logcatAppOnly) {
+      this.logcatAppOnly = logcatAppOnly;
+      return this;
+    }
+
+    /** File to which Spoon's own log is appended instead of being printed to the console. */
+    public Builder setLogFile(File logFile) {
+      this.logFile = logFile;
+      return this;
+    }
+
     public Builder setMethodName(String methodName) {
       this.methodName = methodName;
       return this;
@@ -484,6 +844,74 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Distribute tests to devices from a shared queue as each device becomes idle rather than
+     * splitting the suite into one fixed shard per device.
+     */
+    public Builder setDynamicShard(boolean dynamicShard) {
+      this.dynamicShard = dynamicShard;
+      return this;
+    }
+
+    /**
+     * Run every device on a thread in this process sharing a single ADB bridge rather than forking
+     * a new JVM per device. A failure on one device is still confined to that device's results.
+     */
+    public Builder setInProcess(boolean inProcess) {
+      this.inProcess = inProcess;
+      return this;
+    }
+
+    /**
+     * Install the APKs on every device even when the same APKs are already installed there.
+     * Otherwise installs are skipped for any APK whose contents have not changed since Spoon last
+     * installed it.
+     */
+    public Builder setForceInstall(boolean forceInstall) {
+      this.forceInstall = forceInstall;
+      return this;
+    }
+
+    /** Maximum number of devices installing APKs at once, or zero for no limit. */
+    public Builder setInstallConcurrency(int installConcurrency) {
+      checkArgument(installConcurrency >= 0, "Install concurrency must not be negative.");
+      this.installConcurrency = installConcurrency;
+      return this;
+    }
+
+    /** Maximum number of devices running instrumentation at once, or zero for no limit. */
+    public Builder setInstrumentConcurrency(int instrumentConcurrency) {
+      checkArgument(instrumentConcurrency >= 0, "Instrument concurrency must not be negative.");
+      this.instrumentConcurrency = instrumentConcurrency;
+      return this;
+    }
+
+    /** Maximum number of devices pulling screenshots and files at once, or zero for no limit. */
+    public Builder setPullConcurrency(int pullConcurrency) {
+      checkArgument(pullConcurrency >= 0, "Pull concurrency must not be negative.");
+      this.pullConcurrency = pullConcurrency;
+      return this;
+    }
+
+    /**
+     * Maximum number of devices processing their output, such as encoding animated GIFs, at once,
+     * or zero for no limit. Defaults to the number of processors, which the encoding is bound by.
+     */
+    public Builder setPostProcessConcurrency(int postProcessConcurrency) {
+      checkArgument(postProcessConcurrency >= 0, "Post-process concurrency must not be negative.");
+      this.postProcessConcurrency = postProcessConcurrency;
+      return this;
+    }
+
+    /**
+     * File in which to keep test durations across runs. Used to balance shards and defaults to
+     * {@value #DEFAULT_TIMING_STORE} alongside the output directory.
+     */
+    public Builder setTimingStore(File timingStore) {
+      this.timingStore = timingStore;
+      return this;
+    }
+
     public Builder addTestRunListener(ITestRunListener testRunListener) {
       checkNotNull(testRunListener, "TestRunListener cannot be null.");
       testRunListeners.add(testRunListener);
@@ -506,11 +934,24 @@ public final class SpoonRunner {
         checkArgument(!isNullOrEmpty(className),
             "Must specify class name if you're specifying a method name.");
       }
+      checkArgument(!(shard && dynamicShard), "Cannot use both static and dynamic sharding.");
+      if (timingStore == null) {
+        timingStore = new File(output.getAbsoluteFile().getParentFile(), DEFAULT_TIMING_STORE);
+      }
+      Map<DevicePhaseGate.Phase, Integer> limits =
+          new EnumMap<DevicePhaseGate.Phase, Integer>(DevicePhaseGate.Phase.class);
+      limits.put(DevicePhaseGate.Phase.INSTALL, installConcurrency);
+      limits.put(DevicePhaseGate.Phase.INSTRUMENT, instrumentConcurrency);
+      limits.put(DevicePhaseGate.Phase.PULL, pullConcurrency);
+      limits.put(DevicePhaseGate.Phase.POST_PROCESS, postProcessConcurrency);
 
       return new SpoonRunner(title, androidSdk, applicationApk, instrumentationApk, output, debug,
-          noAnimations, adbTimeoutMillis, serials, skipDevices, shard, classpath,
-          instrumentationArgs, className, methodName, testSize, failIfNoDeviceConnected,
-          testRunListeners, sequential, initScript, grantAll, terminateAdb, codeCoverage);
+          noAnimations, adbTimeoutMillis, testTimeoutMillis, serials, skipDevices, shard,
+          dynamicShard, inProcess, forceInstall, new SpoonPhaseLimits(limits), timingStore,
+          classpath, instrumentationArgs,
+          className, methodName, testSize, failIfNoDeviceConnected, testRunListeners, sequential,
+          initScript, grantAll, incrementalPull, maxLogLines, logcatFilter, logcatAppOnly, logFile,
+          terminateAdb, codeCoverage);
     }
   }
 
@@ -581,6 +1022,24 @@ public final class SpoonRunner {
                 + " devices") //
     public boolean grantAll;
 
+    @Parameter(names = { "--incremental-pull" },
+        description = "Pull each test's screenshots and files as soon as it ends and delete them "
+            + "from the device (Lollipop and above)") //
+    public boolean incrementalPull;
+
+    @Parameter(names = { "--max-log-lines" },
+        description = "Maximum number of device log lines kept for each test "
+            + "(unlimited by default)")
+    public int maxLogLines;
+
+    @Parameter(names = { "--logcat-filter" },
+        description = "Logcat filter specs applied on the device, such as \"MyTag:D *:W\"") //
+    public String logcatFilter;
+
+    @Parameter(names = { "--logcat-app-only" },
+        description = "Only send the app's device log messages from the device (Nougat and above)")
+    public boolean logcatAppOnly;
+
     @Parameter(names = { "--no-animations" }, description = "Disable animated gif generation")
     public boolean noAnimations;
 
@@ -588,6 +1047,11 @@ public final class SpoonRunner {
         description = "Set maximum execution time per test in seconds (10min default)") //
     public int adbTimeoutSeconds = DEFAULT_ADB_TIMEOUT_SEC;
 
+    @Parameter(names = { "--test-timeout" },
+        description = "Maximum execution time of a single test in seconds before it is stopped "
+            + "(derived from previous runs by default)") //
+    public int testTimeoutSeconds;
+
     @SuppressWarnings("MismatchedQueryAndUpdateOfCollection") //
     @Parameter(names = "-serial",
         description = "Serial of the device to use (May be used multiple times)")
@@ -598,9 +1062,49 @@ public final class SpoonRunner {
     private List<String> skipDevices = new ArrayList<String>();
 
     @Parameter(names = { "--shard" },
-        description = "Automatically shard across all specified serials") //
+        description = "Automatically shard across all specified serials, balanced by the duration"
+            + " of previous runs") //
     public boolean shard;
 
+    @Parameter(names = { "--dynamic-shard" },
+        description = "Distribute tests across all specified serials as each device becomes idle")
+    public boolean dynamicShard;
+
+    @Parameter(names = { "--in-process" },
+        description = "Run all devices inside this process sharing one ADB connection instead of"
+            + " starting a new process per device") //
+    public boolean inProcess;
+
+    @Parameter(names = { "--force-install" },
+        description = "Install the APKs even if the same APKs are already installed")
+    public boolean forceInstall;
+
+    @Parameter(names = { "--install-concurrency" },
+        description = "Maximum number of devices installing at once (unlimited by default)")
+    public int installConcurrency;
+
+    @Parameter(names = { "--instrument-concurrency" },
+        description = "Maximum number of devices running tests at once (unlimited by default)")
+    public int instrumentConcurrency;
+
+    @Parameter(names = { "--pull-concurrency" },
+        description = "Maximum number of devices pulling output at once (unlimited by default)")
+    public int pullConcurrency;
+
+    @Parameter(names = { "--post-process-concurrency" },
+        description = "Maximum number of devices processing output, such as creating animated"
+            + " GIFs, at once (the number of processors by default, or 0 for unlimited)")
+    public int postProcessConcurrency = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = { "--timings" }, converter = FileConverter.class,
+        description = "File in which test durations are kept across runs (defaults to "
+            + DEFAULT_TIMING_STORE + " alongside the output directory)") //
+    public File timingStore;
+
+    @Parameter(names = { "--log-file" }, converter = FileConverter.class,
+        description = "File to which Spoon's own log is appended instead of the console") //
+    public File logFile;
+
     @Parameter(names = { "--debug" }, hidden = true) //
     public boolean debug;
 
@@ -664,15 +1168,29 @@ public final class SpoonRunner {
         .setNoAnimations(parsedArgs.noAnimations)
         .setTestSize(parsedArgs.size)
         .setAdbTimeout(parsedArgs.adbTimeoutSeconds * 1000)
+        .setTestTimeout(parsedArgs.testTimeoutSeconds * 1000)
         .setFailIfNoDeviceConnected(parsedArgs.failIfNoDeviceConnected)
         .setSequential(parsedArgs.sequential)
         .setInitScript(parsedArgs.initScript)
         .setGrantAll(parsedArgs.grantAll)
+        .setIncrementalPull(parsedArgs.incrementalPull)
+        .setMaxLogLines(parsedArgs.maxLogLines)
+        .setLogcatFilter(parsedArgs.logcatFilter)
+        .setLogcatAppOnly(parsedArgs.logcatAppOnly)
+        .setLogFile(parsedArgs.logFile)
         .setInstrumentationArgs(parsedArgs.instrumentationArgs)
         .setCodeCoverage(parsedArgs.codeCoverage)
         .setClassName(parsedArgs.className)
         .setMethodName(parsedArgs.methodName)
-        .setShard(parsedArgs.shard);
+        .setShard(parsedArgs.shard)
+        .setDynamicShard(parsedArgs.dynamicShard)
+        .setInProcess(parsedArgs.inProcess)
+        .setForceInstall(parsedArgs.forceInstall)
+        .setInstallConcurrency(parsedArgs.installConcurrency)
+        .setInstrumentConcurrency(parsedArgs.instrumentConcurrency)
+        .setPullConcurrency(parsedArgs.pullConcurrency)
+        .setPostProcessConcurrency(parsedArgs.postProcessConcurrency)
+        .setTimingStore(parsedArgs.timingStore);
 
     if (parsedArgs.serials == null || parsedArgs.serials.isEmpty()) {
       builder.useAllAttachedDevices();
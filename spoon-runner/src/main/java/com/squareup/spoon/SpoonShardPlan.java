@@ -0,0 +1,105 @@
+package com.squareup.spoon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Assignment of tests to devices balanced by historical duration.
+ * <p>
+ * Tests with history are bin-packed longest-processing-time first: each one goes to the device
+ * which would finish it soonest given the work already assigned. Tests which have never been seen
+ * are then dealt out so that every device receives the same number of them.
+ */
+final class SpoonShardPlan {
+  private final Map<String, List<DeviceTest>> shards;
+  private final Map<String, Long> predictedMillis;
+
+  private SpoonShardPlan(Map<String, List<DeviceTest>> shards, Map<String, Long> predictedMillis) {
+    this.shards = shards;
+    this.predictedMillis = predictedMillis;
+  }
+
+  static SpoonShardPlan balance(List<DeviceTest> tests, Map<String, DeviceDetails> devices,
+      SpoonTimingStore timings) {
+    checkArgument(!devices.isEmpty(), "Must have at least one device.");
+    Map<String, List<DeviceTest>> shards = new LinkedHashMap<String, List<DeviceTest>>();
+    Map<String, Long> loads = new LinkedHashMap<String, Long>();
+    for (String serial : devices.keySet()) {
+      shards.put(serial, new ArrayList<DeviceTest>());
+      loads.put(serial, 0L);
+    }
+
+    // Split into tests we have a history for and tests we have never seen.
+    final Map<DeviceTest, Long> estimates = new LinkedHashMap<DeviceTest, Long>();
+    List<DeviceTest> unseen = new ArrayList<DeviceTest>();
+    long knownTotal = 0;
+    for (DeviceTest test : tests) {
+      Long estimate = timings.getDuration(null, test);
+      if (estimate == null) {
+        unseen.add(test);
+      } else {
+        estimates.put(test, estimate);
+        knownTotal += estimate;
+      }
+    }
+
+    List<DeviceTest> known = new ArrayList<DeviceTest>(estimates.keySet());
+    Collections.sort(known, new Comparator<DeviceTest>() {
+      @Override public int compare(DeviceTest a, DeviceTest b) {
+        return estimates.get(b).compareTo(estimates.get(a));
+      }
+    });
+    for (DeviceTest test : known) {
+      String best = null;
+      long bestFinish = Long.MAX_VALUE;
+      for (Map.Entry<String, DeviceDetails> device : devices.entrySet()) {
+        Long duration = timings.getDuration(device.getValue(), test);
+        long finish = loads.get(device.getKey()) + (duration != null ? duration : 0);
+        if (finish < bestFinish) {
+          best = device.getKey();
+          bestFinish = finish;
+        }
+      }
+      shards.get(best).add(test);
+      loads.put(best, bestFinish);
+    }
+
+    // Deal unseen tests out evenly, charging each the average known duration for the prediction.
+    long unseenEstimate = known.isEmpty() ? 0 : knownTotal / known.size();
+    List<String> serials = new ArrayList<String>(devices.keySet());
+    for (int i = 0; i < unseen.size(); i++) {
+      String serial = serials.get(i % serials.size());
+      shards.get(serial).add(unseen.get(i));
+      loads.put(serial, loads.get(serial) + unseenEstimate);
+    }
+
+    return new SpoonShardPlan(shards, loads);
+  }
+
+  /** Tests assigned to {@code serial}. */
+  List<DeviceTest> getShard(String serial) {
+    List<DeviceTest> shard = shards.get(serial);
+    return shard != null ? shard : Collections.<DeviceTest>emptyList();
+  }
+
+  /** Predicted time to run the assigned tests on {@code serial}, in milliseconds. */
+  long getPredictedMillis(String serial) {
+    Long predicted = predictedMillis.get(serial);
+    return predicted != null ? predicted : 0;
+  }
+
+  /** Predicted time until the last device finishes, in milliseconds. */
+  long getPredictedMakespanMillis() {
+    long makespan = 0;
+    for (long predicted : predictedMillis.values()) {
+      makespan = Math.max(makespan, predicted);
+    }
+    return makespan;
+  }
+}
@@ -0,0 +1,411 @@
+package com.squareup.spoon;
+
+import com.google.common.base.Ticker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Hands out tests to device workers after enumerating the suite on the host.
+ * <p>
+ * The suite is enumerated lazily by the first device which is ready to run tests. In dynamic mode
+ * tests are handed out in batches from a shared queue as each device becomes idle. Batch sizes
+ * shrink as the queue drains so that the final batches are small and no single device ends up
+ * holding a long tail of work while the others sit idle. In balanced mode each device receives
+ * one fixed shard computed by {@link SpoonShardPlan}.
+ * <p>
+ * Tests handed to a device stay outstanding until it reports them {@link #finished finished}. If
+ * the device goes away they are {@link #release released} back to the front of the queue for any
+ * other device to pick up, including devices which joined after the run started. Devices which
+ * run out of work wait while others still hold outstanding tests, or have yet to take their shard,
+ * so that they can take over whatever is released.
+ * <p>
+ * Rather than waiting, an idle device first looks for a straggler: a device which is getting
+ * through its tests at well under the pace of its peers. A device's pace is the expected duration
+ * of the tests it has finished, from {@link SpoonTimingStore}, over the time it has spent running
+ * them, so a healthy device which has just taken a large batch is not mistaken for one. The later
+ * half of a straggler's remaining tests is {@link Speculation speculatively} handed to the idle
+ * device as well, and whichever device finishes a test first provides its result. Devices check
+ * {@link #isDone} before each test so that they can abandon work which the other has already
+ * finished.
+ */
+final class SpoonTestScheduler {
+  static final int MAX_BATCH_SIZE = 20;
+  /** Fewest tests a straggler must have left before its work is duplicated. */
+  static final int MIN_SPECULATION = 2;
+  /** Fraction of its peers' pace below which a device is a straggler. */
+  static final double STRAGGLER_PACE = 0.5;
+  /** How often a waiting device looks again for a straggler. */
+  private static final long RECHECK_MILLIS = 1000;
+
+  /** Enumerates the tests in the suite. Invoked at most once per successful enumeration. */
+  interface TestLister {
+    List<DeviceTest> listTests() throws Exception;
+  }
+
+  private final int workers;
+  private final Map<String, DeviceDetails> devices;
+  private final SpoonTimingStore timings;
+  private final Ticker ticker;
+  private final Deque<DeviceTest> queue = new ArrayDeque<DeviceTest>();
+  private final Map<String, List<DeviceTest>> shards = new HashMap<String, List<DeviceTest>>();
+  private final Map<String, Set<DeviceTest>> outstanding =
+      new HashMap<String, Set<DeviceTest>>();
+  private final Map<String, Integer> batchSizes = new HashMap<String, Integer>();
+  private final Set<DeviceTest> requeued = new HashSet<DeviceTest>();
+  private final Set<DeviceTest> done = new HashSet<DeviceTest>();
+  private final Map<DeviceTest, Speculation> speculations =
+      new LinkedHashMap<DeviceTest, Speculation>();
+  /** Expected duration of each test in milliseconds, with unknown tests taking the average. */
+  private final Map<DeviceTest, Long> estimates = new HashMap<DeviceTest, Long>();
+  /** When each device was handed the batch it is running, from {@link #ticker}. */
+  private final Map<String, Long> busySince = new HashMap<String, Long>();
+  /** Time each device spent running batches which it has since finished, in nanoseconds. */
+  private final Map<String, Long> busyNanos = new HashMap<String, Long>();
+  /** Expected duration of the tests which each device has finished, in milliseconds. */
+  private final Map<String, Long> progress = new HashMap<String, Long>();
+  private SpoonShardPlan plan;
+  private boolean enumerated;
+
+  private SpoonTestScheduler(int workers, Map<String, DeviceDetails> devices,
+      SpoonTimingStore timings, Ticker ticker) {
+    checkArgument(workers > 0, "Must have at least one worker.");
+    this.workers = workers;
+    this.devices = devices;
+    this.timings = checkNotNull(timings);
+    this.ticker = checkNotNull(ticker);
+  }
+
+  /** Share a single queue between {@code workers} devices, longest known tests first. */
+  static SpoonTestScheduler dynamic(int workers, SpoonTimingStore timings) {
+    return dynamic(workers, timings, Ticker.systemTicker());
+  }
+
+  /** @param ticker Measures how long each device spends on its batches. */
+  static SpoonTestScheduler dynamic(int workers, SpoonTimingStore timings, Ticker ticker) {
+    return new SpoonTestScheduler(workers, null, timings, ticker);
+  }
+
+  /** Give each of {@code devices} a single shard balanced by historical duration. */
+  static SpoonTestScheduler balanced(Map<String, DeviceDetails> devices,
+      SpoonTimingStore timings) {
+    return new SpoonTestScheduler(devices.size(), devices, timings, Ticker.systemTicker());
+  }
+
+  /**
+   * Take the next batch of tests for {@code serial} to run. The first call enumerates the suite
+   * using {@code lister}; if that fails the exception is thrown to this caller only and the next
+   * caller will try again.
+   * <p>
+   * Asking for the next batch means that {@code serial} is done with its previous one. If the
+   * queue is empty a share of a straggler's tests is returned instead, or if there is no
+   * straggler this blocks while other devices still have outstanding tests or untaken shards
+   * which they might release.
+   *
+   * @return the next batch, or an empty list when there are no more tests for this device.
+   */
+  synchronized List<DeviceTest> nextBatch(String serial, TestLister lister) throws Exception {
+    checkNotNull(lister);
+    if (!enumerated) {
+      enumerate(lister.listTests());
+      enumerated = true;
+    }
+    endBatch(serial);
+    Set<DeviceTest> previous = outstanding.remove(serial);
+    if (previous != null) {
+      requeueAbandoned(previous);
+      notifyAll();
+    }
+    List<DeviceTest> batch = shards.remove(serial);
+    if (batch == null) {
+      while (queue.isEmpty()) {
+        batch = speculate(serial);
+        if (!batch.isEmpty() || outstanding.isEmpty() && shards.isEmpty()) {
+          break;
+        }
+        // Wake up now and then, since a straggler is one which isn't finishing anything.
+        wait(RECHECK_MILLIS);
+      }
+      if (batch == null || batch.isEmpty()) {
+        int size = batchSize(queue.size(), workers);
+        batch = new ArrayList<DeviceTest>(size);
+        for (int i = 0; i < size && !queue.isEmpty(); i++) {
+          batch.add(queue.removeFirst());
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      outstanding.put(serial, new LinkedHashSet<DeviceTest>(batch));
+      batchSizes.put(serial, batch.size());
+      busySince.put(serial, ticker.read());
+    }
+    return batch;
+  }
+
+  /** Add the time {@code serial} spent on its current batch, if it has one, to its total. */
+  private void endBatch(String serial) {
+    if (busySince.containsKey(serial)) {
+      busyNanos.put(serial, busyNanos(serial, ticker.read()));
+      busySince.remove(serial);
+    }
+  }
+
+  /** Time {@code serial} has spent running batches, including the one it is running now. */
+  private long busyNanos(String serial, long now) {
+    Long finished = busyNanos.get(serial);
+    Long since = busySince.get(serial);
+    return (finished != null ? finished : 0) + (since != null ? now - since : 0);
+  }
+
+  /**
+   * Record that {@code serial} has finished running {@code test}. The first device to finish a
+   * test wins and no other device needs to run it any more.
+   */
+  synchronized void finished(String serial, DeviceTest test) {
+    Long finished = progress.get(serial);
+    progress.put(serial, (finished != null ? finished : 0) + estimate(test));
+    if (done.add(test)) {
+      Speculation speculation = speculations.get(test);
+      if (speculation != null) {
+        speculations.put(test, speculation.withWinner(serial));
+      }
+    }
+    Iterator<Set<DeviceTest>> iterator = outstanding.values().iterator();
+    while (iterator.hasNext()) {
+      Set<DeviceTest> tests = iterator.next();
+      if (tests.remove(test) && tests.isEmpty()) {
+        iterator.remove();
+      }
+    }
+    notifyAll();
+  }
+
+  /** True if some device has already finished {@code test}. */
+  synchronized boolean isDone(DeviceTest test) {
+    return done.contains(test);
+  }
+
+  /** Tests which {@code serial} ran speculatively or which were speculated from it. */
+  synchronized List<Speculation> getSpeculations(String serial) {
+    List<Speculation> result = new ArrayList<Speculation>();
+    for (Speculation speculation : speculations.values()) {
+      if (speculation.getOriginal().equals(serial) || speculation.getBackup().equals(serial)) {
+        result.add(speculation);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Duplicate the later half of the remaining work of a straggler onto {@code serial}. Of the
+   * devices which are behind their peers, the one which is expected to take the longest to finish
+   * is chosen. Tests are only ever duplicated once.
+   */
+  private List<DeviceTest> speculate(String serial) {
+    long now = ticker.read();
+    Map<String, Double> paces = new HashMap<String, Double>();
+    for (String device : progress.keySet()) {
+      long busy = busyNanos(device, now);
+      if (busy > 0) {
+        paces.put(device, (double) progress.get(device) / busy);
+      }
+    }
+
+    String straggler = null;
+    List<DeviceTest> left = Collections.emptyList();
+    double slowest = 0;
+    double longest = 0;
+    for (Map.Entry<String, Set<DeviceTest>> entry : outstanding.entrySet()) {
+      String device = entry.getKey();
+      if (device.equals(serial)) {
+        continue;
+      }
+      List<DeviceTest> candidates = new ArrayList<DeviceTest>();
+      for (DeviceTest test : entry.getValue()) {
+        if (!speculations.containsKey(test)) {
+          candidates.add(test);
+        }
+      }
+      double peerPace = peerPace(paces, device);
+      long busy = busyNanos(device, now);
+      if (candidates.size() < MIN_SPECULATION || peerPace == 0 || busy == 0) {
+        continue;
+      }
+      // Give the device credit for the test it is running as if it were about to finish, so that
+      // one which has only just started a batch is not behind.
+      long expected = 0;
+      for (DeviceTest test : entry.getValue()) {
+        expected += estimate(test);
+      }
+      Long finished = progress.get(device);
+      long credit = estimate(entry.getValue().iterator().next());
+      double pace = (double) ((finished != null ? finished : 0) + credit) / busy;
+      double remaining = (expected - credit) / pace;
+      if (pace < STRAGGLER_PACE * peerPace && remaining > longest) {
+        straggler = device;
+        left = candidates;
+        slowest = pace / peerPace;
+        longest = remaining;
+      }
+    }
+    if (straggler == null) {
+      return Collections.emptyList();
+    }
+    List<DeviceTest> tail =
+        new ArrayList<DeviceTest>(left.subList(left.size() - left.size() / 2, left.size()));
+    for (DeviceTest test : tail) {
+      speculations.put(test, new Speculation(test, straggler, serial, null));
+    }
+    Integer given = batchSizes.get(straggler);
+    logInfo("[%s] Straggling at %d%% of its peers' pace with %d of %d tests left, also running the"
+            + " last %d on [%s].", straggler, Math.round(100 * slowest),
+        outstanding.get(straggler).size(), given, tail.size(), serial);
+    return tail;
+  }
+
+  /** Mean pace of every device but {@code device} which has finished something, or zero. */
+  private static double peerPace(Map<String, Double> paces, String device) {
+    double total = 0;
+    int count = 0;
+    for (Map.Entry<String, Double> entry : paces.entrySet()) {
+      if (!entry.getKey().equals(device) && entry.getValue() > 0) {
+        total += entry.getValue();
+        count++;
+      }
+    }
+    return count == 0 ? 0 : total / count;
+  }
+
+  /** Expected duration of {@code test}, counting at least one so that every test is progress. */
+  private long estimate(DeviceTest test) {
+    Long estimate = estimates.get(test);
+    return estimate != null ? Math.max(1, estimate) : 1;
+  }
+
+  /**
+   * Put back speculated tests which a device gave up on because it expected the other device to
+   * finish them, if the other device has since dropped them too.
+   */
+  private void requeueAbandoned(Set<DeviceTest> tests) {
+    List<DeviceTest> abandoned = new ArrayList<DeviceTest>();
+    for (DeviceTest test : tests) {
+      if (speculations.containsKey(test) && !isOutstanding(test) && requeued.add(test)) {
+        abandoned.add(test);
+      }
+    }
+    for (int i = abandoned.size() - 1; i >= 0; i--) {
+      queue.addFirst(abandoned.get(i));
+    }
+  }
+
+  private boolean isOutstanding(DeviceTest test) {
+    for (Set<DeviceTest> tests : outstanding.values()) {
+      if (tests.contains(test)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Put every test which {@code serial} has not finished back at the front of the queue, along
+   * with its shard if it never started on it. A test is only put back once so that one which
+   * takes down every device it runs on cannot do so forever.
+   *
+   * @return the number of tests put back.
+   */
+  synchronized int release(String serial) {
+    endBatch(serial);
+    List<DeviceTest> released = new ArrayList<DeviceTest>();
+    Set<DeviceTest> tests = outstanding.remove(serial);
+    if (tests != null) {
+      released.addAll(tests);
+    }
+    List<DeviceTest> shard = shards.remove(serial);
+    if (shard != null) {
+      released.addAll(shard);
+    }
+    int count = 0;
+    for (int i = released.size() - 1; i >= 0; i--) {
+      DeviceTest test = released.get(i);
+      if (!isOutstanding(test) && requeued.add(test)) {
+        queue.addFirst(test);
+        count++;
+      }
+    }
+    notifyAll();
+    return count;
+  }
+
+  private void enumerate(List<DeviceTest> tests) {
+    // Tests we have never seen are assumed to take the average time.
+    long knownTotal = 0;
+    for (DeviceTest test : tests) {
+      Long estimate = timings.getDuration(null, test);
+      if (estimate != null) {
+        estimates.put(test, estimate);
+        knownTotal += estimate;
+      }
+    }
+    long average = estimates.isEmpty() ? 0 : knownTotal / estimates.size();
+    for (DeviceTest test : tests) {
+      if (!estimates.containsKey(test)) {
+        estimates.put(test, average);
+      }
+    }
+
+    if (devices != null) {
+      plan = SpoonShardPlan.balance(tests, devices, timings);
+      for (String serial : devices.keySet()) {
+        shards.put(serial, plan.getShard(serial));
+      }
+      return;
+    }
+
+    // Longest tests first so that the short ones fill in the gaps at the end.
+    List<DeviceTest> sorted = new ArrayList<DeviceTest>(tests);
+    Collections.sort(sorted, new Comparator<DeviceTest>() {
+      @Override public int compare(DeviceTest a, DeviceTest b) {
+        return estimates.get(b).compareTo(estimates.get(a));
+      }
+    });
+    queue.addAll(sorted);
+  }
+
+  /** Number of tests which have not yet been handed out. */
+  synchronized int remaining() {
+    int remaining = queue.size();
+    for (List<DeviceTest> shard : shards.values()) {
+      remaining += shard.size();
+    }
+    return remaining;
+  }
+
+  /** The balanced plan, or {@code null} if in dynamic mode or nothing has been enumerated yet. */
+  synchronized SpoonShardPlan getPlan() {
+    return plan;
+  }
+
+  /**
+   * Guided self-scheduling: hand out a share of what remains proportional to the number of
+   * workers, bounded by {@link #MAX_BATCH_SIZE}.
+   */
+  static int batchSize(int remaining, int workers) {
+    int size = remaining / (2 * workers);
+    return Math.max(1, Math.min(size, MAX_BATCH_SIZE));
+  }
+}
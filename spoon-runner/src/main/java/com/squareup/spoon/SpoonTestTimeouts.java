@@ -0,0 +1,44 @@
+package com.squareup.spoon;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides how long a single test may run before it is considered hung. Unless a fixed timeout is
+ * given, tests get a multiple of their historical duration, never less than a minimum and never
+ * more than the ADB timeout which applies to the whole instrumentation run.
+ */
+final class SpoonTestTimeouts {
+  static final long MIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  static final int HISTORY_MULTIPLIER = 5;
+
+  private final long fixedMillis;
+  private final long maxMillis;
+  private final SpoonTimingStore timings;
+
+  /**
+   * @param fixedMillis Timeout for every test, or zero to derive it from {@code timings}.
+   * @param maxMillis Timeout for tests without history, and the most any test gets.
+   */
+  SpoonTestTimeouts(long fixedMillis, long maxMillis, SpoonTimingStore timings) {
+    checkArgument(fixedMillis >= 0, "Test timeout must not be negative.");
+    this.fixedMillis = fixedMillis;
+    this.maxMillis = maxMillis;
+    this.timings = checkNotNull(timings);
+  }
+
+  /** Milliseconds {@code test} may run on {@code device}, or zero if it may run forever. */
+  long timeoutFor(DeviceDetails device, DeviceTest test) {
+    if (fixedMillis > 0) {
+      return fixedMillis;
+    }
+    Long expected = timings.getDuration(device, test);
+    if (expected == null) {
+      return maxMillis;
+    }
+    long timeout = Math.max(MIN_TIMEOUT_MILLIS, expected * HISTORY_MULTIPLIER);
+    return maxMillis > 0 ? Math.min(maxMillis, timeout) : timeout;
+  }
+}
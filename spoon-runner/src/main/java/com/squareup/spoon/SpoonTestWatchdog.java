@@ -0,0 +1,174 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Watches each test of one instrumentation run and cancels the run when a test takes longer than
+ * its timeout. Events are forwarded to the delegate until then. Whatever ddmlib reports after the
+ * timeout is only a side effect of cancelling, so it is dropped and {@link #finish} reports the
+ * hung test as failed instead.
+ */
+final class SpoonTestWatchdog implements ITestRunListener {
+  private static final ScheduledExecutorService TIMER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "spoon-test-watchdog");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final IRemoteAndroidTestRunner runner;
+  private final SpoonTestTimeouts timeouts;
+  private final DeviceDetails device;
+  private final ITestRunListener delegate;
+  private final Set<DeviceTest> started = new HashSet<DeviceTest>();
+  private final long runStart = System.nanoTime();
+  private TestIdentifier current;
+  private ScheduledFuture<?> alarm;
+  private TestIdentifier timedOut;
+  private long timedOutAfter;
+
+  SpoonTestWatchdog(IRemoteAndroidTestRunner runner, SpoonTestTimeouts timeouts,
+      DeviceDetails device, ITestRunListener delegate) {
+    this.runner = checkNotNull(runner);
+    this.timeouts = checkNotNull(timeouts);
+    this.device = device;
+    this.delegate = checkNotNull(delegate);
+  }
+
+  /** Tests which this run started, including one which hung. */
+  synchronized Set<DeviceTest> getStarted() {
+    return new HashSet<DeviceTest>(started);
+  }
+
+  synchronized boolean hasTimedOut() {
+    return timedOut != null;
+  }
+
+  /**
+   * Stop watching and, if a test hung, report it to the delegate as failed and end the run.
+   *
+   * @return the test which hung, or {@code null} if none did.
+   */
+  synchronized DeviceTest finish() {
+    cancelAlarm();
+    if (timedOut == null) {
+      return null;
+    }
+    Map<String, String> noMetrics = Collections.emptyMap();
+    delegate.testFailed(timedOut,
+        "Test timed out after " + timedOutAfter + " ms and was stopped by Spoon.");
+    delegate.testEnded(timedOut, noMetrics);
+    delegate.testRunEnded(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStart),
+        noMetrics);
+    return DeviceTest.from(timedOut);
+  }
+
+  @Override public synchronized void testRunStarted(String runName, int testCount) {
+    if (timedOut == null) {
+      delegate.testRunStarted(runName, testCount);
+    }
+  }
+
+  @Override public synchronized void testStarted(final TestIdentifier test) {
+    if (timedOut != null) {
+      return;
+    }
+    cancelAlarm();
+    DeviceTest deviceTest = DeviceTest.from(test);
+    started.add(deviceTest);
+    current = test;
+    final long timeout = timeouts.timeoutFor(device, deviceTest);
+    if (timeout > 0) {
+      alarm = TIMER.schedule(new Runnable() {
+        @Override public void run() {
+          expire(test, timeout);
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+    }
+    delegate.testStarted(test);
+  }
+
+  @Override public synchronized void testFailed(TestIdentifier test, String trace) {
+    if (timedOut == null) {
+      delegate.testFailed(test, trace);
+    }
+  }
+
+  @Override public synchronized void testAssumptionFailure(TestIdentifier test, String trace) {
+    if (timedOut == null) {
+      delegate.testAssumptionFailure(test, trace);
+    }
+  }
+
+  @Override public synchronized void testIgnored(TestIdentifier test) {
+    if (timedOut == null) {
+      delegate.testIgnored(test);
+    }
+  }
+
+  @Override public synchronized void testEnded(TestIdentifier test,
+      Map<String, String> testMetrics) {
+    if (timedOut != null) {
+      return;
+    }
+    cancelAlarm();
+    current = null;
+    delegate.testEnded(test, testMetrics);
+  }
+
+  @Override public synchronized void testRunFailed(String errorMessage) {
+    if (timedOut == null) {
+      delegate.testRunFailed(errorMessage);
+    }
+  }
+
+  @Override public synchronized void testRunStopped(long elapsedTime) {
+    if (timedOut == null) {
+      delegate.testRunStopped(elapsedTime);
+    }
+  }
+
+  @Override public synchronized void testRunEnded(long elapsedTime,
+      Map<String, String> runMetrics) {
+    if (timedOut != null) {
+      return;
+    }
+    cancelAlarm();
+    delegate.testRunEnded(elapsedTime, runMetrics);
+  }
+
+  private void expire(TestIdentifier test, long timeout) {
+    synchronized (this) {
+      if (current != test || timedOut != null) {
+        return;
+      }
+      timedOut = test;
+      timedOutAfter = timeout;
+    }
+    logInfo("%s timed out after %d ms, stopping the instrumentation.", test, timeout);
+    runner.cancel();
+  }
+
+  private void cancelAlarm() {
+    if (alarm != null) {
+      alarm.cancel(false);
+      alarm = null;
+    }
+  }
+}
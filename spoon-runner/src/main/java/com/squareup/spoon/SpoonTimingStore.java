@@ -0,0 +1,133 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonUtils.GSON;
+
+/**
+ * Historical test durations persisted across runs. Durations are keyed by device profile (model
+ * and API level) and test, and are smoothed so that a single outlier does not dominate.
+ */
+final class SpoonTimingStore {
+  /** Weight given to the newest sample when updating a duration. */
+  private static final double SMOOTHING = 0.3;
+
+  /** Profile to test to duration in milliseconds. */
+  private final Map<String, Map<String, Long>> durations;
+
+  private SpoonTimingStore(Map<String, Map<String, Long>> durations) {
+    this.durations = durations;
+  }
+
+  /** An empty store with no history. */
+  static SpoonTimingStore empty() {
+    return new SpoonTimingStore(new TreeMap<String, Map<String, Long>>());
+  }
+
+  /** Load the store from {@code file}. A missing or unreadable file yields an empty store. */
+  static SpoonTimingStore load(File file) {
+    if (file == null || !file.exists()) {
+      return empty();
+    }
+    Reader reader = null;
+    try {
+      reader = new FileReader(file);
+      SpoonTimingStore store = GSON.fromJson(reader, SpoonTimingStore.class);
+      if (store != null && store.durations != null) {
+        return store;
+      }
+    } catch (Exception e) {
+      logError("Unable to read test timings from %s: %s", file, e.getMessage());
+    } finally {
+      IOUtils.closeQuietly(reader);
+    }
+    return empty();
+  }
+
+  void save(File file) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    Writer writer = new FileWriter(file);
+    try {
+      GSON.toJson(this, writer);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Expected duration of {@code test} on {@code device}, in milliseconds. Falls back to the
+   * average across all other device profiles when this profile has not run the test.
+   *
+   * @param device Device details, or {@code null} to average across all profiles.
+   * @return the expected duration, or {@code null} if the test has never been seen.
+   */
+  synchronized Long getDuration(DeviceDetails device, DeviceTest test) {
+    String key = test.toString();
+    if (device != null) {
+      Map<String, Long> profile = durations.get(profileOf(device));
+      if (profile != null && profile.containsKey(key)) {
+        return profile.get(key);
+      }
+    }
+    long total = 0;
+    int count = 0;
+    for (Map<String, Long> profile : durations.values()) {
+      Long duration = profile.get(key);
+      if (duration != null) {
+        total += duration;
+        count++;
+      }
+    }
+    return count == 0 ? null : total / count;
+  }
+
+  synchronized void record(DeviceDetails device, DeviceTest test, long durationMillis) {
+    checkNotNull(device);
+    checkNotNull(test);
+    String profileKey = profileOf(device);
+    Map<String, Long> profile = durations.get(profileKey);
+    if (profile == null) {
+      profile = new TreeMap<String, Long>();
+      durations.put(profileKey, profile);
+    }
+    String key = test.toString();
+    Long previous = profile.get(key);
+    long updated = previous == null ? durationMillis
+        : Math.round(previous * (1 - SMOOTHING) + durationMillis * SMOOTHING);
+    profile.put(key, updated);
+  }
+
+  /** Record the duration of every completed test in {@code summary}. */
+  void recordAll(SpoonSummary summary) {
+    for (DeviceResult result : summary.getResults().values()) {
+      DeviceDetails details = result.getDeviceDetails();
+      if (details == null) {
+        continue;
+      }
+      for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
+        long durationMillis = entry.getValue().getDurationMillis();
+        if (durationMillis >= 0) {
+          record(details, entry.getKey(), durationMillis);
+        }
+      }
+    }
+  }
+
+  static String profileOf(DeviceDetails device) {
+    return device.getManufacturer() + " " + device.getModel() + " (API " + device.getApiLevel()
+        + ")";
+  }
+}
@@ -6,15 +6,19 @@ import com.android.ddmlib.IDevice;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import com.madgag.gif.fmsware.AnimatedGifEncoder;
+import com.squareup.spoon.misc.StackTrace;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -29,23 +33,52 @@ import static com.android.ddmlib.FileListingService.TYPE_DIRECTORY;
 /** Utilities for executing instrumentation tests on devices. */
 public final class SpoonUtils {
   private static final Pattern SERIAL_VALIDATION = Pattern.compile("[^a-zA-Z0-9_-]");
-  static final Gson GSON = new GsonBuilder() //
-      .registerTypeAdapter(File.class, new TypeAdapter<File>() {
-        @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
-          if (file == null) {
-            jsonWriter.nullValue();
-          } else {
-            jsonWriter.value(file.getAbsolutePath());
+  private static final TypeAdapter<File> FILE_ADAPTER = new TypeAdapter<File>() {
+    @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
+      if (file == null) {
+        jsonWriter.nullValue();
+      } else {
+        jsonWriter.value(file.getAbsolutePath());
+      }
+    }
+
+    @Override public File read(JsonReader jsonReader) throws IOException {
+      return new File(jsonReader.nextString());
+    }
+  };
+  /** Parses stack traces which are still text before their fields are written. */
+  private static final TypeAdapterFactory STACK_TRACE_ADAPTER_FACTORY = new TypeAdapterFactory() {
+    @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (type.getRawType() != StackTrace.class) {
+        return null;
+      }
+      final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+      return new TypeAdapter<T>() {
+        @Override public void write(JsonWriter jsonWriter, T value) throws IOException {
+          if (value != null) {
+            ((StackTrace) value).getElements();
           }
+          delegate.write(jsonWriter, value);
         }
 
-        @Override public File read(JsonReader jsonReader) throws IOException {
-          return new File(jsonReader.nextString());
+        @Override public T read(JsonReader jsonReader) throws IOException {
+          return delegate.read(jsonReader);
         }
-      }) //
+      };
+    }
+  };
+  static final Gson GSON = new GsonBuilder() //
+      .registerTypeAdapter(File.class, FILE_ADAPTER) //
+      .registerTypeAdapterFactory(STACK_TRACE_ADAPTER_FACTORY) //
       .enableComplexMapKeySerialization() //
       .setPrettyPrinting() //
       .create();
+  /** Like {@link #GSON} but without whitespace, for machine-to-machine use. */
+  static final Gson COMPACT_GSON = new GsonBuilder() //
+      .registerTypeAdapter(File.class, FILE_ADAPTER) //
+      .registerTypeAdapterFactory(STACK_TRACE_ADAPTER_FACTORY) //
+      .enableComplexMapKeySerialization() //
+      .create();
 
   /** Fetch or create a real device that corresponds to a device model. */
   static IDevice obtainRealDevice(AndroidDebugBridge adb, String serial) {
@@ -102,19 +135,22 @@ public final class SpoonUtils {
   public static Set<String> findAllDevices(AndroidDebugBridge adb, Integer minApiLevel) {
     Set<String> devices = new LinkedHashSet<String>();
     for (IDevice realDevice : adb.getDevices()) {
-      if (minApiLevel == null) {
+      if (meetsMinApiLevel(realDevice, minApiLevel)) {
         devices.add(realDevice.getSerialNumber());
-      } else {
-        DeviceDetails deviceDetails = DeviceDetails.createForDevice(realDevice);
-        int apiLevel = deviceDetails.getApiLevel();
-        if (apiLevel == DeviceDetails.UNKNOWN_API_LEVEL || apiLevel >= minApiLevel) {
-          devices.add(realDevice.getSerialNumber());
-        }
       }
     }
     return devices;
   }
 
+  /** True if {@code minApiLevel} is {@code null} or the device's API level is unknown or higher. */
+  static boolean meetsMinApiLevel(IDevice device, Integer minApiLevel) {
+    if (minApiLevel == null) {
+      return true;
+    }
+    int apiLevel = DeviceDetails.createForDevice(device).getApiLevel();
+    return apiLevel == DeviceDetails.UNKNOWN_API_LEVEL || apiLevel >= minApiLevel;
+  }
+
   /** Get an {@link com.android.ddmlib.AndroidDebugBridge} instance given an SDK path. */
   public static AndroidDebugBridge initAdb(File sdk, long timeOutMs) {
     AndroidDebugBridge.initIfNeeded(false);
@@ -124,28 +160,42 @@ public final class SpoonUtils {
     return adb;
   }
 
-  static void createAnimatedGif(List<File> testScreenshots, File animatedGif) throws IOException {
-    AnimatedGifEncoder encoder = new AnimatedGifEncoder();
-    encoder.start(animatedGif.getAbsolutePath());
-    encoder.setDelay(1500 /* 1.5 seconds */);
-    encoder.setQuality(1 /* highest */);
-    encoder.setRepeat(0 /* infinite */);
-    encoder.setTransparent(Color.WHITE);
-
+  /**
+   * Animate the frames which Java can read, and return whether there were at least two of them.
+   * Nothing is written otherwise.
+   */
+  static boolean createAnimatedGif(List<File> testScreenshots, File animatedGif)
+      throws IOException {
+    List<File> frames = new ArrayList<File>();
     int width = 0;
     int height = 0;
     for (File testScreenshot : testScreenshots) {
       BufferedImage bufferedImage = ImageIO.read(testScreenshot);
+      if (bufferedImage == null) {
+        continue;
+      }
+      frames.add(testScreenshot);
       width = Math.max(bufferedImage.getWidth(), width);
       height = Math.max(bufferedImage.getHeight(), height);
     }
+    if (frames.size() < 2) {
+      return false;
+    }
+
+    AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+    encoder.start(animatedGif.getAbsolutePath());
+    encoder.setDelay(1500 /* 1.5 seconds */);
+    encoder.setQuality(1 /* highest */);
+    encoder.setRepeat(0 /* infinite */);
+    encoder.setTransparent(Color.WHITE);
     encoder.setSize(width, height);
 
-    for (File testScreenshot : testScreenshots) {
-      encoder.addFrame(ImageIO.read(testScreenshot));
+    for (File frame : frames) {
+      encoder.addFrame(ImageIO.read(frame));
     }
 
     encoder.finish();
+    return true;
   }
 
   private static void waitForAdb(AndroidDebugBridge adb, long timeOutMs) {
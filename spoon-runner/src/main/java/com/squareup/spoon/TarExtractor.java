@@ -0,0 +1,216 @@
+package com.squareup.spoon;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unpacks a tar archive, optionally gzipped, while it is being read. Only regular files and
+ * directories are extracted; everything else is skipped. Both the ustar prefix and the GNU and pax
+ * long name extensions are understood since device tools use either.
+ */
+final class TarExtractor {
+  private static final int BLOCK = 512;
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  /**
+   * Extract every file in {@code archive} below {@code destination}.
+   *
+   * @return the number of files extracted.
+   * @throws IOException if the stream ends early or is not a tar archive.
+   */
+  static int extract(InputStream archive, File destination) throws IOException {
+    InputStream in = new BufferedInputStream(archive, 64 * 1024);
+    in.mark(2);
+    int magic = in.read() | (in.read() << 8);
+    in.reset();
+    if (magic == GZIP_MAGIC) {
+      in = new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024);
+    }
+
+    String root = destination.getCanonicalPath() + File.separator;
+    byte[] header = new byte[BLOCK];
+    byte[] buffer = new byte[64 * 1024];
+    String longName = null;
+    int files = 0;
+    boolean empty = true;
+    while (true) {
+      int read = ByteStreams.read(in, header, 0, BLOCK);
+      if (read == 0) {
+        if (empty) {
+          throw new EOFException("Archive is empty.");
+        }
+        break; // Some tools leave off the terminating zero blocks.
+      }
+      if (read < BLOCK) {
+        throw new EOFException("Archive ended in the middle of a header.");
+      }
+      empty = false;
+      if (isZero(header)) {
+        break;
+      }
+      if (checksum(header) != octal(header, 148, 8)) {
+        throw new IOException("Not a tar archive, or a corrupt one.");
+      }
+
+      long size = size(header);
+      char type = (char) header[156];
+      String name;
+      if (longName != null) {
+        name = longName;
+        longName = null;
+      } else {
+        name = name(header);
+      }
+
+      if (type == 'L') {
+        longName = trimNul(new String(readData(in, size), Charsets.UTF_8));
+        continue;
+      }
+      if (type == 'x') {
+        longName = paxPath(new String(readData(in, size), Charsets.UTF_8));
+        continue;
+      }
+
+      File file = new File(destination, name);
+      if (!file.getCanonicalPath().startsWith(root)) {
+        throw new IOException("Archive entry '" + name + "' is outside of " + destination);
+      }
+      if (type == '5') {
+        file.mkdirs();
+      } else if (type == '0' || type == '\0') {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+          copy(in, out, size, buffer);
+        } finally {
+          out.close();
+        }
+        skipPadding(in, size);
+        files++;
+      } else {
+        skip(in, size);
+      }
+    }
+    return files;
+  }
+
+  private static String name(byte[] header) {
+    String name = string(header, 0, 100);
+    if ("ustar".equals(string(header, 257, 6))) {
+      String prefix = string(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  /** The path from a pax extended header, or {@code null} if it has none. */
+  private static String paxPath(String records) {
+    // Records have the form "<length> <key>=<value>\n".
+    for (String record : records.split("\n")) {
+      int space = record.indexOf(' ');
+      if (space != -1 && record.startsWith("path=", space + 1)) {
+        return record.substring(space + 1 + "path=".length());
+      }
+    }
+    return null;
+  }
+
+  private static long size(byte[] header) {
+    if ((header[124] & 0x80) != 0) {
+      // Base-256 encoding for files of 8 GB and up.
+      long size = 0;
+      for (int i = 125; i < 136; i++) {
+        size = (size << 8) | (header[i] & 0xff);
+      }
+      return size;
+    }
+    return octal(header, 124, 12);
+  }
+
+  private static long checksum(byte[] header) {
+    long sum = 0;
+    for (int i = 0; i < BLOCK; i++) {
+      sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+    }
+    return sum;
+  }
+
+  private static long octal(byte[] header, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = header[i];
+      if (b >= '0' && b <= '7') {
+        value = (value << 3) + (b - '0');
+      } else if (b == 0 || (b == ' ' && value != 0)) {
+        break;
+      }
+    }
+    return value;
+  }
+
+  private static boolean isZero(byte[] header) {
+    for (byte b : header) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String string(byte[] header, int offset, int length) {
+    return trimNul(new String(header, offset, length, Charsets.UTF_8));
+  }
+
+  private static String trimNul(String value) {
+    int nul = value.indexOf('\0');
+    return nul == -1 ? value : value.substring(0, nul);
+  }
+
+  private static byte[] readData(InputStream in, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Archive header of " + size + " bytes is too large.");
+    }
+    byte[] data = new byte[(int) size];
+    ByteStreams.readFully(in, data);
+    skipPadding(in, size);
+    return data;
+  }
+
+  private static void copy(InputStream in, OutputStream out, long size, byte[] buffer)
+      throws IOException {
+    while (size > 0) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+      if (read == -1) {
+        throw new EOFException("Archive ended in the middle of a file.");
+      }
+      out.write(buffer, 0, read);
+      size -= read;
+    }
+  }
+
+  private static void skip(InputStream in, long size) throws IOException {
+    ByteStreams.skipFully(in, size);
+    skipPadding(in, size);
+  }
+
+  private static void skipPadding(InputStream in, long size) throws IOException {
+    long remainder = size % BLOCK;
+    if (remainder != 0) {
+      ByteStreams.skipFully(in, BLOCK - remainder);
+    }
+  }
+
+  private TarExtractor() {
+    // No instances.
+  }
+}
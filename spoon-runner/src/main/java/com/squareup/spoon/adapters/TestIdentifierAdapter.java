@@ -1,5 +1,8 @@
 package com.squareup.spoon.adapters;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 import org.apache.commons.lang3.text.WordUtils;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -15,17 +18,29 @@ public enum TestIdentifierAdapter {
   CUCUMBER() {
     @Override
     public TestIdentifier adapt(TestIdentifier test) {
-      String className = WordUtils.capitalize(test.getClassName()).replaceAll(
-          "[^a-zA-Z0-9_]+", "");
-      String testName = "test"
-          + WordUtils.capitalize(test.getTestName()).replaceAll(
-              "[^a-zA-Z0-9_]+", "");
-
-      return new TestIdentifier(className, testName);
+      // Each test is adapted for every event about it, on every device.
+      TestIdentifier adapted = CUCUMBER_TESTS.get(test);
+      if (adapted == null) {
+        String className = NOT_IDENTIFIER.matcher(WordUtils.capitalize(test.getClassName()))
+            .replaceAll("");
+        String testName = "test"
+            + NOT_IDENTIFIER.matcher(WordUtils.capitalize(test.getTestName())).replaceAll("");
+        adapted = new TestIdentifier(className, testName);
+        if (CUCUMBER_TESTS.size() >= MAX_CACHED_TESTS) {
+          CUCUMBER_TESTS.clear();
+        }
+        CUCUMBER_TESTS.put(test, adapted);
+      }
+      return adapted;
     }
   };
 
   private static final String CUCUMBER_NAME = "cucumber.api.android.CucumberInstrumentation";
+  private static final Pattern NOT_IDENTIFIER = Pattern.compile("[^a-zA-Z0-9_]+");
+  /** Enough for the largest suites, while bounding what a long-lived JVM holds on to. */
+  private static final int MAX_CACHED_TESTS = 100000;
+  private static final ConcurrentMap<TestIdentifier, TestIdentifier> CUCUMBER_TESTS =
+      new ConcurrentHashMap<TestIdentifier, TestIdentifier>();
 
   public abstract TestIdentifier adapt(TestIdentifier test);
 
@@ -50,24 +50,35 @@ final class HtmlDevice {
         .append(HtmlUtils.dateToString(result.getStarted()));
 
     String subtitle2 = HtmlUtils.deviceDetailsToString(details);
+    String installs = HtmlUtils.installsToString(result.getInstalls());
+    String speculations = HtmlUtils.speculationsToString(result.getSpeculations());
+    String transfer = HtmlUtils.transferToString(result.getTransfer());
 
-    return new HtmlDevice(serial, title, subtitle1.toString(), subtitle2, testResults, exceptions);
+    return new HtmlDevice(serial, title, subtitle1.toString(), subtitle2, installs, speculations,
+        transfer, testResults, exceptions);
   }
 
   public final String serial;
   public final String title;
   public final String subtitle1;
   public final String subtitle2;
+  public final String installs;
+  public final String speculations;
+  public final String transfer;
   public final List<TestResult> testResults;
   public final boolean hasExceptions;
   public final List<HtmlUtils.ExceptionInfo> exceptions;
 
-  HtmlDevice(String serial, String title, String subtitle1, String subtitle2,
-      List<TestResult> testResults, List<HtmlUtils.ExceptionInfo> exceptions) {
+  HtmlDevice(String serial, String title, String subtitle1, String subtitle2, String installs,
+      String speculations, String transfer, List<TestResult> testResults,
+      List<HtmlUtils.ExceptionInfo> exceptions) {
     this.serial = serial;
     this.title = title;
     this.subtitle1 = subtitle1;
     this.subtitle2 = subtitle2;
+    this.installs = installs;
+    this.speculations = speculations;
+    this.transfer = transfer;
     this.testResults = testResults;
     this.hasExceptions = !exceptions.isEmpty();
     this.exceptions = exceptions;
@@ -1,53 +1,124 @@
 package com.squareup.spoon.html;
 
-import com.android.ddmlib.logcat.LogCatMessage;
+import com.squareup.spoon.DeviceLogSlice;
+import com.squareup.spoon.DeviceLogStore;
+import com.squareup.spoon.DeviceResult;
 import com.squareup.spoon.DeviceTest;
 import com.squareup.spoon.DeviceTestResult;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-/** Model for representing a {@code log.html} page. */
+/** Model for representing a {@code log.html} page, which has the log of every test on a device. */
 final class HtmlLog {
-  public static HtmlLog from(String name, DeviceTest test, DeviceTestResult result) {
-    String status;
-    switch (result.getStatus()) {
-      case PASS:
-        status = "passed";
-        break;
-      case FAIL:
-        status = "failed";
-        break;
-      default:
-        throw new IllegalArgumentException("Unknown status: " + result.getStatus());
+  /**
+   * The page for every test in a device's log index, in the order they ran, followed by any test
+   * which logged nothing. Each test's entries are read from its slice into {@code store} only as
+   * the page is rendered, so it must not be refilled until then.
+   */
+  public static HtmlLog from(String name, DeviceResult result,
+      Map<DeviceTest, DeviceLogSlice> index, DeviceLogStore store) {
+    Map<DeviceTest, DeviceLogSlice> slices = new LinkedHashMap<DeviceTest, DeviceLogSlice>(index);
+    for (DeviceTest test : result.getTestResults().keySet()) {
+      if (!slices.containsKey(test)) {
+        slices.put(test, null);
+      }
     }
 
-    String title = HtmlUtils.prettifyMethodName(test.getMethodName());
-    String subtitle = "Test " + status
-        + " in " + HtmlUtils.humanReadableDuration(result.getDuration())
-        + " on " + name;
-
-    List<LogEntry> log = new ArrayList<LogEntry>();
-    for (LogCatMessage message : result.getLog()) {
-      log.add(LogEntry.from(message));
+    List<TestLog> tests = new ArrayList<TestLog>();
+    for (Map.Entry<DeviceTest, DeviceLogSlice> entry : slices.entrySet()) {
+      DeviceTest test = entry.getKey();
+      tests.add(TestLog.from(test, result.getTestResults().get(test), entry.getValue(), store));
     }
 
-    return new HtmlLog(title, subtitle, log);
+    String subtitle = "Device log of " + tests.size() + " test" + (tests.size() == 1 ? "" : "s");
+    return new HtmlLog(name, subtitle, tests);
   }
 
   public final String title;
   public final String subtitle;
-  public final List<LogEntry> log;
+  public final List<TestLog> tests;
 
-  HtmlLog(String title, String subtitle, List<LogEntry> log) {
+  HtmlLog(String title, String subtitle, List<TestLog> tests) {
     this.title = title;
     this.subtitle = subtitle;
-    this.log = log;
+    this.tests = tests;
+  }
+
+  static final class TestLog {
+    /** @param result The test's result, or {@code null} if the device never reported one. */
+    static TestLog from(DeviceTest test, DeviceTestResult result, DeviceLogSlice slice,
+        DeviceLogStore store) {
+      String className = test.getClassName();
+      String methodName = test.getMethodName();
+      String classSimpleName = HtmlUtils.getClassSimpleName(className);
+      String prettyMethodName = HtmlUtils.prettifyMethodName(methodName);
+      String testId = HtmlUtils.testClassAndMethodToId(className, methodName);
+      String status = result != null ? HtmlUtils.getStatusCssClass(result) : "";
+      return new TestLog(classSimpleName, prettyMethodName, testId, status,
+          new LogEntries(slice, store));
+    }
+
+    public final String classSimpleName;
+    public final String prettyMethodName;
+    public final String testId;
+    public final String status;
+    public final Iterable<LogEntry> log;
+
+    TestLog(String classSimpleName, String prettyMethodName, String testId, String status,
+        Iterable<LogEntry> log) {
+      this.classSimpleName = classSimpleName;
+      this.prettyMethodName = prettyMethodName;
+      this.testId = testId;
+      this.status = status;
+      this.log = log;
+    }
+  }
+
+  /** Reads a test's slice and creates each of its entries only when the template gets to them. */
+  static final class LogEntries implements Iterable<LogEntry> {
+    private final DeviceLogSlice slice;
+    private final DeviceLogStore store;
+
+    /** @param slice Where the test's messages are, or {@code null} if it logged nothing. */
+    LogEntries(DeviceLogSlice slice, DeviceLogStore store) {
+      this.slice = slice;
+      this.store = store;
+    }
+
+    @Override public Iterator<LogEntry> iterator() {
+      store.clear();
+      if (slice != null) {
+        slice.read(store);
+      }
+      return new Iterator<LogEntry>() {
+        private int next;
+
+        @Override public boolean hasNext() {
+          return next < store.size();
+        }
+
+        @Override public LogEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return LogEntry.from(store, next++);
+        }
+
+        @Override public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
   }
 
   static class LogEntry {
-    static LogEntry from(LogCatMessage message) {
+    static LogEntry from(DeviceLogStore store, int index) {
       String rowClass;
-      switch (message.getLogLevel()) {
+      switch (store.getLevel(index)) {
         case ERROR:
           rowClass = "error";
           break;
@@ -61,9 +132,9 @@ final class HtmlLog {
           rowClass = "";
       }
 
-      String timestamp = message.getTimestamp().toString();
-      String level = message.getLogLevel().getStringValue();
-      return new LogEntry(rowClass, timestamp, level, message.getTag(), message.getMessage());
+      String level = store.getLevel(index).getStringValue();
+      return new LogEntry(rowClass, store.getTimestamp(index), level, store.getTag(index),
+          store.getMessage(index));
     }
 
     public final String rowClass;
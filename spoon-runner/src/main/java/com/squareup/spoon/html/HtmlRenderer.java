@@ -6,9 +6,11 @@ import com.github.mustachejava.MustacheFactory;
 import com.google.common.io.Resources;
 import com.google.gson.Gson;
 import com.squareup.spoon.DeviceDetails;
+import com.squareup.spoon.DeviceLogArchive;
+import com.squareup.spoon.DeviceLogSlice;
+import com.squareup.spoon.DeviceLogStore;
 import com.squareup.spoon.DeviceResult;
 import com.squareup.spoon.DeviceTest;
-import com.squareup.spoon.DeviceTestResult;
 import com.squareup.spoon.SpoonSummary;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -132,20 +134,28 @@ public final class HtmlRenderer {
     }
   }
 
+  /** Render one page per device from the index of its log archive, next to the archive. */
   private void generateLogHtml(MustacheFactory mustacheFactory) {
     Mustache mustache = mustacheFactory.compile("page/log.html");
-    for (Map.Entry<String, DeviceResult> resultEntry : summary.getResults().entrySet()) {
-      String serial = resultEntry.getKey();
-      DeviceResult result = resultEntry.getValue();
+    // One store holds each test's log in turn while it is rendered.
+    DeviceLogStore store = new DeviceLogStore();
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      String serial = entry.getKey();
+      DeviceResult result = entry.getValue();
+      File logs = FileUtils.getFile(output, "logs", serial);
+      Map<DeviceTest, DeviceLogSlice> index;
+      try {
+        index = DeviceLogArchive.readIndex(logs);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read the device log index in " + logs, e);
+      }
+      if (index.isEmpty() && result.getTestResults().isEmpty()) {
+        continue;
+      }
       DeviceDetails details = result.getDeviceDetails();
       String name = (details != null) ? details.getName() : serial;
-      for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
-        DeviceTest test = entry.getKey();
-        HtmlLog scope = HtmlLog.from(name, test, entry.getValue());
-        File file = FileUtils.getFile(output, "logs", serial, test.getClassName(),
-            test.getMethodName() + ".html");
-        renderMustacheToFile(mustache, scope, file);
-      }
+      HtmlLog scope = HtmlLog.from(name, result, index, store);
+      renderMustacheToFile(mustache, scope, new File(logs, "logcat.html"));
     }
   }
 
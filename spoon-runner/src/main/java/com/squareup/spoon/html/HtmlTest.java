@@ -55,21 +55,25 @@ final class HtmlTest {
     String className = test.getClassName();
     String methodName = test.getMethodName();
 
-    return new HtmlTest(title, subtitle.toString(), className, methodName, devices);
+    String testId = HtmlUtils.testClassAndMethodToId(className, methodName);
+
+    return new HtmlTest(title, subtitle.toString(), className, methodName, testId, devices);
   }
 
   public final String title;
   public final String subtitle;
   public final String className;
   public final String methodName;
+  public final String testId;
   public final List<TestResult> devices;
 
-  HtmlTest(String title, String subtitle, String className, String methodName,
+  HtmlTest(String title, String subtitle, String className, String methodName, String testId,
       List<TestResult> devices) {
     this.title = title;
     this.subtitle = subtitle;
     this.className = className;
     this.methodName = methodName;
+    this.testId = testId;
     this.devices = devices;
   }
 
@@ -1,7 +1,10 @@
 package com.squareup.spoon.html;
 
+import com.squareup.spoon.ApkInstall;
+import com.squareup.spoon.ArtifactTransfer;
 import com.squareup.spoon.DeviceDetails;
 import com.squareup.spoon.DeviceTestResult;
+import com.squareup.spoon.Speculation;
 import com.squareup.spoon.misc.StackTrace;
 import java.io.File;
 import java.io.IOException;
@@ -9,8 +12,11 @@ import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringEscapeUtils;
 
@@ -212,6 +218,70 @@ final class HtmlUtils {
     return new ExceptionInfo(message, lines);
   }
 
+  /** Describe how the APKs were installed, or {@code null} if nothing was installed. */
+  static String installsToString(List<ApkInstall> installs) {
+    StringBuilder builder = new StringBuilder();
+    for (ApkInstall install : installs) {
+      if (builder.length() > 0) {
+        builder.append(". ");
+      }
+      if (install.isSkipped()) {
+        builder.append(install.getPackageName()).append(" was unchanged and not reinstalled");
+        long saved = install.getSavedMillis() - install.getDurationMillis();
+        if (saved > 0) {
+          builder.append(", saving ").append(humanReadableDuration(saved / 1000));
+        }
+      } else {
+        builder.append("Installed ").append(install.getPackageName()).append(" in ")
+            .append(humanReadableDuration(install.getDurationMillis() / 1000));
+      }
+    }
+    return builder.length() > 0 ? builder.append(".").toString() : null;
+  }
+
+  /** Summarize which tests were run on two devices and which device finished them first. */
+  static String speculationsToString(List<Speculation> speculations) {
+    Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+    for (Speculation speculation : speculations) {
+      String key = speculation.getOriginal() + " to " + speculation.getBackup();
+      int[] count = counts.get(key);
+      if (count == null) {
+        count = new int[2];
+        counts.put(key, count);
+      }
+      count[0]++;
+      if (speculation.getBackup().equals(speculation.getWinner())) {
+        count[1]++;
+      }
+    }
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      if (builder.length() > 0) {
+        builder.append(". ");
+      }
+      int[] count = entry.getValue();
+      builder.append("Speculatively copied ").append(count[0]).append(" test")
+          .append(count[0] != 1 ? "s" : "").append(" from ").append(entry.getKey())
+          .append(", where ").append(count[1]).append(" finished first");
+    }
+    return builder.length() > 0 ? builder.append(".").toString() : null;
+  }
+
+  /** Describe how screenshots and files were copied, or {@code null} if there were none. */
+  static String transferToString(ArtifactTransfer transfer) {
+    if (transfer == null || transfer.getFileCount() == 0) {
+      return null;
+    }
+    return (transfer.isStreamed() ? "Streamed " : "Pulled ") + transfer.getFileCount() + " file"
+        + (transfer.getFileCount() != 1 ? "s" : "") + " ("
+        + FileUtils.byteCountToDisplaySize(transfer.getBytes())
+        + (transfer.isStreamed() ? " compressed" : "") + ") in "
+        + humanReadableDuration(transfer.getDurationMillis() / 1000) + " at "
+        + FileUtils.byteCountToDisplaySize(transfer.getBytesPerSecond()) + "/s"
+        + (transfer.getSkippedCount() > 0
+            ? ", skipping " + transfer.getSkippedCount() + " which were already here." : ".");
+  }
+
   static String humanReadableDuration(long length) {
     long minutes = length / 60;
     long seconds = length - (minutes * 60);
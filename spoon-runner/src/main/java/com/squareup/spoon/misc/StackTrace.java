@@ -37,8 +37,17 @@ public class StackTrace {
     return new StackTrace(className, message, elements, cause);
   }
 
+  /**
+   * Convert the text of a stack trace, as printed by {@link Throwable#printStackTrace()}, to its
+   * equivalent {@link StackTrace}. The text is kept as it is until the trace is first looked at,
+   * as most failures are only read once the report is written.
+   */
   public static StackTrace from(String exception) {
     checkNotNull(exception);
+    return new StackTrace(exception);
+  }
+
+  private static StackTrace parse(String exception) {
     String parts[] = exception.replace("\r\n", "\n").split("\n");
 
     StackTrace last = null;
@@ -105,10 +114,13 @@ public class StackTrace {
     return new StackTrace(exceptionClass, message, elements, last);
   }
 
-  private final String className;
-  private final String message;
-  private final List<Element> elements;
-  private final StackTrace cause;
+  // Set once the trace is parsed, after which it is never changed.
+  private String className;
+  private String message;
+  private List<Element> elements;
+  private StackTrace cause;
+  /** The text this was created from, until it is parsed. Guarded by this. */
+  private transient String trace;
 
   public StackTrace(String className, String message, Deque<Element> elements, StackTrace cause) {
     checkNotNull(elements);
@@ -119,23 +131,43 @@ public class StackTrace {
     this.cause = cause;
   }
 
+  private StackTrace(String trace) {
+    this.trace = trace;
+  }
+
+  private synchronized void parseIfNeeded() {
+    if (trace != null) {
+      StackTrace parsed = parse(trace);
+      className = parsed.className;
+      message = parsed.message;
+      elements = parsed.elements;
+      cause = parsed.cause;
+      trace = null;
+    }
+  }
+
   public String getClassName() {
+    parseIfNeeded();
     return className;
   }
 
   public String getMessage() {
+    parseIfNeeded();
     return message;
   }
 
   public List<Element> getElements() {
+    parseIfNeeded();
     return elements;
   }
 
   public StackTrace getCause() {
+    parseIfNeeded();
     return cause;
   }
 
   @Override public String toString() {
+    parseIfNeeded();
     if (className != null) {
       if (message != null) {
         return className + ": " + message;
@@ -0,0 +1,144 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.squareup.spoon.DeviceTestResult.Status;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceEventStreamTest {
+  private static final TestIdentifier PASSING = new TestIdentifier("com.example.Foo", "passes");
+  private static final TestIdentifier FAILING = new TestIdentifier("com.example.Foo", "fails");
+  private static final DeviceDetails DEVICE =
+      new DeviceDetails("Pixel", "Google", "7.1", 25, "en", "US", false, null);
+  private static final long STARTED = 1500000000000L;
+
+  @Test public void replaysDeviceRunIntoResult() throws Exception {
+    byte[] stream = writeRun();
+
+    DeviceResult.Builder builder = new DeviceResult.Builder();
+    boolean complete = new DeviceEventStream.Reader(builder, listenersFor(builder))
+        .readAll(new ByteArrayInputStream(stream));
+    DeviceResult result = builder.build();
+
+    assertThat(complete).isTrue();
+    assertThat(result.getDeviceDetails().getModel()).isEqualTo("Pixel");
+    assertThat(result.getStarted()).isEqualTo(STARTED);
+    assertThat(result.getExceptions()).hasSize(1);
+    Map<DeviceTest, DeviceTestResult> tests = result.getTestResults();
+    assertThat(tests).hasSize(2);
+    DeviceTestResult passing = tests.get(DeviceTest.from(PASSING));
+    assertThat(passing.getStatus()).isEqualTo(Status.PASS);
+    assertThat(passing.getScreenshots()).containsExactly(new File("/tmp/passes.png"));
+    DeviceTestResult failing = tests.get(DeviceTest.from(FAILING));
+    assertThat(failing.getStatus()).isEqualTo(Status.FAIL);
+    ArtifactTransfer transfer = result.getTransfer();
+    assertThat(transfer.isStreamed()).isTrue();
+    assertThat(transfer.getFileCount()).isEqualTo(3);
+    assertThat(transfer.getBytes()).isEqualTo(4096);
+    assertThat(transfer.getDurationMillis()).isEqualTo(500);
+  }
+
+  @Test public void truncatedStreamIsIncomplete() throws Exception {
+    byte[] stream = writeRun();
+    byte[] truncated = Arrays.copyOf(stream, stream.length - 3);
+
+    DeviceResult.Builder builder = new DeviceResult.Builder();
+    boolean complete = new DeviceEventStream.Reader(builder, listenersFor(builder))
+        .readAll(new ByteArrayInputStream(truncated));
+
+    assertThat(complete).isFalse();
+    // Everything before the cut was still applied.
+    assertThat(builder.build().getTestResults()).hasSize(2);
+  }
+
+  @Test public void installFailureIsReported() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeviceEventStream.Writer writer = new DeviceEventStream.Writer(out);
+    writer.deviceDetails(DEVICE, STARTED);
+    writer.installFailed("Unable to install application APK.");
+    writer.exception(new IllegalStateException("INSTALL_FAILED_INSUFFICIENT_STORAGE"));
+    writer.exception("2 files did not match the manifest after pulling.");
+    writer.finish(new DeviceResult.Builder().build());
+
+    DeviceResult.Builder builder = new DeviceResult.Builder();
+    new DeviceEventStream.Reader(builder, listenersFor(builder))
+        .readAll(new ByteArrayInputStream(out.toByteArray()));
+    DeviceResult result = builder.build();
+
+    assertThat(result.getInstallFailed()).isTrue();
+    assertThat(result.getInstallMessage()).isEqualTo("Unable to install application APK.");
+    assertThat(result.getExceptions()).hasSize(2);
+    assertThat(result.getExceptions().get(1).toString())
+        .isEqualTo("2 files did not match the manifest after pulling.");
+  }
+
+  @Test public void phasesAreGrantedAndReleasedWhenDeviceDies() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeviceEventStream.Writer writer = new DeviceEventStream.Writer(out);
+    DevicePhaseGate remote = writer.remoteGate(new ByteArrayInputStream(new byte[] { 1, 1 }));
+    remote.enter(DevicePhaseGate.Phase.INSTALL);
+    remote.exit(DevicePhaseGate.Phase.INSTALL);
+    remote.enter(DevicePhaseGate.Phase.INSTRUMENT);
+    // The process dies here without exiting the phase or finishing the stream.
+
+    final List<String> calls = new ArrayList<String>();
+    DevicePhaseGate gate = new DevicePhaseGate() {
+      @Override public void enter(Phase phase) {
+        calls.add("enter " + phase);
+      }
+
+      @Override public void exit(Phase phase) {
+        calls.add("exit " + phase);
+      }
+    };
+    ByteArrayOutputStream grants = new ByteArrayOutputStream();
+    DeviceResult.Builder builder = new DeviceResult.Builder();
+    boolean complete = new DeviceEventStream.Reader(builder, listenersFor(builder), gate, grants)
+        .readAll(new ByteArrayInputStream(out.toByteArray()));
+
+    assertThat(complete).isFalse();
+    assertThat(grants.toByteArray()).hasSize(2);
+    assertThat(calls).containsExactly("enter INSTALL", "exit INSTALL", "enter INSTRUMENT",
+        "exit INSTRUMENT");
+  }
+
+  /** Simulate what a device process writes for one passing and one failing test. */
+  private static byte[] writeRun() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeviceEventStream.Writer writer = new DeviceEventStream.Writer(out);
+    Map<String, String> noMetrics = Collections.emptyMap();
+    writer.deviceDetails(DEVICE, STARTED);
+    writer.testRunStarted("com.example.test", 2);
+    writer.testStarted(PASSING);
+    writer.testEnded(PASSING, noMetrics);
+    writer.testStarted(FAILING);
+    writer.testFailed(FAILING, "java.lang.AssertionError: nope");
+    writer.testEnded(FAILING, noMetrics);
+    writer.testRunEnded(1000, noMetrics);
+    writer.exception(new RuntimeException("Pull failed."));
+
+    DeviceResult.Builder childResult = new DeviceResult.Builder();
+    childResult.addTestResultBuilder(DeviceTest.from(PASSING),
+        new DeviceTestResult.Builder().addScreenshot(new File("/tmp/passes.png")));
+    childResult.setTransfer(new ArtifactTransfer(true, 3, 0, 4096, 500));
+    writer.finish(childResult.build());
+    return out.toByteArray();
+  }
+
+  private static List<ITestRunListener> listenersFor(DeviceResult.Builder builder) {
+    ITestRunListener listener = new SpoonTestRunListener(builder, false,
+        TestIdentifierAdapter.fromTestRunner("android.test.InstrumentationTestRunner"));
+    return Collections.singletonList(listener);
+  }
+}
@@ -0,0 +1,87 @@
+package com.squareup.spoon;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class DeviceExecTest {
+  private final ServerSocket server;
+  private final List<String> requests = new ArrayList<String>();
+
+  public DeviceExecTest() throws IOException {
+    server = new ServerSocket(0);
+  }
+
+  @After public void tearDown() throws IOException {
+    server.close();
+  }
+
+  @Test public void streamsOutputOfCommand() throws Exception {
+    Thread adb = serve("OKAY", "OKAY", "binary\r\n\0output");
+    InputStream in = DeviceExec.open(address(), "emulator-5554", "tar -cf - dir", 5000);
+    try {
+      assertThat(new String(ByteStreams.toByteArray(in), Charsets.UTF_8))
+          .isEqualTo("binary\r\n\0output");
+    } finally {
+      in.close();
+    }
+    adb.join();
+    assertThat(requests).containsExactly("host:transport:emulator-5554", "exec:tar -cf - dir");
+  }
+
+  @Test public void refusedCommandFails() throws Exception {
+    Thread adb = serve("OKAY", "FAIL0017closed: unknown service");
+    try {
+      DeviceExec.open(address(), "emulator-5554", "tar -cf - dir", 5000);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).contains("closed: unknown service");
+    }
+    adb.join();
+  }
+
+  private InetSocketAddress address() {
+    return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+  }
+
+  /** Accept one connection and answer each request with the next of {@code responses}. */
+  private Thread serve(final String... responses) {
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          Socket socket = server.accept();
+          InputStream in = socket.getInputStream();
+          OutputStream out = socket.getOutputStream();
+          for (int i = 0; i < responses.length; i++) {
+            if (i < 2) {
+              byte[] length = new byte[4];
+              ByteStreams.readFully(in, length);
+              byte[] request = new byte[Integer.parseInt(new String(length, Charsets.UTF_8), 16)];
+              ByteStreams.readFully(in, request);
+              requests.add(new String(request, Charsets.UTF_8));
+            }
+            out.write(responses[i].getBytes(Charsets.UTF_8));
+            out.flush();
+          }
+          socket.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,46 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceLogStoreTest {
+  @Test public void storesMessagesByColumn() {
+    LogCatTimestamp time = LogCatTimestamp.fromString("12-31 23:59:59.999");
+    DeviceLogStore store = new DeviceLogStore();
+    for (int i = 0; i < 1000; i++) {
+      LogLevel level = i % 2 == 0 ? LogLevel.DEBUG : LogLevel.ERROR;
+      store.add(new LogCatMessage(
+          new LogCatHeader(level, 42, i, "com.example", "Tag" + (i % 3), time), "Message é " + i));
+    }
+
+    assertThat(store.size()).isEqualTo(1000);
+    assertThat(store.getLevel(999)).isEqualTo(LogLevel.ERROR);
+    assertThat(store.getPid(500)).isEqualTo(42);
+    assertThat(store.getTid(500)).isEqualTo(500);
+    assertThat(store.getTimestamp(0)).isEqualTo("12-31 23:59:59.999");
+    assertThat(store.getAppName(7)).isEqualTo("com.example");
+    assertThat(store.getTag(7)).isEqualTo("Tag1");
+    assertThat(store.getMessage(0)).isEqualTo("Message é 0");
+    assertThat(store.getMessage(999)).isEqualTo("Message é 999");
+    assertThat(store.get(3).getTimestamp().toString()).isEqualTo(time.toString());
+
+    store.clear();
+    assertThat(store.size()).isZero();
+    store.add(new LogCatMessage(new LogCatHeader(LogLevel.INFO, 1, 1, "app", "Other", time),
+        "again"));
+    assertThat(store.getTag(0)).isEqualTo("Other");
+    assertThat(store.getMessage(0)).isEqualTo("again");
+  }
+
+  @Test public void rejectsMalformedTimestamps() {
+    assertThat(DeviceLogStore.parseTimestamp("10-18 12:34:56.789")).isGreaterThan(0);
+    assertThat(DeviceLogStore.parseTimestamp("10-18 12:34:56")).isEqualTo(-1);
+    assertThat(DeviceLogStore.parseTimestamp("10-18 25:34:56.789")).isEqualTo(-1);
+    assertThat(DeviceLogStore.parseTimestamp("aa-18 12:34:56.789")).isEqualTo(-1);
+  }
+}
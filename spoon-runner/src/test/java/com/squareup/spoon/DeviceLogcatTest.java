@@ -0,0 +1,85 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.logcat.LogCatListener;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.base.Charsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class DeviceLogcatTest {
+  private final List<String> commands = new ArrayList<String>();
+  private final List<String> delivered = new ArrayList<String>();
+
+  @Test public void scopingRestartsWhereTheLastLogcatLeftOff() throws Exception {
+    IDevice device = mock(IDevice.class);
+    final DeviceLogcat[] logcat = new DeviceLogcat[1];
+    logcat[0] = new DeviceLogcat(device, new LogCatListener() {
+      @Override public void log(List<LogCatMessage> messages) {
+        for (LogCatMessage message : messages) {
+          delivered.add(message.getPid() + " " + message.getMessage());
+          if (message.getMessage().startsWith("started:")) {
+            logcat[0].scope(message.getPid());
+          }
+        }
+      }
+    }, "*:W");
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        String command = (String) invocation.getArguments()[0];
+        IShellOutputReceiver receiver = (IShellOutputReceiver) invocation.getArguments()[1];
+        commands.add(command);
+        if (commands.size() == 1) {
+          output(receiver, entry("00.100", 7, "W/Other", "noise")
+              + entry("00.200", 42, "I/TestRunner", "started: test(com.example.FooTest)")
+              + entry("00.200", 7, "W/Other", "more noise"));
+          assertThat(receiver.isCancelled()).isTrue();
+        } else {
+          // The restarted logcat repeats what was already seen at the same millisecond.
+          output(receiver, entry("00.200", 42, "I/TestRunner", "started: test(com.example.FooTest)")
+              + entry("00.200", 42, "W/App", "same time")
+              + entry("00.300", 42, "W/App", "later"));
+        }
+        return null;
+      }
+    }).when(device).executeShellCommand(anyString(), any(IShellOutputReceiver.class), anyLong(),
+        eq(TimeUnit.MILLISECONDS));
+
+    logcat[0].run();
+
+    assertThat(commands).containsExactly("logcat -v long TestRunner:V *:W",
+        "logcat -v long -T '10-18 12:00:00.200' --pid=42 TestRunner:V *:W");
+    assertThat(delivered).containsExactly("7 noise", "42 started: test(com.example.FooTest)",
+        "7 more noise", "42 same time", "42 later");
+  }
+
+  @Test public void onlyAcceptsFilterSpecs() {
+    assertThat(DeviceLogcat.isValidFilter("MyTag:D *:W")).isTrue();
+    assertThat(DeviceLogcat.isValidFilter("*:E")).isTrue();
+    assertThat(DeviceLogcat.isValidFilter("*:W; rm -rf /")).isFalse();
+    assertThat(DeviceLogcat.isValidFilter("MyTag")).isFalse();
+  }
+
+  private static String entry(String time, int pid, String tag, String message) {
+    return String.format("[ 10-18 12:00:%s %5d:%5d %s ]\n%s\n\n", time, pid, pid, tag, message);
+  }
+
+  private static void output(IShellOutputReceiver receiver, String output) {
+    byte[] bytes = output.getBytes(Charsets.UTF_8);
+    receiver.addOutput(bytes, 0, bytes.length);
+    receiver.flush();
+  }
+}
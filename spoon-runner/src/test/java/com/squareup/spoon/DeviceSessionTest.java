@@ -0,0 +1,72 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeviceSessionTest {
+  private static final String OUTPUT = "/storage/emulated/legacy\r\n"
+      + "[ro.build.version.release]: [6.0.1]\r\n"
+      + "[ro.build.version.sdk]: [23]\r\n"
+      + "[ro.product.locale.language]: [en]\r\n"
+      + "[ro.product.locale.region]: [US]\r\n"
+      + "[ro.product.manufacturer]: [LGE]\r\n"
+      + "[ro.product.model]: [Nexus 5]\r\n";
+
+  @After public void tearDown() {
+    DeviceSession.clear();
+  }
+
+  @Test public void oneShellCommandAnswersEverything() throws Exception {
+    IDevice device = device("0123456789", OUTPUT);
+
+    DeviceDetails details = DeviceDetails.createForDevice(device);
+    assertThat(details.getApiLevel()).isEqualTo(23);
+    assertThat(details.getModel()).isEqualTo("Nexus 5");
+    assertThat(details.getLanguage()).isEqualTo("en");
+    DeviceSession session = DeviceSession.of(device);
+    assertThat(session.getExternalStorage()).isEqualTo("/storage/emulated/legacy");
+    assertThat(DeviceDetails.createForDevice(device)).isSameAs(details);
+
+    verify(device, times(1)).executeShellCommand(anyString(), any(IShellOutputReceiver.class));
+    verify(device, never()).getProperty(anyString());
+  }
+
+  @Test public void fallsBackToDdmlibWithoutGetprop() throws Exception {
+    IDevice device = device("0123456789", "/sdcard\nsh: getprop: not found\n");
+    when(device.getProperty("ro.build.version.sdk")).thenReturn("10");
+
+    assertThat(DeviceDetails.createForDevice(device).getApiLevel()).isEqualTo(10);
+    assertThat(DeviceSession.of(device).getExternalStorage()).isEqualTo("/sdcard");
+  }
+
+  private static IDevice device(String serial, final String output) throws Exception {
+    IDevice device = mock(IDevice.class);
+    when(device.getSerialNumber()).thenReturn(serial);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        byte[] bytes = output.getBytes(Charsets.UTF_8);
+        CollectingOutputReceiver receiver = (CollectingOutputReceiver) invocation.getArguments()[1];
+        receiver.addOutput(bytes, 0, bytes.length);
+        receiver.flush();
+        return null;
+      }
+    }).when(device).executeShellCommand(anyString(), any(IShellOutputReceiver.class));
+    return device;
+  }
+}
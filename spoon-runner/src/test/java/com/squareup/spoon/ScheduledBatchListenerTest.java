@@ -0,0 +1,68 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ScheduledBatchListenerTest {
+  private static final Map<String, String> NO_METRICS = Collections.emptyMap();
+
+  private final IRemoteAndroidTestRunner runner = mock(IRemoteAndroidTestRunner.class);
+  private final ITestRunListener delegate = mock(ITestRunListener.class);
+
+  @Test public void runIsAbandonedAtTestAnotherDeviceFinished() {
+    SpoonTestScheduler scheduler = SpoonTestScheduler.dynamic(1, SpoonTimingStore.empty());
+    TestIdentifier first = new TestIdentifier("com.example.Foo", "first");
+    TestIdentifier taken = new TestIdentifier("com.example.Foo", "a");
+    scheduler.finished("fast", DeviceTest.from(taken));
+
+    ScheduledBatchListener listener =
+        new ScheduledBatchListener(scheduler, "slow", runner, delegate);
+    listener.testRunStarted("run", 2);
+    listener.testStarted(first);
+    listener.testEnded(first, NO_METRICS);
+    listener.testStarted(taken);
+    // Cancelling makes ddmlib fail the test which was in progress and the run.
+    listener.testFailed(taken, "Test run failed to complete.");
+    listener.testEnded(taken, NO_METRICS);
+    listener.testRunFailed("Test run failed to complete. Expected 2 tests, received 1");
+    listener.testRunEnded(100, NO_METRICS);
+
+    verify(runner).cancel();
+    assertThat(listener.getAbandonedAt()).isEqualTo(DeviceTest.from(taken));
+    assertThat(scheduler.isDone(DeviceTest.from(first))).isTrue();
+    verify(delegate).testStarted(first);
+    verify(delegate).testEnded(first, NO_METRICS);
+    verify(delegate, never()).testStarted(taken);
+    verify(delegate, never()).testFailed((TestIdentifier) any(), anyString());
+    verify(delegate, never()).testRunFailed(anyString());
+    verify(delegate).testRunEnded(100, NO_METRICS);
+  }
+
+  @Test public void testInProgressWhenRunFailsIsNotFinished() {
+    SpoonTestScheduler scheduler = SpoonTestScheduler.dynamic(1, SpoonTimingStore.empty());
+    TestIdentifier test = new TestIdentifier("com.example.Foo", "a");
+
+    ScheduledBatchListener listener =
+        new ScheduledBatchListener(scheduler, "serial", runner, delegate);
+    listener.testRunStarted("run", 1);
+    listener.testStarted(test);
+    listener.testFailed(test, "Test run failed to complete.");
+    listener.testEnded(test, NO_METRICS);
+    listener.testRunFailed("Device disconnected.");
+    listener.testRunEnded(100, NO_METRICS);
+
+    assertThat(scheduler.isDone(DeviceTest.from(test))).isFalse();
+    verify(delegate).testRunFailed("Device disconnected.");
+  }
+}
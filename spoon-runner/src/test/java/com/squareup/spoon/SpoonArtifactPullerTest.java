@@ -0,0 +1,113 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import static com.squareup.spoon.SpoonArtifactPuller.Artifact;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SpoonArtifactPullerTest {
+  private static final String REMOTE = "/sdcard/app_spoon-screenshots";
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test public void onlyMissingOrChangedFilesArePulled() throws Exception {
+    File local = temp.newFolder("app_spoon-screenshots");
+    File manifest = temp.newFile("spoon-manifest");
+    Files.write(line("Foo/a/1_a.png", "first") + line("Foo/a/2_b.png", "second")
+        + line("Foo/b/3_c.png", "third") + "garbage\n", manifest, Charsets.UTF_8);
+    write(new File(local, "Foo/a/1_a.png"), "first");
+    write(new File(local, "Foo/a/2_b.png"), "corrupt");
+
+    List<Artifact> listed = SpoonArtifactPuller.readManifest(manifest, REMOTE, local);
+    assertThat(listed).hasSize(3);
+    List<Artifact> missing = SpoonArtifactPuller.missing(listed);
+    assertThat(missing).hasSize(2);
+    assertThat(missing.get(0).remotePath).isEqualTo(REMOTE + "/Foo/a/2_b.png");
+    assertThat(missing.get(1).localFile).isEqualTo(new File(local, "Foo/b/3_c.png"));
+
+    IDevice device = mock(IDevice.class);
+    SyncService sync = mock(SyncService.class);
+    when(device.getSyncService()).thenReturn(sync);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws IOException {
+        String remote = (String) invocation.getArguments()[0];
+        String content = remote.endsWith("2_b.png") ? "second" : "third";
+        write(new File((String) invocation.getArguments()[1]), content);
+        return null;
+      }
+    }).when(sync).pullFile(anyString(), anyString(), any(ISyncProgressMonitor.class));
+
+    long bytes = SpoonArtifactPuller.pull(device, missing, 4);
+    assertThat(bytes).isEqualTo("second".length() + "third".length());
+    assertThat(SpoonArtifactPuller.missing(listed)).isEmpty();
+    verify(sync, never()).pullFile(eq(REMOTE + "/Foo/a/1_a.png"), anyString(),
+        any(ISyncProgressMonitor.class));
+    verify(sync, times(2)).close();
+  }
+
+  @Test public void failedPullDoesNotStopTheRest() throws Exception {
+    File local = temp.newFolder("app_spoon-screenshots");
+    File manifest = temp.newFile("spoon-manifest");
+    Files.write(line("Foo/a/1_a.png", "first") + line("Foo/a/2_b.png", "second")
+        + line("Foo/b/3_c.png", "third"), manifest, Charsets.UTF_8);
+    List<Artifact> listed = SpoonArtifactPuller.readManifest(manifest, REMOTE, local);
+
+    IDevice device = mock(IDevice.class);
+    SyncService sync = mock(SyncService.class);
+    when(device.getSyncService()).thenReturn(sync);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Exception {
+        String remote = (String) invocation.getArguments()[0];
+        if (remote.endsWith("1_a.png")) {
+          throw new SyncException(SyncException.SyncError.NO_REMOTE_OBJECT);
+        }
+        String content = remote.endsWith("2_b.png") ? "second" : "third";
+        write(new File((String) invocation.getArguments()[1]), content);
+        return null;
+      }
+    }).when(sync).pullFile(anyString(), anyString(), any(ISyncProgressMonitor.class));
+
+    long bytes = SpoonArtifactPuller.pull(device, listed, 1);
+    assertThat(bytes).isEqualTo("second".length() + "third".length());
+    List<Artifact> missing = SpoonArtifactPuller.missing(listed);
+    assertThat(missing).hasSize(1);
+    assertThat(missing.get(0).remotePath).isEqualTo(REMOTE + "/Foo/a/1_a.png");
+  }
+
+  private static String line(String path, String content) {
+    CRC32 crc = new CRC32();
+    byte[] bytes = content.getBytes(Charsets.UTF_8);
+    crc.update(bytes);
+    String[] parts = path.split("/");
+    return new SpoonManifest.Entry(parts[0], parts[1], "tag", bytes.length, crc.getValue(), path)
+        .toLine() + "\n";
+  }
+
+  private static void write(File file, String content) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.write(content, file, Charsets.UTF_8);
+  }
+}
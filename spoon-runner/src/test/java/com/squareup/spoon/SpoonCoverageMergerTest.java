@@ -37,6 +37,21 @@ public class SpoonCoverageMergerTest {
     assertTrue(mergedCoverageFile.exists());
   }
 
+  @Test
+  public void shouldSkipDevicesWithoutCoverage() throws Exception {
+    String serialId1 = "10.0.0.1:1234";
+    String serialId2 = "10.0.0.2:1234";
+    File spoonOutputDirectory = testFolder.newFolder("output");
+    createTemporaryCoverageFiles(serialId1, serialId2);
+    Set<String> serials = ImmutableSet.of(serialId1, serialId2, "joined-late");
+    SpoonCoverageMerger spoonCoverageMerger = new SpoonCoverageMerger();
+
+    spoonCoverageMerger.mergeCoverageFiles(serials, spoonOutputDirectory);
+
+    File mergedCoverageFile = new File(spoonOutputDirectory, "/coverage/merged-coverage.ec");
+    assertTrue(mergedCoverageFile.exists());
+  }
+
   private void createTemporaryCoverageFiles(String serialId1, String serialId2) throws IOException {
     testFolder.newFolder("output", "coverage", sanitizeSerial(serialId1));
     testFolder.newFolder("output", "coverage", sanitizeSerial(serialId2));
@@ -0,0 +1,194 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class SpoonDeviceLoggerTest {
+  private static final LogCatTimestamp TIME = LogCatTimestamp.fromString("10-18 12:34:56.789");
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test public void archivesLogAndIndexesEachTest() throws IOException {
+    SpoonDeviceLogger logger = new SpoonDeviceLogger(temp.getRoot(), 0);
+    logger.log(Arrays.asList(
+        message(10, "App", "before any test"),
+        message(10, "TestRunner", "started: first(com.example.FooTest)"),
+        message(10, "App", "tab\there\nand a newline \\ too"),
+        message(20, "Other", "another process"),
+        message(10, "TestRunner", "finished: first(com.example.FooTest)")));
+    logger.log(Arrays.asList(
+        message(11, "TestRunner", "started: second(com.example.FooTest)"),
+        message(11, "App", "never finished")));
+
+    Map<DeviceTest, DeviceLogSlice> logs = logger.getLogSlices();
+    DeviceLogSlice first = logs.get(new DeviceTest("com.example.FooTest", "first"));
+    assertThat(first.getArchive())
+        .isEqualTo(new File(temp.getRoot(), DeviceLogArchive.FILE_NAME));
+    assertThat(first.getPid()).isEqualTo(10);
+    DeviceLogStore firstLog = read(first, false);
+    assertThat(firstLog.size()).isEqualTo(3);
+    assertThat(firstLog.getMessage(1)).isEqualTo("tab\there\nand a newline \\ too");
+    assertThat(firstLog.getTag(1)).isEqualTo("App");
+    assertThat(firstLog.getPid(1)).isEqualTo(10);
+    assertThat(firstLog.getLevel(1)).isEqualTo(LogLevel.INFO);
+    assertThat(firstLog.getTimestamp(1)).isEqualTo(TIME.toString());
+    DeviceLogStore everyProcess = read(first, true);
+    assertThat(everyProcess.size()).isEqualTo(4);
+    assertThat(everyProcess.getMessage(2)).isEqualTo("another process");
+
+    DeviceLogSlice second = logs.get(new DeviceTest("com.example.FooTest", "second"));
+    assertThat(second.getStart()).isEqualTo(first.getEnd());
+    assertThat(read(second, false).size()).isEqualTo(2);
+
+    logger.log(Arrays.asList(message(11, "App", "after the run")));
+    assertThat(read(second, false).size()).isEqualTo(2);
+
+    assertThat(DeviceLogArchive.readIndex(temp.getRoot())).isEqualTo(logs);
+    // The archive is also a plain gzip file of the whole log.
+    InputStream in = new GZIPInputStream(new FileInputStream(first.getArchive()));
+    try {
+      assertThat(CharStreams.readLines(new InputStreamReader(in, Charsets.UTF_8))).hasSize(7);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test public void noIndexBeforeAnythingIsLogged() throws IOException {
+    assertThat(DeviceLogArchive.readIndex(temp.getRoot())).isEmpty();
+  }
+
+  @Test public void splitsLongTestsIntoBlocks() throws IOException {
+    SpoonDeviceLogger logger = new SpoonDeviceLogger(temp.getRoot(), 0);
+    logger.log(Arrays.asList(message(10, "TestRunner", "started: test(com.example.FooTest)")));
+    char[] text = new char[1000];
+    Arrays.fill(text, 'x');
+    int messages = 3 * DeviceLogArchive.BLOCK_SIZE / text.length;
+    for (int i = 0; i < messages; i++) {
+      logger.log(Arrays.asList(message(10, "App", i + new String(text))));
+    }
+
+    DeviceLogSlice slice = logger.getLogSlices().get(new DeviceTest("com.example.FooTest", "test"));
+    DeviceLogStore log = read(slice, false);
+    assertThat(log.size()).isEqualTo(messages + 1);
+    assertThat(log.getMessage(messages)).startsWith(String.valueOf(messages - 1));
+  }
+
+  @Test public void dropsLinesBeyondLimit() throws IOException {
+    SpoonDeviceLogger logger = new SpoonDeviceLogger(temp.getRoot(), 2);
+    logger.log(Arrays.asList(
+        message(10, "TestRunner", "started: test(com.example.FooTest)"),
+        message(10, "App", "one"),
+        message(10, "App", "two"),
+        message(10, "App", "three"),
+        message(10, "TestRunner", "finished: test(com.example.FooTest)")));
+
+    DeviceLogSlice slice = logger.getLogSlices().get(new DeviceTest("com.example.FooTest", "test"));
+    DeviceLogStore messages = read(slice, false);
+    assertThat(messages.size()).isEqualTo(3);
+    assertThat(messages.getMessage(1)).isEqualTo("one");
+    assertThat(messages.getMessage(2)).contains("dropped 3 more lines");
+  }
+
+  @Test public void otherProcessesDoNotUseTheTestsLimit() throws IOException {
+    SpoonDeviceLogger logger = new SpoonDeviceLogger(temp.getRoot(), 2);
+    logger.log(Arrays.asList(
+        message(10, "TestRunner", "started: test(com.example.FooTest)"),
+        message(20, "Noisy", "one"),
+        message(20, "Noisy", "two"),
+        message(20, "Noisy", "three"),
+        message(10, "App", "mine"),
+        message(10, "TestRunner", "finished: test(com.example.FooTest)")));
+
+    DeviceLogSlice slice = logger.getLogSlices().get(new DeviceTest("com.example.FooTest", "test"));
+    DeviceLogStore mine = read(slice, false);
+    assertThat(mine.getMessage(1)).isEqualTo("mine");
+    assertThat(mine.getMessage(2)).contains("dropped 1 more lines after");
+    assertThat(mine.getMessage(3)).contains("dropped 1 more lines of other processes");
+    DeviceLogStore everyProcess = read(slice, true);
+    assertThat(everyProcess.getMessage(1)).isEqualTo("one");
+    assertThat(everyProcess.getMessage(2)).isEqualTo("two");
+    assertThat(everyProcess.getMessage(3)).isEqualTo("mine");
+  }
+
+  @Test public void everyInstrumentationIsScopedToItsOwnProcess() throws Exception {
+    final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    IDevice device = mock(IDevice.class);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws InterruptedException {
+        commands.add((String) invocation.getArguments()[0]);
+        IShellOutputReceiver receiver = (IShellOutputReceiver) invocation.getArguments()[1];
+        while (!receiver.isCancelled()) {
+          Thread.sleep(1);
+        }
+        return null;
+      }
+    }).when(device).executeShellCommand(anyString(), any(IShellOutputReceiver.class), anyLong(),
+        eq(TimeUnit.MILLISECONDS));
+    SpoonDeviceLogger logger = new SpoonDeviceLogger(device, temp.getRoot(), 0, null, true);
+    try {
+      awaitCommands(commands, 1);
+      logger.instrumentationStarting();
+      logger.log(Arrays.asList(message(10, "TestRunner", "started: first(com.example.FooTest)")));
+      awaitCommands(commands, 2);
+      logger.instrumentationStarting();
+      awaitCommands(commands, 3);
+      logger.log(Arrays.asList(message(11, "TestRunner", "started: second(com.example.FooTest)")));
+      awaitCommands(commands, 4);
+    } finally {
+      logger.stop();
+    }
+
+    assertThat(commands).containsExactly("logcat -v long", "logcat -v long --pid=10",
+        "logcat -v long", "logcat -v long --pid=11");
+  }
+
+  private static void awaitCommands(List<String> commands, int count) throws InterruptedException {
+    for (int i = 0; i < 5000 && commands.size() < count; i++) {
+      Thread.sleep(1);
+    }
+    assertThat(commands).hasSize(count);
+  }
+
+  private static DeviceLogStore read(DeviceLogSlice slice, boolean allProcesses)
+      throws IOException {
+    DeviceLogStore store = new DeviceLogStore();
+    DeviceLogArchive.read(slice, store, allProcesses);
+    return store;
+  }
+
+  private static LogCatMessage message(int pid, String tag, String message) {
+    return new LogCatMessage(new LogCatHeader(LogLevel.INFO, pid, pid, "com.example", tag, TIME),
+        message);
+  }
+}
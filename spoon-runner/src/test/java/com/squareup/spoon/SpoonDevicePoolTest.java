@@ -0,0 +1,115 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
+import com.android.ddmlib.IDevice;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpoonDevicePoolTest {
+  private final FakeSource source = new FakeSource();
+  private final RecordingListener listener = new RecordingListener();
+
+  @Test public void devicesAlreadyOnlineJoinUnlessAlreadyRunning() {
+    source.devices.add(device("running", true));
+    source.devices.add(device("idle", true));
+    source.devices.add(device("offline", false));
+
+    pool(Collections.<String>emptySet(), null).start(Collections.singleton("running"));
+
+    assertThat(listener.events).containsExactly("added idle");
+  }
+
+  @Test public void deviceJoinsOnceWhenItComesOnline() {
+    pool(Collections.<String>emptySet(), null).start(Collections.<String>emptySet());
+    IDevice device = device("late", false);
+
+    source.listener.deviceConnected(device);
+    when(device.isOnline()).thenReturn(true);
+    source.listener.deviceChanged(device, IDevice.CHANGE_STATE);
+    source.listener.deviceChanged(device, IDevice.CHANGE_STATE);
+
+    assertThat(listener.events).containsExactly("added late");
+  }
+
+  @Test public void onlyRequestedDevicesJoin() {
+    pool(set("wanted", "skipped"), set("skipped")).start(Collections.<String>emptySet());
+
+    source.listener.deviceConnected(device("other", true));
+    source.listener.deviceConnected(device("skipped", true));
+    source.listener.deviceConnected(device("wanted", true));
+
+    assertThat(listener.events).containsExactly("added wanted");
+  }
+
+  @Test public void membersAreRemovedOnceAndDoNotRejoin() {
+    SpoonDevicePool pool = pool(Collections.<String>emptySet(), null);
+    pool.start(Collections.singleton("a"));
+    IDevice a = device("a", true);
+    IDevice b = device("b", true);
+
+    source.listener.deviceConnected(b);
+    source.listener.deviceDisconnected(a);
+    source.listener.deviceDisconnected(a);
+    source.listener.deviceConnected(a);
+    source.listener.deviceDisconnected(device("stranger", true));
+    pool.stop();
+
+    assertThat(listener.events).containsExactly("added b", "removed a");
+    assertThat(source.listener).isNull();
+  }
+
+  private SpoonDevicePool pool(Set<String> serials, Set<String> skipDevices) {
+    return new SpoonDevicePool(source, serials, skipDevices, null, listener);
+  }
+
+  private static IDevice device(String serial, boolean online) {
+    IDevice device = mock(IDevice.class);
+    when(device.getSerialNumber()).thenReturn(serial);
+    when(device.isOnline()).thenReturn(online);
+    return device;
+  }
+
+  private static Set<String> set(String... serials) {
+    return new LinkedHashSet<String>(Arrays.asList(serials));
+  }
+
+  private static final class FakeSource implements SpoonDevicePool.DeviceSource {
+    final List<IDevice> devices = new ArrayList<IDevice>();
+    IDeviceChangeListener listener;
+
+    @Override public IDevice[] getDevices() {
+      return devices.toArray(new IDevice[devices.size()]);
+    }
+
+    @Override public void addDeviceChangeListener(IDeviceChangeListener listener) {
+      this.listener = listener;
+    }
+
+    @Override public void removeDeviceChangeListener(IDeviceChangeListener listener) {
+      if (this.listener == listener) {
+        this.listener = null;
+      }
+    }
+  }
+
+  private static final class RecordingListener implements SpoonDevicePool.Listener {
+    final List<String> events = new ArrayList<String>();
+
+    @Override public void deviceAdded(IDevice device) {
+      events.add("added " + device.getSerialNumber());
+    }
+
+    @Override public void deviceRemoved(String serial) {
+      events.add("removed " + serial);
+    }
+  }
+}
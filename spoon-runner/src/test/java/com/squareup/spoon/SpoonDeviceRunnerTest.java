@@ -0,0 +1,52 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonDeviceRunnerTest {
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test public void testsAreSplitToFitTheClassArgument() {
+    // "com.example.FooTest#test0" is 25 characters, joined by commas.
+    List<DeviceTest> tests = new ArrayList<DeviceTest>();
+    for (int i = 0; i < 10; i++) {
+      tests.add(new DeviceTest("com.example.FooTest", "test" + i));
+    }
+    assertThat(SpoonDeviceRunner.testsThatFit(tests, 1000)).isEqualTo(10);
+    assertThat(SpoonDeviceRunner.testsThatFit(tests, 77)).isEqualTo(3);
+    assertThat(SpoonDeviceRunner.testsThatFit(tests, 78)).isEqualTo(3);
+    assertThat(SpoonDeviceRunner.testsThatFit(tests, 10)).isEqualTo(1);
+  }
+
+  @Test public void largeSuiteFitsInAShellCommand() {
+    List<DeviceTest> tests = Arrays.asList(
+        new DeviceTest("com.example.checkout.CheckoutWithSavedCardTest", "paysWithDefaultCard"),
+        new DeviceTest("com.example.checkout.CheckoutWithSavedCardTest", "asksForCvv"));
+    List<DeviceTest> suite = new ArrayList<DeviceTest>();
+    for (int i = 0; i < 500; i++) {
+      suite.addAll(tests);
+    }
+    int count = SpoonDeviceRunner.testsThatFit(suite, SpoonDeviceRunner.MAX_CLASS_ARG_LENGTH);
+    assertThat(count).isGreaterThan(1).isLessThan(suite.size());
+    StringBuilder argument = new StringBuilder();
+    for (DeviceTest test : suite.subList(0, count)) {
+      argument.append(test.getClassName()).append('#').append(test.getMethodName()).append(',');
+    }
+    assertThat(argument.length() - 1).isLessThanOrEqualTo(SpoonDeviceRunner.MAX_CLASS_ARG_LENGTH);
+  }
+
+  @Test public void webpScreenshotsAreAnimatedFromTheirFrames() throws IOException {
+    File png = temp.newFile("1_start.png");
+    File webp = temp.newFile("2_end.webp");
+    File frame = temp.newFile("2_end.webp" + Spoon.GIF_FRAME_SUFFIX);
+    assertThat(SpoonDeviceRunner.gifFrames(Arrays.asList(png, webp))).containsExactly(png, frame);
+  }
+}
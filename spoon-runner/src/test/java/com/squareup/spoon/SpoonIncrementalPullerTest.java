@@ -0,0 +1,82 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SpoonIncrementalPullerTest {
+  private static final String REMOTE = "/sdcard/app_spoon-screenshots";
+  private static final String TEST_DIR = REMOTE + "/com.example.Foo_Inner/bar";
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final Map<String, String> deviceFiles = new HashMap<String, String>();
+
+  @Test public void endedTestIsPulledThenDeletedFromDevice() throws Exception {
+    deviceFiles.put(TEST_DIR + "/1_a.png", "first");
+    deviceFiles.put(TEST_DIR + "/2_b.png", "second");
+    deviceFiles.put(TEST_DIR + "/spoon-manifest", line("1_a.png", "first")
+        + line("2_b.png", "second"));
+
+    IDevice device = mock(IDevice.class);
+    SyncService sync = mock(SyncService.class);
+    when(device.getSyncService()).thenReturn(sync);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Exception {
+        String content = deviceFiles.get((String) invocation.getArguments()[0]);
+        if (content == null) {
+          throw new SyncException(SyncException.SyncError.NO_REMOTE_OBJECT);
+        }
+        File local = new File((String) invocation.getArguments()[1]);
+        Files.write(content, local, Charsets.UTF_8);
+        return null;
+      }
+    }).when(sync).pullFile(anyString(), anyString(), any(ISyncProgressMonitor.class));
+
+    File work = temp.getRoot();
+    SpoonIncrementalPuller puller = new SpoonIncrementalPuller(device, "serial", false, work,
+        ImmutableMap.of("app_spoon-screenshots", REMOTE, "app_spoon-files", "/sdcard/files"));
+    Map<String, String> noMetrics = Collections.emptyMap();
+    puller.testEnded(new TestIdentifier("com.example.Foo$Inner", "bar"), noMetrics);
+    puller.finish(5000);
+
+    File local = new File(work, "app_spoon-screenshots/com.example.Foo_Inner/bar");
+    assertThat(Files.toString(new File(local, "1_a.png"), Charsets.UTF_8)).isEqualTo("first");
+    assertThat(Files.toString(new File(local, "2_b.png"), Charsets.UTF_8)).isEqualTo("second");
+    verify(device).executeShellCommand(eq("rm -f '" + TEST_DIR + "/1_a.png' '" + TEST_DIR
+        + "/2_b.png' '" + TEST_DIR + "/spoon-manifest'"), any(IShellOutputReceiver.class));
+  }
+
+  private static String line(String name, String content) {
+    CRC32 crc = new CRC32();
+    byte[] bytes = content.getBytes(Charsets.UTF_8);
+    crc.update(bytes);
+    return new SpoonManifest.Entry("com.example.Foo_Inner", "bar", "tag", bytes.length,
+        crc.getValue(), "com.example.Foo_Inner/bar/" + name).toLine() + "\n";
+  }
+}
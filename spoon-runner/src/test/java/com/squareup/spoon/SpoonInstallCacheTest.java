@@ -0,0 +1,190 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.InstallException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class SpoonInstallCacheTest {
+  private static final String PACKAGE = "com.example";
+  private static final Pattern ECHO = Pattern.compile("mkdir -p \\S+ && echo '(.*)' > (\\S+)");
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final Map<String, String> deviceFiles = new HashMap<String, String>();
+  private final List<String> commands = new ArrayList<String>();
+  private int installs;
+  private IDevice device;
+  private File apk;
+
+  @Before public void setUp() throws Exception {
+    apk = temp.newFile("app.apk");
+    write(apk, "version 1");
+    device = fakeDevice();
+  }
+
+  @Test public void secondInstallOfSameApkIsSkipped() throws Exception {
+    ApkInstall first = install(SpoonInstallCache.create(false, apk));
+    ApkInstall second = install(SpoonInstallCache.create(false, apk));
+
+    assertThat(first.isSkipped()).isFalse();
+    assertThat(second.isSkipped()).isTrue();
+    assertThat(installs).isEqualTo(1);
+  }
+
+  @Test public void changedApkIsInstalled() throws Exception {
+    install(SpoonInstallCache.create(false, apk));
+    write(apk, "version 2");
+    ApkInstall second = install(SpoonInstallCache.create(false, apk));
+
+    assertThat(second.isSkipped()).isFalse();
+    assertThat(installs).isEqualTo(2);
+  }
+
+  @Test public void packageReinstalledElsewhereIsInstalled() throws Exception {
+    install(SpoonInstallCache.create(false, apk));
+    // Someone else installed the package, which moves it.
+    installs++;
+    ApkInstall second = install(SpoonInstallCache.create(false, apk));
+
+    assertThat(second.isSkipped()).isFalse();
+  }
+
+  @Test public void forceAlwaysInstalls() throws Exception {
+    install(SpoonInstallCache.create(false, apk));
+    ApkInstall second = install(SpoonInstallCache.create(true, apk));
+
+    assertThat(second.isSkipped()).isFalse();
+    assertThat(installs).isEqualTo(2);
+  }
+
+  @Test public void pushedApkIsInstalledAndRemoved() throws Exception {
+    String remotePath = SpoonInstallCache.push(device, apk, PACKAGE);
+    ApkInstall install = SpoonInstallCache.create(false, apk)
+        .installPushed(device, apk, remotePath, PACKAGE, 500, "-g");
+
+    assertThat(remotePath).isEqualTo(SpoonInstallCache.remotePath(PACKAGE));
+    verify(device).pushFile(apk.getAbsolutePath(), remotePath);
+    verify(device).installRemotePackage(remotePath, true, "-g");
+    verify(device).removeRemotePackage(remotePath);
+    assertThat(install.isSkipped()).isFalse();
+    // The push is part of the install.
+    assertThat(install.getDurationMillis()).isGreaterThanOrEqualTo(500);
+    assertThat(deviceFiles).hasSize(1);
+  }
+
+  @Test public void failedInstallRemovesPushedApk() throws Exception {
+    String remotePath = SpoonInstallCache.push(device, apk, PACKAGE);
+    doThrow(new InstallException("INSTALL_FAILED_INSUFFICIENT_STORAGE", null)).when(device)
+        .installRemotePackage(anyString(), anyBoolean(), Matchers.<String>anyVararg());
+    try {
+      SpoonInstallCache.create(false, apk).installPushed(device, apk, remotePath, PACKAGE, 0);
+      fail();
+    } catch (InstallException expected) {
+    }
+
+    verify(device).removeRemotePackage(remotePath);
+    assertThat(deviceFiles).isEmpty();
+  }
+
+  @Test public void failedPushIsAnInstallFailure() throws Exception {
+    doThrow(new IOException("No space left on device")).when(device)
+        .pushFile(anyString(), anyString());
+    try {
+      SpoonInstallCache.push(device, apk, PACKAGE);
+      fail();
+    } catch (InstallException e) {
+      assertThat(e.getCause()).hasMessage("No space left on device");
+    }
+  }
+
+  @Test public void grantsExternalStorage() throws Exception {
+    SpoonInstallCache.grantExternalStorage(device, PACKAGE);
+
+    assertThat(commands).containsExactly(
+        "pm grant " + PACKAGE + " android.permission.READ_EXTERNAL_STORAGE",
+        "pm grant " + PACKAGE + " android.permission.WRITE_EXTERNAL_STORAGE");
+  }
+
+  @Test public void invalidMarkersAreIgnored() {
+    assertThat(SpoonInstallCache.Marker.parse("")).isNull();
+    assertThat(SpoonInstallCache.Marker.parse("abc /data/app/x.apk soon")).isNull();
+    assertThat(SpoonInstallCache.Marker.parse("abc /data/app/x.apk 42").installMillis)
+        .isEqualTo(42);
+  }
+
+  /** Install the way {@link SpoonDeviceRunner} does, one step after the other. */
+  private ApkInstall install(SpoonInstallCache cache) throws Exception {
+    ApkInstall skipped = cache.checkInstalled(device, apk, PACKAGE);
+    if (skipped != null) {
+      return skipped;
+    }
+    String remotePath = SpoonInstallCache.push(device, apk, PACKAGE);
+    return cache.installPushed(device, apk, remotePath, PACKAGE, 0);
+  }
+
+  /** A device whose package manager moves the package to a new path on every install. */
+  private IDevice fakeDevice() throws Exception {
+    IDevice device = mock(IDevice.class);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        installs++;
+        return null;
+      }
+    }).when(device)
+        .installRemotePackage(anyString(), anyBoolean(), Matchers.<String>anyVararg());
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        String command = (String) invocation.getArguments()[0];
+        commands.add(command);
+        IShellOutputReceiver receiver = (IShellOutputReceiver) invocation.getArguments()[1];
+        String output = "";
+        Matcher echo = ECHO.matcher(command);
+        if (command.startsWith("pm path ")) {
+          output = installs == 0 ? "" : "package:/data/app/" + PACKAGE + "-" + installs + ".apk";
+        } else if (command.startsWith("cat ")) {
+          String contents = deviceFiles.get(command.split(" ")[1]);
+          output = contents != null ? contents : "";
+        } else if (echo.matches()) {
+          deviceFiles.put(echo.group(2), echo.group(1));
+        }
+        byte[] bytes = (output + "\n").getBytes();
+        receiver.addOutput(bytes, 0, bytes.length);
+        receiver.flush();
+        return null;
+      }
+    }).when(device).executeShellCommand(anyString(), (IShellOutputReceiver) any());
+    return device;
+  }
+
+  private static void write(File file, String contents) throws Exception {
+    FileWriter writer = new FileWriter(file);
+    writer.write(contents);
+    writer.close();
+  }
+}
@@ -0,0 +1,81 @@
+package com.squareup.spoon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonLoggerTest {
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+  @After public void restoreConsole() {
+    SpoonLogger.setStream(null);
+  }
+
+  @Test public void printsCallerAndMessageInOrder() throws Exception {
+    SpoonLogger.setStream(new PrintStream(bytes, true, "UTF-8"));
+    logInfo("Hello %s", "world");
+    logDebug(false, "Hidden");
+    logDebug(true, "Shown %d", 2);
+    logError("Bad format %d", "text");
+    SpoonLogger.flush();
+
+    String[] lines = bytes.toString("UTF-8").split("\n");
+    assertThat(lines).hasSize(3);
+    assertThat(lines[0]).matches(
+        "[-0-9]{10} [:0-9]{8} \\[SLT\\.printsCallerAndMessageInOrder\\] Hello world");
+    assertThat(lines[1]).endsWith("] Shown 2");
+    assertThat(lines[2]).contains("] Bad format %d (");
+  }
+
+  @Test public void errorsAreNotDroppedWhenTheConsoleFallsBehind() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    SpoonLogger.setStream(new PrintStream(new OutputStream() {
+      @Override public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        bytes.write(b, off, len);
+      }
+    }, true, "UTF-8"));
+
+    logInfo("First");
+    assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+    for (int i = 0; i < SpoonLogger.QUEUE_SIZE + 10; i++) {
+      logInfo("Filler");
+    }
+    final CountDownLatch logged = new CountDownLatch(1);
+    Thread errorThread = new Thread() {
+      @Override public void run() {
+        logError("Never dropped");
+        logged.countDown();
+      }
+    };
+    errorThread.start();
+    assertThat(logged.await(100, TimeUnit.MILLISECONDS)).isFalse(); // Waiting for room.
+    release.countDown();
+    assertThat(logged.await(5, TimeUnit.SECONDS)).isTrue();
+    SpoonLogger.flush();
+
+    String output = bytes.toString("UTF-8");
+    assertThat(output).contains("] Never dropped");
+    assertThat(output).contains("Spoon dropped 10 log lines while the console was busy.");
+  }
+}
@@ -0,0 +1,64 @@
+package com.squareup.spoon;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static com.squareup.spoon.DevicePhaseGate.Phase;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonPhaseLimitsTest {
+  @Test public void limitsDevicesInPhase() throws Exception {
+    Map<Phase, Integer> limits = new EnumMap<Phase, Integer>(Phase.class);
+    limits.put(Phase.INSTALL, 2);
+    final SpoonPhaseLimits gate = new SpoonPhaseLimits(limits);
+
+    final AtomicInteger inPhase = new AtomicInteger();
+    final AtomicInteger maxInPhase = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(8);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            gate.enter(Phase.INSTALL);
+            try {
+              int now = inPhase.incrementAndGet();
+              synchronized (maxInPhase) {
+                maxInPhase.set(Math.max(maxInPhase.get(), now));
+              }
+              Thread.sleep(20);
+              inPhase.decrementAndGet();
+            } finally {
+              gate.exit(Phase.INSTALL);
+            }
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    executor.shutdown();
+    assertThat(maxInPhase.get()).isEqualTo(2);
+  }
+
+  @Test public void zeroIsUnlimited() throws Exception {
+    Map<Phase, Integer> limits = new EnumMap<Phase, Integer>(Phase.class);
+    limits.put(Phase.POST_PROCESS, 0);
+    SpoonPhaseLimits gate = new SpoonPhaseLimits(limits);
+
+    // Would block forever if zero meant no permits.
+    for (int i = 0; i < 100; i++) {
+      gate.enter(Phase.POST_PROCESS);
+    }
+  }
+}
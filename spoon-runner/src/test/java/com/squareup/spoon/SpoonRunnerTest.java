@@ -96,6 +96,35 @@ public class SpoonRunnerTest {
             .build(); //
     assertThat(parseOverallSuccess(summary)).isFalse();
 
+    // PASS: One device ran nothing because another device took every test of a split suite.
+    summary = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", new DeviceResult.Builder() //
+            .startTests() //
+            .addTestResultBuilder(device, new DeviceTestResult.Builder() //
+                .startTest() //
+                .endTest()) //
+            .endTests() //
+            .build()) //
+        .addResult("456", new DeviceResult.Builder().build()) //
+        .end() //
+        .build(); //
+    assertThat(parseOverallSuccess(summary, true)).isTrue();
+
+    // FAIL: One device ran nothing of a suite which every device runs in full.
+    assertThat(parseOverallSuccess(summary, false)).isFalse();
+
+    // FAIL: No device ran any of a split suite.
+    summary = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", new DeviceResult.Builder().build()) //
+        .addResult("456", new DeviceResult.Builder().build()) //
+        .end() //
+        .build(); //
+    assertThat(parseOverallSuccess(summary, true)).isFalse();
+
     // PASS: Test success.
     summary = new SpoonSummary.Builder() //
         .setTitle("test") //
@@ -0,0 +1,95 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonShardPlanTest {
+  private static final DeviceDetails FAST =
+      new DeviceDetails("Pixel", "Google", "7.1", 25, "en", "US", false, null);
+  private static final DeviceDetails SLOW =
+      new DeviceDetails("Nexus S", "Samsung", "4.1", 16, "en", "US", false, null);
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test public void noHistoryFallsBackToEqualCounts() {
+    Map<String, DeviceDetails> devices = devices(FAST, FAST, FAST);
+    SpoonShardPlan plan = SpoonShardPlan.balance(tests(7), devices, SpoonTimingStore.empty());
+
+    assertThat(plan.getShard("0")).hasSize(3);
+    assertThat(plan.getShard("1")).hasSize(2);
+    assertThat(plan.getShard("2")).hasSize(2);
+    assertThat(plan.getPredictedMakespanMillis()).isEqualTo(0);
+  }
+
+  @Test public void longestTestsArePackedFirst() {
+    List<DeviceTest> tests = tests(4);
+    SpoonTimingStore timings = SpoonTimingStore.empty();
+    timings.record(FAST, tests.get(0), 6000);
+    timings.record(FAST, tests.get(1), 5000);
+    timings.record(FAST, tests.get(2), 4000);
+    timings.record(FAST, tests.get(3), 3000);
+
+    SpoonShardPlan plan = SpoonShardPlan.balance(tests, devices(FAST, FAST), timings);
+
+    // LPT: 6 -> a, 5 -> b, 4 -> b, 3 -> a.
+    assertThat(plan.getShard("0")).containsExactly(tests.get(0), tests.get(3));
+    assertThat(plan.getShard("1")).containsExactly(tests.get(1), tests.get(2));
+    assertThat(plan.getPredictedMakespanMillis()).isEqualTo(9000);
+  }
+
+  @Test public void slowDevicesReceiveLessWork() {
+    List<DeviceTest> tests = tests(3);
+    SpoonTimingStore timings = SpoonTimingStore.empty();
+    for (DeviceTest test : tests) {
+      timings.record(FAST, test, 1000);
+      timings.record(SLOW, test, 5000);
+    }
+
+    SpoonShardPlan plan = SpoonShardPlan.balance(tests, devices(FAST, SLOW), timings);
+
+    assertThat(plan.getShard("0")).hasSize(3);
+    assertThat(plan.getShard("1")).isEmpty();
+    assertThat(plan.getPredictedMillis("0")).isEqualTo(3000);
+  }
+
+  @Test public void timingsAreSmoothedAndPersisted() throws Exception {
+    DeviceTest test = new DeviceTest("com.example.FooTest", "testFoo");
+    SpoonTimingStore timings = SpoonTimingStore.empty();
+    timings.record(FAST, test, 1000);
+    timings.record(FAST, test, 2000);
+    assertThat(timings.getDuration(FAST, test)).isEqualTo(1300L);
+    // Unknown profiles fall back to the average across the profiles that have run the test.
+    assertThat(timings.getDuration(SLOW, test)).isEqualTo(1300L);
+    assertThat(timings.getDuration(FAST, new DeviceTest("com.example.FooTest", "bar"))).isNull();
+
+    File file = new File(temp.getRoot(), "timings.json");
+    timings.save(file);
+    assertThat(SpoonTimingStore.load(file).getDuration(FAST, test)).isEqualTo(1300L);
+    assertThat(SpoonTimingStore.load(new File(temp.getRoot(), "missing.json"))
+        .getDuration(FAST, test)).isNull();
+  }
+
+  private static Map<String, DeviceDetails> devices(DeviceDetails... details) {
+    Map<String, DeviceDetails> devices = new LinkedHashMap<String, DeviceDetails>();
+    for (int i = 0; i < details.length; i++) {
+      devices.put(String.valueOf(i), details[i]);
+    }
+    return devices;
+  }
+
+  private static List<DeviceTest> tests(int count) {
+    List<DeviceTest> tests = new ArrayList<DeviceTest>();
+    for (int i = 0; i < count; i++) {
+      tests.add(new DeviceTest("com.example.FooTest", "test" + i));
+    }
+    return tests;
+  }
+}
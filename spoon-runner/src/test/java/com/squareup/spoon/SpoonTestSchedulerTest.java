@@ -0,0 +1,278 @@
+package com.squareup.spoon;
+
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class SpoonTestSchedulerTest {
+  @Test public void batchSizeShrinksAsQueueDrains() {
+    assertThat(SpoonTestScheduler.batchSize(1000, 4)).isEqualTo(SpoonTestScheduler.MAX_BATCH_SIZE);
+    assertThat(SpoonTestScheduler.batchSize(80, 4)).isEqualTo(10);
+    assertThat(SpoonTestScheduler.batchSize(7, 4)).isEqualTo(1);
+    assertThat(SpoonTestScheduler.batchSize(1, 4)).isEqualTo(1);
+  }
+
+  @Test public void drainsEveryTestExactlyOnce() throws Exception {
+    SpoonTestScheduler scheduler = SpoonTestScheduler.dynamic(3, SpoonTimingStore.empty());
+    FakeLister lister = new FakeLister(tests(100));
+
+    List<DeviceTest> seen = new ArrayList<DeviceTest>();
+    List<DeviceTest> batch;
+    while (!(batch = scheduler.nextBatch("serial", lister)).isEmpty()) {
+      seen.addAll(batch);
+    }
+
+    assertThat(seen).isEqualTo(tests(100));
+    assertThat(lister.calls).isEqualTo(1);
+    assertThat(scheduler.remaining()).isEqualTo(0);
+  }
+
+  @Test public void failedEnumerationIsRetriedByNextCaller() throws Exception {
+    SpoonTestScheduler scheduler = SpoonTestScheduler.dynamic(2, SpoonTimingStore.empty());
+    SpoonTestScheduler.TestLister failing = new SpoonTestScheduler.TestLister() {
+      @Override public List<DeviceTest> listTests() throws Exception {
+        throw new IllegalStateException("Device went away.");
+      }
+    };
+    try {
+      scheduler.nextBatch("serial", failing);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    FakeLister lister = new FakeLister(tests(2));
+    assertThat(scheduler.nextBatch("serial", lister)).hasSize(1);
+    assertThat(lister.calls).isEqualTo(1);
+  }
+
+  @Test public void dynamicQueueRunsLongestKnownTestsFirst() throws Exception {
+    SpoonTimingStore timings = SpoonTimingStore.empty();
+    DeviceDetails device = new DeviceDetails("Nexus", "LGE", "7.0", 24, "en", "US", false, null);
+    List<DeviceTest> tests = tests(3);
+    timings.record(device, tests.get(0), 10);
+    timings.record(device, tests.get(2), 1000);
+
+    SpoonTestScheduler scheduler = SpoonTestScheduler.dynamic(1, timings);
+    FakeLister lister = new FakeLister(tests);
+    assertThat(scheduler.nextBatch("serial", lister)).containsExactly(tests.get(2));
+    // The unseen test is assumed to take the average of the known ones.
+    assertThat(scheduler.nextBatch("serial", lister)).containsExactly(tests.get(1));
+    assertThat(scheduler.nextBatch("serial", lister)).containsExactly(tests.get(0));
+  }
+
+  @Test public void balancedSchedulerHandsEachDeviceItsShardOnce() throws Exception {
+    Map<String, DeviceDetails> devices = new LinkedHashMap<String, DeviceDetails>();
+    devices.put("a", new DeviceDetails("Nexus", "LGE", "7.0", 24, "en", "US", false, null));
+    devices.put("b", new DeviceDetails("Nexus", "LGE", "7.0", 24, "en", "US", false, null));
+    SpoonTestScheduler scheduler = SpoonTestScheduler.balanced(devices, SpoonTimingStore.empty());
+    FakeLister lister = new FakeLister(tests(5));
+
+    List<DeviceTest> a = scheduler.nextBatch("a", lister);
+    List<DeviceTest> b = scheduler.nextBatch("b", lister);
+    for (DeviceTest test : b) {
+      scheduler.finished("b", test);
+    }
+    assertThat(scheduler.nextBatch("a", lister)).isEmpty();
+    assertThat(a.size() + b.size()).isEqualTo(5);
+    assertThat(scheduler.remaining()).isEqualTo(0);
+    assertThat(scheduler.getPlan()).isNotNull();
+  }
+
+  @Test public void shardReleasedAfterPeersDrainedIsStillRun() throws Exception {
+    Map<String, DeviceDetails> devices = new LinkedHashMap<String, DeviceDetails>();
+    devices.put("a", new DeviceDetails("Nexus", "LGE", "7.0", 24, "en", "US", false, null));
+    devices.put("b", new DeviceDetails("Nexus", "LGE", "7.0", 24, "en", "US", false, null));
+    final SpoonTestScheduler scheduler =
+        SpoonTestScheduler.balanced(devices, SpoonTimingStore.empty());
+    final FakeLister lister = new FakeLister(tests(6));
+    for (DeviceTest test : scheduler.nextBatch("a", lister)) {
+      scheduler.finished("a", test);
+    }
+
+    // "a" has nothing left but waits, since "b" has not taken its shard yet, and then runs it.
+    final List<DeviceTest> a = new ArrayList<DeviceTest>();
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          List<DeviceTest> batch;
+          while (!(batch = scheduler.nextBatch("a", lister)).isEmpty()) {
+            a.addAll(batch);
+            for (DeviceTest test : batch) {
+              scheduler.finished("a", test);
+            }
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join(200);
+    assertThat(thread.isAlive()).isTrue();
+
+    // The install on "b" failed, so it hands back its shard without running any of it.
+    int released = scheduler.release("b");
+    thread.join(5000);
+    assertThat(thread.isAlive()).isFalse();
+    assertThat(released).isGreaterThan(0);
+    assertThat(a).hasSize(released);
+  }
+
+  @Test public void releasedTestsAreRunNextByAnotherDeviceOnce() throws Exception {
+    SpoonTestScheduler scheduler = SpoonTestScheduler.dynamic(2, SpoonTimingStore.empty());
+    FakeLister lister = new FakeLister(tests(12));
+
+    List<DeviceTest> a = scheduler.nextBatch("a", lister);
+    assertThat(a).hasSize(3);
+    scheduler.finished("a", a.get(0));
+    assertThat(scheduler.release("a")).isEqualTo(2);
+
+    List<DeviceTest> b = scheduler.nextBatch("b", lister);
+    assertThat(b.subList(0, 2)).isEqualTo(a.subList(1, 3));
+    // Tests which were already put back once are dropped rather than taking down another device.
+    assertThat(scheduler.release("b")).isEqualTo(b.size() - 2);
+  }
+
+  @Test public void idleDeviceWaitsForOutstandingTests() throws Exception {
+    final SpoonTestScheduler scheduler =
+        SpoonTestScheduler.dynamic(2, SpoonTimingStore.empty());
+    final FakeLister lister = new FakeLister(tests(1));
+    final List<DeviceTest> a = scheduler.nextBatch("a", lister);
+
+    final List<DeviceTest> b = new ArrayList<DeviceTest>();
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          b.addAll(scheduler.nextBatch("b", lister));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join(200);
+    assertThat(thread.isAlive()).isTrue();
+
+    scheduler.release("a");
+    thread.join(5000);
+    assertThat(thread.isAlive()).isFalse();
+    assertThat(b).isEqualTo(a);
+  }
+
+  @Test public void idleDeviceSpeculatesStragglersRemainingTail() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    SpoonTestScheduler scheduler =
+        SpoonTestScheduler.dynamic(1, SpoonTimingStore.empty(), ticker);
+    FakeLister lister = new FakeLister(tests(8));
+    List<DeviceTest> a = scheduler.nextBatch("a", lister);
+    assertThat(a).hasSize(4);
+    while (scheduler.remaining() > 0) {
+      for (DeviceTest test : scheduler.nextBatch("b", lister)) {
+        ticker.advance(1);
+        scheduler.finished("b", test);
+      }
+    }
+
+    // "a" has not finished anything in the time "b" ran four tests, so "b" takes the later half of
+    // its tests as well.
+    List<DeviceTest> speculative = scheduler.nextBatch("b", lister);
+    assertThat(speculative).isEqualTo(a.subList(2, 4));
+    scheduler.finished("b", a.get(3));
+    assertThat(scheduler.isDone(a.get(3))).isTrue();
+    scheduler.finished("a", a.get(2));
+    scheduler.finished("b", a.get(2));
+
+    scheduler.finished("a", a.get(0));
+    scheduler.finished("a", a.get(1));
+    assertThat(scheduler.nextBatch("b", lister)).isEmpty();
+
+    List<Speculation> speculations = scheduler.getSpeculations("a");
+    assertThat(speculations).hasSize(2);
+    assertThat(speculations.get(0).getWinner()).isEqualTo("a");
+    assertThat(speculations.get(1).getWinner()).isEqualTo("b");
+    assertThat(scheduler.getSpeculations("c")).isEmpty();
+  }
+
+  @Test public void deviceKeepingPaceWithPeersIsNotSpeculated() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    final SpoonTestScheduler scheduler =
+        SpoonTestScheduler.dynamic(1, SpoonTimingStore.empty(), ticker);
+    final FakeLister lister = new FakeLister(tests(8));
+    List<DeviceTest> a = scheduler.nextBatch("a", lister);
+    assertThat(a).hasSize(4);
+    while (scheduler.remaining() > 0) {
+      for (DeviceTest test : scheduler.nextBatch("b", lister)) {
+        ticker.advance(1);
+        scheduler.finished("b", test);
+      }
+      if (scheduler.isDone(a.get(0))) {
+        continue;
+      }
+      scheduler.finished("a", a.get(0));
+      scheduler.finished("a", a.get(1));
+    }
+
+    // "a" took a larger batch than "b" but is getting through it just as quickly.
+    final List<DeviceTest> b = new ArrayList<DeviceTest>();
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          b.addAll(scheduler.nextBatch("b", lister));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join(200);
+    assertThat(thread.isAlive()).isTrue();
+
+    scheduler.finished("a", a.get(2));
+    scheduler.finished("a", a.get(3));
+    thread.join(5000);
+    assertThat(thread.isAlive()).isFalse();
+    assertThat(b).isEmpty();
+    assertThat(scheduler.getSpeculations("a")).isEmpty();
+  }
+
+  private static List<DeviceTest> tests(int count) {
+    List<DeviceTest> tests = new ArrayList<DeviceTest>();
+    for (int i = 0; i < count; i++) {
+      tests.add(new DeviceTest("com.example.Test" + (i / 10), "test" + i));
+    }
+    return tests;
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Override public long read() {
+      return nanos;
+    }
+  }
+
+  private static final class FakeLister implements SpoonTestScheduler.TestLister {
+    private final List<DeviceTest> tests;
+    int calls;
+
+    FakeLister(List<DeviceTest> tests) {
+      this.tests = tests;
+    }
+
+    @Override public List<DeviceTest> listTests() {
+      calls++;
+      return tests;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class SpoonTestWatchdogTest {
+  private static final Map<String, String> NO_METRICS = Collections.emptyMap();
+  private static final DeviceDetails DEVICE =
+      new DeviceDetails("Nexus", "LGE", "7.0", 24, "en", "US", false, null);
+  private static final TestIdentifier FAST = new TestIdentifier("com.example.Foo", "fast");
+  private static final TestIdentifier HUNG = new TestIdentifier("com.example.Foo", "hung");
+
+  private final IRemoteAndroidTestRunner runner = mock(IRemoteAndroidTestRunner.class);
+  private final ITestRunListener delegate = mock(ITestRunListener.class);
+
+  @Test public void hungTestIsStoppedAndReportedAsTimeout() {
+    SpoonTestWatchdog watchdog = new SpoonTestWatchdog(runner,
+        new SpoonTestTimeouts(50, 0, SpoonTimingStore.empty()), DEVICE, delegate);
+    watchdog.testRunStarted("run", 3);
+    watchdog.testStarted(FAST);
+    watchdog.testEnded(FAST, NO_METRICS);
+    watchdog.testStarted(HUNG);
+
+    verify(runner, timeout(5000)).cancel();
+    // What ddmlib reports after being cancelled is dropped.
+    watchdog.testFailed(HUNG, "Test run failed to complete.");
+    watchdog.testRunFailed("Test run failed to complete. Expected 3 tests, received 2");
+    assertThat(watchdog.finish()).isEqualTo(DeviceTest.from(HUNG));
+
+    verify(delegate).testEnded(FAST, NO_METRICS);
+    verify(delegate).testFailed(eq(HUNG), startsWith("Test timed out after 50 ms"));
+    verify(delegate).testEnded(eq(HUNG), anyMapOf(String.class, String.class));
+    verify(delegate).testRunEnded(anyLong(), anyMapOf(String.class, String.class));
+    verify(delegate, never()).testRunFailed(anyString());
+    assertThat(watchdog.getStarted())
+        .containsOnly(DeviceTest.from(FAST), DeviceTest.from(HUNG));
+  }
+
+  @Test public void testsWhichEndInTimeAreNotStopped() throws Exception {
+    SpoonTestWatchdog watchdog = new SpoonTestWatchdog(runner,
+        new SpoonTestTimeouts(50, 0, SpoonTimingStore.empty()), DEVICE, delegate);
+    watchdog.testStarted(FAST);
+    watchdog.testEnded(FAST, NO_METRICS);
+    watchdog.testRunEnded(10, NO_METRICS);
+    Thread.sleep(100);
+
+    assertThat(watchdog.finish()).isNull();
+    verify(runner, never()).cancel();
+    verify(delegate).testRunEnded(10, NO_METRICS);
+  }
+
+  @Test public void timeoutIsDerivedFromHistory() {
+    SpoonTimingStore timings = SpoonTimingStore.empty();
+    DeviceTest slow = DeviceTest.from(HUNG);
+    DeviceTest quick = DeviceTest.from(FAST);
+    timings.record(DEVICE, slow, TimeUnit.MINUTES.toMillis(2));
+    timings.record(DEVICE, quick, 100);
+    long max = TimeUnit.MINUTES.toMillis(30);
+    SpoonTestTimeouts timeouts = new SpoonTestTimeouts(0, max, timings);
+
+    assertThat(timeouts.timeoutFor(DEVICE, slow)).isEqualTo(TimeUnit.MINUTES.toMillis(10));
+    assertThat(timeouts.timeoutFor(DEVICE, quick))
+        .isEqualTo(SpoonTestTimeouts.MIN_TIMEOUT_MILLIS);
+    assertThat(timeouts.timeoutFor(DEVICE, new DeviceTest("com.example.Foo", "new")))
+        .isEqualTo(max);
+    assertThat(new SpoonTestTimeouts(0, TimeUnit.MINUTES.toMillis(5), timings)
+        .timeoutFor(DEVICE, slow)).isEqualTo(TimeUnit.MINUTES.toMillis(5));
+    assertThat(new SpoonTestTimeouts(1000, max, timings).timeoutFor(DEVICE, slow))
+        .isEqualTo(1000);
+  }
+}
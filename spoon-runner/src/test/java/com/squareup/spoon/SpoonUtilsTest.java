@@ -1,14 +1,56 @@
 package com.squareup.spoon;
 
+import com.squareup.spoon.misc.StackTrace;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 
 public class SpoonUtilsTest {
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
   @Test public void serialSanitizer() {
     assertThat(SpoonUtils.sanitizeSerial("1234")).isEqualTo("1234");
     assertThat(SpoonUtils.sanitizeSerial("FooBarBaz")).isEqualTo("FooBarBaz");
     assertThat(SpoonUtils.sanitizeSerial("ST-398H984")).isEqualTo("ST-398H984");
     assertThat(SpoonUtils.sanitizeSerial("10.0.0.1:1234")).isEqualTo("10_0_0_1_1234");
   }
+
+  @Test public void stackTraceIsParsedBeforeItIsWritten() {
+    StackTrace trace = StackTrace.from("java.lang.AssertionError: Nope\n"
+        + "\tat com.example.FooTest.testFoo(FooTest.java:12)");
+    StackTrace read =
+        SpoonUtils.GSON.fromJson(SpoonUtils.GSON.toJson(trace), StackTrace.class);
+    assertThat(read.getClassName()).isEqualTo("java.lang.AssertionError");
+    assertThat(read.getMessage()).isEqualTo("Nope");
+    assertThat(read.getElements()).hasSize(1);
+    assertThat(read.getElements().get(0).getLine()).isEqualTo(12);
+  }
+
+  @Test public void animatedGifSkipsUnreadableScreenshots() throws IOException {
+    File first = png("1_first.png", 20, 10);
+    File webp = temp.newFile("2_second.webp");
+    File third = png("3_third.png", 10, 30);
+    File gif = new File(temp.getRoot(), "test.gif");
+
+    assertThat(SpoonUtils.createAnimatedGif(Arrays.asList(first, webp), gif)).isFalse();
+    assertThat(gif).doesNotExist();
+
+    assertThat(SpoonUtils.createAnimatedGif(Arrays.asList(first, webp, third), gif)).isTrue();
+    BufferedImage animated = ImageIO.read(gif);
+    assertThat(animated.getWidth()).isEqualTo(20);
+    assertThat(animated.getHeight()).isEqualTo(30);
+  }
+
+  private File png(String name, int width, int height) throws IOException {
+    File file = new File(temp.getRoot(), name);
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", file);
+    return file;
+  }
 }
@@ -0,0 +1,106 @@
+package com.squareup.spoon;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TarExtractorTest {
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test public void extractsFilesAndDirectories() throws IOException {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    entry(tar, "app_spoon-screenshots/", '5', "");
+    entry(tar, "app_spoon-screenshots/com.example.Foo/bar/1_a.png", '0', "first");
+    entry(tar, "app_spoon-files/com.example.Foo/bar/log.txt", '0', Strings.repeat("x", 700));
+    tar.write(new byte[1024]);
+
+    File output = temp.getRoot();
+    assertThat(TarExtractor.extract(new ByteArrayInputStream(tar.toByteArray()), output))
+        .isEqualTo(2);
+    assertThat(read(new File(output, "app_spoon-screenshots/com.example.Foo/bar/1_a.png")))
+        .isEqualTo("first");
+    assertThat(read(new File(output, "app_spoon-files/com.example.Foo/bar/log.txt")))
+        .hasSize(700);
+  }
+
+  @Test public void extractsGzippedArchivesWithLongNames() throws IOException {
+    String longName = "app_spoon-screenshots/com.example." + Strings.repeat("Long", 30)
+        + "/test/1_a.png";
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    entry(tar, "././@LongLink", 'L', longName);
+    entry(tar, longName.substring(0, 99), '0', "long");
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(gzip);
+    out.write(tar.toByteArray());
+    out.close();
+
+    File output = temp.getRoot();
+    assertThat(TarExtractor.extract(new ByteArrayInputStream(gzip.toByteArray()), output))
+        .isEqualTo(1);
+    assertThat(read(new File(output, longName))).isEqualTo("long");
+  }
+
+  @Test public void rejectsOutputWhichIsNotAnArchive() throws IOException {
+    byte[] error = "/system/bin/sh: tar: not found\n".getBytes(Charsets.UTF_8);
+    try {
+      TarExtractor.extract(new ByteArrayInputStream(error), temp.getRoot());
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void rejectsEntriesOutsideOfDestination() throws IOException {
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    entry(tar, "../evil.txt", '0', "evil");
+    File output = temp.newFolder("output");
+    try {
+      TarExtractor.extract(new ByteArrayInputStream(tar.toByteArray()), output);
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).contains("outside");
+    }
+    assertThat(new File(temp.getRoot(), "evil.txt")).doesNotExist();
+  }
+
+  private static String read(File file) throws IOException {
+    return FileUtils.readFileToString(file, "UTF-8");
+  }
+
+  /** Append a ustar entry with {@code content} to {@code tar}. */
+  private static void entry(ByteArrayOutputStream tar, String name, char type, String content)
+      throws IOException {
+    byte[] data = content.getBytes(Charsets.UTF_8);
+    byte[] header = new byte[512];
+    put(header, 0, name);
+    put(header, 100, "0000644");
+    put(header, 124, String.format("%011o", data.length));
+    put(header, 148, "        ");
+    header[156] = (byte) type;
+    put(header, 257, "ustar");
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    put(header, 148, String.format("%06o", checksum));
+    tar.write(header);
+    tar.write(data);
+    int padding = (512 - data.length % 512) % 512;
+    tar.write(new byte[padding]);
+  }
+
+  private static void put(byte[] header, int offset, String value) {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+}
@@ -36,4 +36,13 @@ public class TestIdentifierAdapterTest {
             "This@£$%^&*Is£$%^&*A£$%^&*bad$£%^&*test",
             "Very£$%^&Bad$%^&*:|{}Test")));
   }
+
+  @Test
+  public void cucumberAdapterReusesIdentifiers() {
+    TestIdentifierAdapter adapter = TestIdentifierAdapter
+        .fromTestRunner("cucumber.api.android.CucumberInstrumentation");
+
+    TestIdentifier first = adapter.adapt(new TestIdentifier("Reused", "Scenario"));
+    assertSame(first, adapter.adapt(new TestIdentifier("Reused", "Scenario")));
+  }
 }
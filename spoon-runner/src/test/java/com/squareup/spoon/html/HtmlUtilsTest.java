@@ -18,6 +18,7 @@ public class HtmlUtilsTest {
     // Simple cases.
     assertThat(prettifyImageName("012344567_click-the-button.png")).isEqualTo("Click The Button");
     assertThat(prettifyImageName("987245978_click_the_button.png")).isEqualTo("Click The Button");
+    assertThat(prettifyImageName("987245978_click_the_button.webp")).isEqualTo("Click The Button");
   }
 
   @Test public void prettifyTestNameExamples() {